@@ -0,0 +1,145 @@
+import org.antlr.v4.runtime.CharStreams;
+import rs.raf.calculator.Calculator;
+import rs.raf.calculator.Pipeline;
+import rs.raf.calculator.ast.StatementList;
+import rs.raf.calculator.compiler.Compiler;
+import rs.raf.calculator.vm.Blob;
+import rs.raf.calculator.vm.Scheduler;
+import rs.raf.calculator.vm.VM;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/** Measures how fairly a {@link Scheduler} shares its carriers, by running
+    many copies of a program at once, each in a {@link Calculator} and on a
+    {@link VM} of its own, as if for as many tenants.
+
+    <p> Each copy is compiled and submitted in turn, while those submitted
+    before it already run.  Once all finish, how long each took from being
+    submitted to finishing is summarized on the standard error: the median,
+    the 99th percentile, and the slowest, and how many copies failed.  What
+    the copies print goes to the standard output, interleaved.
+
+    <p> Kept out of the calculator itself, and run by {@code
+    bench/scheduler.sh}.  */
+public class SchedulerBench {
+    /** Number of calls and returns each copy runs for in its turn, unless
+        given.  */
+    private static final long DEFAULT_QUANTUM = 10_000;
+
+    /** How a copy went.
+
+        @param latency Nanoseconds from being submitted to finishing.
+        @param failed Whether it had a runtime error.  */
+    private record Outcome(long latency, boolean failed) {}
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || args.length > 4)
+            usage();
+        var source = Files.readString(Path.of(args[0]));
+        var tenants = parseCount(args[1]);
+        var carriers = args.length > 2
+            ? parseCount(args[2])
+            : Runtime.getRuntime().availableProcessors();
+        var quantum = args.length > 3 ? parseCount(args[3]) : DEFAULT_QUANTUM;
+
+        var outcomes = new ArrayList<CompletableFuture<Outcome>>();
+        try (var scheduler = new Scheduler(carriers, quantum)) {
+            for (int i = 0; i < tenants; i++) {
+                var calculator = new Calculator();
+                var vm = new VM(calculator);
+                new Pipeline<>(calculator,
+                               backend(calculator, vm, scheduler, outcomes))
+                    .run(CharStreams.fromString(source, args[0]));
+                if (calculator.hadError())
+                    System.exit(65);
+            }
+
+            var latencies = new long[tenants];
+            var failed = 0;
+            for (int i = 0; i < tenants; i++) {
+                var outcome = outcomes.get(i).join();
+                latencies[i] = outcome.latency();
+                if (outcome.failed())
+                    failed++;
+            }
+            report(System.err, tenants, carriers, quantum, latencies, failed);
+        }
+    }
+
+    /** @return A backend compiling for {@code vm}, and submitting the result
+                to {@code scheduler}, adding how that goes to {@code
+                outcomes}.  */
+    private static Pipeline.Backend<Blob>
+        backend(Calculator calculator, VM vm, Scheduler scheduler,
+                List<CompletableFuture<Outcome>> outcomes)
+    {
+        var compiler = new Compiler(calculator);
+        return new Pipeline.Backend<>() {
+            @Override
+            public Blob compile(StatementList program) {
+                return compiler.compileInput(program);
+            }
+
+            @Override
+            public void dumpAssembly(PrintStream out, Blob code) {
+                calculator.dumpNewAssembly(out, code);
+            }
+
+            @Override
+            public void run(Blob code) {
+                var submitted = System.nanoTime();
+                outcomes.add(scheduler.submit(vm, code).handle
+                             ((result, error) -> new Outcome
+                              (System.nanoTime() - submitted,
+                               error != null)));
+            }
+        };
+    }
+
+    /** Print the median, 99th percentile and maximum of {@code latencies},
+        in nanoseconds, into {@code out}.  */
+    private static void report(PrintStream out, int tenants, int carriers,
+                               long quantum, long[] latencies, int failed) {
+        Arrays.sort(latencies);
+        out.printf("%d tenants on %d carriers, quantum %d: median %.3f ms,"
+                   + " p99 %.3f ms, max %.3f ms, %d failed\n",
+                   tenants, carriers, quantum,
+                   latencies[latencies.length / 2] / 1e6,
+                   latencies[(int) (latencies.length * 0.99)] / 1e6,
+                   latencies[latencies.length - 1] / 1e6, failed);
+    }
+
+    /** @return {@code arg} as a positive count.  Exits with a usage message
+                if it is not one.  */
+    private static int parseCount(String arg) {
+        try {
+            var count = Integer.parseInt(arg);
+            if (count > 0)
+                return count;
+        } catch (NumberFormatException e) {
+            /* Handled below.  */
+        }
+        usage();
+        throw new IllegalStateException();
+    }
+
+    private static void usage() {
+        System.err.println("""
+            usage: bench/scheduler.sh FILE TENANTS [CARRIERS [QUANTUM]]
+              FILE                      program every tenant runs
+              TENANTS                   number of copies of FILE to run at
+                                        once
+              CARRIERS                  number of carrier threads, by
+                                        default one per core
+              QUANTUM                   calls and returns each copy runs
+                                        for in its turn""");
+        System.exit(64);
+    }
+}
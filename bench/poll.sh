@@ -0,0 +1,61 @@
+#!/bin/sh
+# Measure what polling for cancellation costs when nothing is ever
+# cancelled, by running a call-heavy program with no deadline, and with one
+# that is never reached.  Prints the median run time of each, in ms.
+#
+# Single runs on a busy or small machine vary by far more than polling
+# could cost, so each JVM runs the program REPEAT times through the prompt,
+# and only its runs after the first WARMUP count.  The configurations
+# take turns, JVM by JVM, so that drift in the machine affects them alike.
+#
+# usage: bench/poll.sh [RUNS [OPTION...]]
+#   e.g. bench/poll.sh 10 --unboxed
+# Expects the project to be packaged, with `mvn package`, unless CALCULATOR
+# is set to some other command running it.  If BASELINE is set to a command
+# running another build, that is timed too, with no deadline, to compare.
+set -e
+cd "$(dirname "$0")/.."
+runs=${1:-10}
+[ $# -gt 0 ] && shift
+calculator=${CALCULATOR:-java -jar target/calculator-antlr-1.0-SNAPSHOT.jar}
+repeat=${REPEAT:-20}
+warmup=${WARMUP:-5}
+
+input=$(mktemp)
+times=$(mktemp)
+trap 'rm -f "$input" "$times"' EXIT
+grep -v '^print' bench/calls.calc >"$input"
+i=0
+while [ $i -lt "$repeat" ]; do
+    grep '^print' bench/calls.calc >>"$input"
+    i=$((i + 1))
+done
+
+# Append the timed runs of one JVM, labelled $1, running command $2 with
+# the rest as options, to the times.
+bench() {
+    label=$1
+    command=$2
+    shift 2
+    $command --time "$@" <"$input" 2>&1 >/dev/null \
+        | sed -n 's/.*run: \([0-9.]*\) ms/\1/p' \
+        | tail -n $((repeat - warmup)) \
+        | sed "s/^/$label /" >>"$times"
+}
+
+median() {
+    sed -n "s/^$1 //p" "$times" \
+        | sort -n | awk '{ t[NR] = $1 } END { print t[int((NR + 1) / 2)] }'
+}
+
+i=0
+while [ $i -lt "$runs" ]; do
+    [ -n "$BASELINE" ] && bench baseline "$BASELINE" "$@"
+    bench none "$calculator" "$@"
+    bench unreached "$calculator" --timeout=3600000 "$@"
+    i=$((i + 1))
+done
+
+[ -n "$BASELINE" ] && echo "baseline:           $(median baseline) ms"
+echo "no deadline:        $(median none) ms"
+echo "unreached deadline: $(median unreached) ms"
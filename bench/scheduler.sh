@@ -0,0 +1,13 @@
+#!/bin/sh
+# Measure how fairly the scheduler shares its carriers between many copies
+# of a program, by running bench/SchedulerBench.java against the packaged
+# calculator.  Prints the median, 99th percentile and slowest latency of the
+# copies on the standard error.
+#
+# usage: bench/scheduler.sh FILE TENANTS [CARRIERS [QUANTUM]]
+#   e.g. bench/scheduler.sh bench/calls.calc 64 2 >/dev/null
+# Expects the project to be packaged, with `mvn package`.
+set -e
+root="$(dirname "$0")/.."
+exec java -cp "$root/target/calculator-antlr-1.0-SNAPSHOT.jar" \
+     "$root/bench/SchedulerBench.java" "$@"
@@ -2,41 +2,340 @@ package rs.raf;
 
 import org.antlr.v4.runtime.CharStream;
 import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.UnbufferedCharStream;
 import rs.raf.calculator.Calculator;
-import rs.raf.calculator.Parser;
-import rs.raf.calculator.Scanner;
-import rs.raf.calculator.Typecheck;
-import rs.raf.calculator.ast.ASTPrettyPrinter;
-import rs.raf.calculator.ast.CSTtoASTConverter;
+import rs.raf.calculator.ConstantFolder;
+import rs.raf.calculator.Pipeline;
+import rs.raf.calculator.Pipeline.Dump;
 import rs.raf.calculator.ast.StatementList;
 import rs.raf.calculator.compiler.Compiler;
+import rs.raf.calculator.compiler.RegisterCompiler;
+import rs.raf.calculator.compiler.TreeCompiler;
+import rs.raf.calculator.vm.AotCompiler;
+import rs.raf.calculator.vm.Blob;
+import rs.raf.calculator.vm.Profile;
+import rs.raf.calculator.vm.RegisterBlob;
+import rs.raf.calculator.vm.RegisterVM;
+import rs.raf.calculator.vm.Tracer;
+import rs.raf.calculator.vm.TreeInterpreter;
+import rs.raf.calculator.vm.TreeInterpreter.StmtNode;
 import rs.raf.calculator.vm.VM;
-import rs.raf.utils.PrettyPrint;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.Set;
 
 public class Main {
     private static final Calculator calculator = new Calculator();
-    /* Holds the global scope, so keep it open all the time.  */
-    private static final CSTtoASTConverter treeProcessor
-        = new CSTtoASTConverter(calculator);
     private static final Compiler compiler = new Compiler(calculator);
     private static final VM vm = new VM(calculator);
+    private static final RegisterCompiler registerCompiler
+        = new RegisterCompiler(calculator);
+    private static final RegisterVM registerVM = new RegisterVM(calculator);
+    private static final TreeInterpreter treeInterpreter
+        = new TreeInterpreter(calculator);
+    private static final TreeCompiler treeCompiler
+        = new TreeCompiler(calculator, treeInterpreter);
+    /** Whether to print superinstruction statistics on exit.  */
+    private static boolean fusionStats = false;
+    /** Whether to print inline cache statistics on exit.  */
+    private static boolean callSiteStats = false;
+    /** Whether to print the inlining decisions of the compiler on exit.  */
+    private static boolean inliningReport = false;
+    /** Whether to print how long compiling and running took.  */
+    private static boolean time = false;
+    /** Diagnostics to print on the standard output.  */
+    private static final Set<Dump> dumps = EnumSet.noneOf(Dump.class);
+    /** Pipeline programs run through, once options are parsed.  Holds the
+        global scope, so it is kept all the time.  */
+    private static Pipeline<?> pipeline;
+    /** JAR to compile the program into, rather than running it, or {@code
+        null}.  */
+    private static Path aotJar = null;
+    /** Whether to save the profile of the program next to it.  */
+    private static boolean recordProfile = false;
+    /** Whether to compile the program guided by the profile saved next to
+        it.  */
+    private static boolean useProfile = false;
+    /** Milliseconds each execution may take before it is cancelled, or
+        {@code 0} for no limit.  */
+    private static int timeout = 0;
+    /** Whether to run the program a toplevel statement at a time, as it is
+        read, rather than reading it whole first.  */
+    private static boolean stream = false;
+    /** Toplevel code of the program, once run, for recording its profile.  */
+    private static Blob toplevel = null;
 
     public static void main(String[] args) throws IOException {
-        if (args.length == 1) {
-            runFile(args[0]);
+        String path = null;
+        for (var arg : args) {
+            switch (arg) {
+            case "--unboxed" -> calculator.setUnboxed(true);
+            case "--peephole" -> calculator.setPeephole(true);
+            case "--inline" -> calculator.setInline(true);
+            case "--fold" -> calculator.setFold(true);
+            case "--optimize" -> calculator.setOptimize(true);
+            case "-O0" -> {}
+            case "-O1" -> optimizationLevel(1);
+            case "-O2" -> optimizationLevel(2);
+            case "-O3" -> optimizationLevel(3);
+            case "--fusion-stats" -> fusionStats = true;
+            case "--call-site-stats" -> callSiteStats = true;
+            case "--inlining-report" -> inliningReport = true;
+            case "--jit" -> calculator.setJit(true);
+            case "--lazy" -> calculator.setLazy(true);
+            case "--time" -> time = true;
+            case "--parse-profile" -> calculator.setParseProfile(true);
+            case "--stream" -> stream = true;
+            case "--parallel-parse" -> calculator.setParallelParse(true);
+            case "--share-constants" -> calculator.setShareConstants(true);
+            case "--trace" -> vm.attach(new Tracer(System.err));
+            case "--record-profile" -> recordProfile = true;
+            case "--use-profile" -> useProfile = true;
+            case "--backend=stack" ->
+                calculator.setBackend(Calculator.Backend.STACK);
+            case "--backend=register" ->
+                calculator.setBackend(Calculator.Backend.REGISTER);
+            case "--backend=tree" ->
+                calculator.setBackend(Calculator.Backend.TREE);
+            default -> {
+                if (arg.startsWith("--aot=")) {
+                    aotJar = Path.of(arg.substring("--aot=".length()));
+                    break;
+                }
+                if (arg.startsWith("--dump=")) {
+                    parseDumps(arg.substring("--dump=".length()));
+                    break;
+                }
+                if (arg.startsWith("--timeout=")) {
+                    timeout = parseCount(arg.substring("--timeout=".length()));
+                    break;
+                }
+                if (arg.startsWith("--jit-threshold=")) {
+                    calculator.setJitThreshold
+                        (parseCount(arg.substring("--jit-threshold=".length())));
+                    break;
+                }
+                if (path != null || arg.startsWith("--"))
+                    usage();
+                path = arg;
+            }
+            }
+        }
+
+        /* Compiling ahead of time requires a whole program, and its stack VM
+           code.  */
+        if (aotJar != null
+            && (path == null
+                || calculator.getBackend() != Calculator.Backend.STACK))
+            usage();
+        /* Streaming never has the whole program, nor a single toplevel blob
+           to profile, and shared boxes would pile up for as long as it
+           runs.  */
+        if (stream && (path == null || aotJar != null || recordProfile
+                       || calculator.isShareConstants()))
+            usage();
+        /* Each chunk is parsed on its own, so the decisions of the whole
+           input cannot be profiled, and streams are never whole.  */
+        if (calculator.isParallelParse()
+            && (stream || calculator.isParseProfile()))
+            usage();
+        /* Only the stack compiler compiles lazily.  */
+        if (calculator.isLazy()
+            && calculator.getBackend() != Calculator.Backend.STACK)
+            usage();
+        /* Only the stack VM can be cancelled, or traced.  */
+        if ((timeout != 0 || vm.isAttached())
+            && calculator.getBackend() != Calculator.Backend.STACK)
+            usage();
+        /* Profiles are kept next to a program, and only the stack VM records
+           them.  */
+        if ((recordProfile || useProfile)
+            && (path == null
+                || calculator.getBackend() != Calculator.Backend.STACK))
+            usage();
+        /* Compiled code calls compiled functions directly, without counting
+           the calls, so the profile would miss most of them.  */
+        if (recordProfile && calculator.isJit())
+            usage();
+
+        /* Statistics cost time on every call, so are only recorded when
+           asked for.  */
+        vm.setRecordingStatistics(fusionStats || callSiteStats
+                                  || recordProfile);
+
+        pipeline = switch (calculator.getBackend()) {
+        case STACK -> new Pipeline<>(calculator, stackBackend());
+        case REGISTER -> new Pipeline<>(calculator, registerBackend());
+        case TREE -> new Pipeline<>(calculator, treeBackend());
+        };
+        if (calculator.isFold())
+            pipeline.addPass(new ConstantFolder(calculator)::fold);
+        for (var dump : dumps)
+            pipeline.dumpTo(dump, System.out);
+        if (time)
+            pipeline.dumpTo(Dump.TIME, System.err);
+
+        if (path != null) {
+            runFile(path);
         } else {
             runPrompt();
         }
+        printStats();
+    }
+
+    private static void printStats() {
+        if (fusionStats)
+            vm.printFusionStats(System.err);
+        if (callSiteStats)
+            vm.printCallSiteStats(System.err);
+        if (inliningReport)
+            compiler.printInliningReport(System.err);
+    }
+
+    /** Enable the optimizations of optimization level {@code level}, and of
+        all levels below it.  Each level costs more compilation time than
+        the one below, for faster execution:
+
+        <ol>
+          <li>cheap, local optimizations: {@link Calculator#fold constant
+              folding} and {@link Calculator#peephole superinstructions},</li>
+          <li>optimizations across expressions and calls: {@link
+              Calculator#optimize common subexpression and dead code
+              elimination} and {@link Calculator#inline inlining},</li>
+          <li>{@link Calculator#jit compiling hot functions} to JVM
+              bytecode.</li>
+        </ol>  */
+    private static void optimizationLevel(int level) {
+        calculator.setFold(true);
+        calculator.setPeephole(true);
+        if (level >= 2) {
+            calculator.setOptimize(true);
+            calculator.setInline(true);
+        }
+        if (level >= 3)
+            calculator.setJit(true);
+    }
+
+    /** Add the comma separated diagnostics in {@code arg} to {@link
+        #dumps}.  Exits with a usage message if one is not known.  */
+    private static void parseDumps(String arg) {
+        for (var name : arg.split(",")) {
+            switch (name) {
+            case "all" -> dumps.addAll(EnumSet.of(Dump.SYNTAX_TREE, Dump.AST,
+                                                  Dump.TYPED_AST,
+                                                  Dump.ASSEMBLY));
+            default -> {
+                try {
+                    dumps.add(Dump.valueOf(name.toUpperCase(Locale.ROOT)
+                                           .replace('-', '_')));
+                } catch (IllegalArgumentException e) {
+                    usage();
+                }
+            }
+            }
+        }
+    }
+
+    /** @return {@code arg} as a positive count.  Exits with a usage message
+                if it is not one.  */
+    private static int parseCount(String arg) {
+        try {
+            var count = Integer.parseInt(arg);
+            if (count > 0)
+                return count;
+        } catch (NumberFormatException e) {
+            /* Handled below.  */
+        }
+        usage();
+        throw new IllegalStateException();
+    }
+
+    private static void usage() {
+        System.err.println("""
+            usage: calculator [OPTION...] [FILE]
+              -O0|-O1|-O2|-O3           optimize not at all, cheaply, more
+                                        thoroughly, or also by compiling to
+                                        JVM bytecode
+              --backend=stack|register|tree
+                                        execute on the stack or register VM,
+                                        or on the tree interpreter
+              --unboxed                 keep numbers unboxed (stack VM)
+              --peephole                fuse superinstructions (stack VM)
+              --fold                    compute constant arithmetic, and
+                                        simplify arithmetic, ahead of time
+              --optimize                eliminate common subexpressions
+                                        and dead code (stack VM)
+              --inline                  inline calls of small functions
+                                        (stack VM)
+              --fusion-stats            print superinstruction statistics
+              --call-site-stats         print inline cache hit rates
+              --inlining-report         print which calls were inlined
+              --jit                     compile hot functions to JVM bytecode
+              --jit-threshold=N         calls after which a function is hot
+              --lazy                    check and compile function bodies on
+                                        first call (stack VM)
+              --time                    print compilation and execution time
+              --dump=WHAT[,WHAT...]     print the syntax-tree, ast, typed-ast
+                                        or assembly of each program, or all
+              --parse-profile           print the grammar decisions taking
+                                        the longest to predict
+              --parallel-parse          parse large inputs in chunks, on all
+                                        cores
+              --share-constants         box each distinct constant only once
+                                        in the whole program
+              --stream                  read and run FILE a toplevel
+                                        statement at a time, stopping at the
+                                        first error
+              --trace                   print calls, instructions and values
+                                        as they execute (stack VM)
+              --timeout=MS              cancel executions taking longer than
+                                        MS milliseconds (stack VM)
+              --record-profile          save the execution profile of FILE
+                                        into FILE.profile (stack VM, not
+                                        with --jit)
+              --use-profile             optimize FILE guided by
+                                        FILE.profile (stack VM)
+              --aot=JAR                 compile FILE into a runnable JAR,
+                                        rather than running it""");
+        System.exit(64);
     }
 
     private static void runFile(String path) throws IOException {
-        run(CharStreams.fromFileName(path));
+        var profilePath = Path.of(path + ".profile");
+        if (useProfile)
+            loadProfile(profilePath);
+        if (stream)
+            runStream(Path.of(path));
+        else
+            run(CharStreams.fromFileName(path));
+        if (calculator.hadError() || calculator.hadRuntimeError())
+            printStats();
         if (calculator.hadError()) System.exit(65);
         if (calculator.hadRuntimeError()) System.exit(70);
+        if (recordProfile && toplevel != null)
+            Profile.record(calculator, toplevel).save(profilePath);
+    }
+
+    /** Load the profile in {@code path} into the calculator.  A missing or
+        broken profile only means the program is not optimized by it.  */
+    private static void loadProfile(Path path) {
+        if (!Files.exists(path)) {
+            System.err.printf("warning: %s: no profile recorded yet\n", path);
+            return;
+        }
+        try {
+            calculator.setProfile(Profile.load(path));
+        } catch (IOException e) {
+            System.err.printf("warning: %s: %s, ignoring it\n", path,
+                              e.getMessage());
+        }
     }
 
     private static void runPrompt() throws IOException {
@@ -60,37 +359,111 @@ public class Main {
     }
 
     private static void run(CharStream source) {
-        Scanner scanner = new Scanner(calculator);
-        var tokens = scanner.getTokens(source);
+        pipeline.run(source);
+    }
 
-        if (calculator.hadError()) return;
+    /** Read and run the program in {@code path} a toplevel statement at a
+        time.  See {@link Pipeline#runStream(CharStream)}.  */
+    private static void runStream(Path path) throws IOException {
+        try (var input = Files.newInputStream(path)) {
+            /* Decodes UTF-8, like CharStreams does.  */
+            pipeline.runStream(new UnbufferedCharStream(input));
+        }
+    }
+
+    /** @return A backend compiling with the {@link Compiler}, and running
+                on the {@link VM}, or compiling ahead of time into {@link
+                #aotJar}, if given.  */
+    private static Pipeline.Backend<Blob> stackBackend() {
+        return new Pipeline.Backend<>() {
+            @Override
+            public Blob compile(StatementList program) {
+                try {
+                    return compiler.compileInput(program);
+                } catch (Compiler.BodyErrorException e) {
+                    /* A lazy function the profile says is hot got compiled
+                       early, and its error is already reported.  */
+                    return null;
+                }
+            }
+
+            @Override
+            public void dumpAssembly(PrintStream out, Blob code) {
+                calculator.dumpNewAssembly(out, code);
+            }
 
-        Parser parser = new Parser(calculator);
-        var tree = parser.getSyntaxTree(tokens);
+            @Override
+            public void run(Blob code) {
+                if (aotJar != null) {
+                    compileAot(code);
+                    return;
+                }
+                if (timeout != 0)
+                    vm.setDeadline(System.nanoTime() + timeout * 1_000_000L);
+                try {
+                    vm.run(code);
+                    toplevel = code;
+                } catch (Compiler.BodyErrorException e) {
+                    /* Already reported.  */
+                }
+            }
+        };
+    }
 
-        /* ANTLR error recovers, so lets print it in its error recovered
-           form.  */
-        System.out.println("Syntax Tree: " + PrettyPrint.prettyPrintTree(tree, parser.getCalculatorParser().getRuleNames()));
+    /** @return A backend compiling with the {@link RegisterCompiler}, and
+                running on the {@link RegisterVM}.  */
+    private static Pipeline.Backend<RegisterBlob> registerBackend() {
+        return new Pipeline.Backend<>() {
+            @Override
+            public RegisterBlob compile(StatementList program) {
+                return registerCompiler.compileInput(program);
+            }
 
-        if (calculator.hadError()) return;
+            @Override
+            public void dumpAssembly(PrintStream out, RegisterBlob code) {
+                calculator.dumpNewAssembly(out, code);
+            }
 
-        var pp = new ASTPrettyPrinter(System.out);
-        var program = (StatementList) tree.accept(treeProcessor);
+            @Override
+            public void run(RegisterBlob code) {
+                registerVM.run(code);
+            }
+        };
+    }
 
-        System.out.println("AST:");
-        program.prettyPrint(pp);
-        if (calculator.hadError()) return;
+    /** @return A backend compiling with the {@link TreeCompiler}, and
+                running on the {@link TreeInterpreter}.  */
+    private static Pipeline.Backend<StmtNode> treeBackend() {
+        return new Pipeline.Backend<>() {
+            @Override
+            public StmtNode compile(StatementList program) {
+                return treeCompiler.compileInput(program);
+            }
 
-        new Typecheck(calculator).typecheck(program);
-        System.out.println("tAST:");
-        program.prettyPrint(pp);
-        if (calculator.hadError()) return;
+            @Override
+            public void dumpAssembly(PrintStream out, StmtNode code) {
+                /* There is no assembly to dump.  */
+            }
 
-        var bytecode = compiler.compileInput(program);
-        calculator.dumpNewAssembly(System.out, bytecode);
-        /* The compiler cannot emit errors.  */
-        assert !calculator.hadError();
+            @Override
+            public void run(StmtNode code) {
+                treeInterpreter.run(code);
+            }
+        };
+    }
 
-        vm.run(bytecode);
+    private static void compileAot(Blob bytecode) {
+        try {
+            AotCompiler.compile(calculator, bytecode, aotJar);
+        } catch (Compiler.BodyErrorException e) {
+            /* Already reported.  */
+        } catch (AotCompiler.AotException e) {
+            System.err.printf("error: %s: %s\n", e.getMessage(),
+                              e.getCause().getMessage());
+            calculator.setHadError(true);
+        } catch (IOException e) {
+            System.err.printf("error: %s: %s\n", aotJar, e.getMessage());
+            calculator.setHadError(true);
+        }
     }
 }
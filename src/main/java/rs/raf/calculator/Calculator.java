@@ -15,7 +15,12 @@ import org.antlr.v4.runtime.Recognizer;
 
 import rs.raf.calculator.ast.*;
 import rs.raf.calculator.vm.Blob;
+import rs.raf.calculator.vm.ConstantPool;
 import rs.raf.calculator.vm.Function;
+import rs.raf.calculator.vm.Instruction;
+import rs.raf.calculator.vm.Profile;
+import rs.raf.calculator.vm.RegisterBlob;
+import rs.raf.calculator.vm.RegisterInstruction;
 import lombok.*;
 
 @Getter
@@ -57,6 +62,77 @@ public class Calculator {
         setHadError(true);
     }
 
+    public void runtimeError(String message, Object... args) {
+        System.err.printf("runtime error: %s\n", message.formatted(args));
+        setHadRuntimeError(true);
+    }
+
+    /* Execution options.  */
+    /** Ways of executing programs.  */
+    public enum Backend {
+        /** Compile with {@link rs.raf.calculator.compiler.Compiler}, and
+            execute on the stack-based {@link rs.raf.calculator.vm.VM}.  */
+        STACK,
+        /** Compile with {@link rs.raf.calculator.compiler.RegisterCompiler},
+            and execute on the {@link rs.raf.calculator.vm.RegisterVM}.  */
+        REGISTER,
+        /** Compile with {@link rs.raf.calculator.compiler.TreeCompiler}, and
+            execute on the {@link rs.raf.calculator.vm.TreeInterpreter}.  */
+        TREE,
+    }
+
+    /** How to execute programs.  Must not be changed once any code is
+        compiled.  */
+    private Backend backend = Backend.STACK;
+    /** Whether numbers are kept unboxed during execution.  If set, the
+        compiler emits {@link
+        rs.raf.calculator.vm.Instruction.Code#BOX_NUMBER
+        <code>BOX_NUMBER</code>} where numbers are used as arbitrary values,
+        and the VM keeps numbers in {@code double} tables, so that arithmetic
+        does not allocate.  Must not be changed once any code is compiled.  */
+    private boolean unboxed = false;
+    /** Whether the compiler fuses common instruction sequences into
+        superinstructions.  See {@link rs.raf.calculator.compiler.Peephole}.  */
+    private boolean peephole = false;
+    /** Whether the compiler replaces calls of small functions with their
+        bodies.  Has no effect when compiling {@link #lazy lazily}.  See
+        {@link rs.raf.calculator.compiler.Compiler}.  */
+    private boolean inline = false;
+    /** Whether constant arithmetic is computed, and arithmetic is
+        simplified, before compiling.  See {@link ConstantFolder}.  */
+    private boolean fold = false;
+    /** Whether the compiler eliminates common subexpressions and dead code
+        in function bodies.  See {@link
+        rs.raf.calculator.compiler.SsaOptimizer}.  */
+    private boolean optimize = false;
+    /** Whether the VM compiles hot functions to JVM bytecode.  See {@link
+        rs.raf.calculator.vm.Jit}.  */
+    private boolean jit = false;
+    /** Number of calls after which a function is considered hot.  */
+    private int jitThreshold = 1000;
+    /** Whether function bodies are type checked and compiled only when they
+        are first called, rather than when they are declared.  Type errors in
+        a body are then only reported once it is called.  Only supported by
+        the {@link rs.raf.calculator.compiler.Compiler}.  Must not be changed
+        once any code is compiled.  */
+    private boolean lazy = false;
+    /** Whether the parser records how long each decision of the grammar
+        takes to predict.  See {@link Parser#printDecisionProfile}.  */
+    private boolean parseProfile = false;
+    /** Whether large inputs are split into chunks of toplevel statements,
+        parsed in parallel.  See {@link ParallelParser}.  */
+    private boolean parallelParse = false;
+    /** Whether blobs using the same constant share its box, rather than
+        each boxing it on its own.  Keeps boxes for as long as the program
+        runs, so it is best left unset when streaming.  See {@link
+        ConstantPool}.  Must not be changed once any code is compiled.  */
+    private boolean shareConstants = false;
+    /** Profile of a previous run of the program, guiding which functions the
+        compiler optimizes and compiles ahead of need, or {@code null}.  See
+        {@link rs.raf.calculator.vm.Profile}.  Must not be changed once any
+        code is compiled.  */
+    private Profile profile = null;
+
     /* Type handling.  */
     private final NumberType numberType = new NumberType();
     private final VoidType voidType = new VoidType();
@@ -85,6 +161,23 @@ public class Calculator {
         return functions.get(functionId);
     }
 
+    /** @return Number of functions in the function table.  */
+    public int getFunctionCount() {
+        return functions.size();
+    }
+
+    /** Boxes of the constants of all blobs, once any code is compiled.  */
+    @Getter(AccessLevel.NONE)
+    private ConstantPool constantPool = null;
+
+    /** @return Pool boxing the constants of all blobs, sharing boxes if
+                {@link #shareConstants} is set.  */
+    public ConstantPool getConstantPool() {
+        if (constantPool == null)
+            constantPool = new ConstantPool(shareConstants);
+        return constantPool;
+    }
+
     /* Global variable handling.  */
     /** Assignments of global table slots to declarations.  Declaration of
         {@code d} being mapped to {@code 3} means that the global table at
@@ -92,6 +185,10 @@ public class Calculator {
     @Getter(AccessLevel.NONE)
     private final IdentityHashMap<Declaration, Integer> globalIndices =
         new IdentityHashMap<>();
+    /** Declarations of global variables, indexed by their global slot.  The
+        inverse of {@link #globalIndices}.  */
+    @Getter(AccessLevel.NONE)
+    private final List<Declaration> globalDeclarations = new ArrayList<>();
 
     /** Allocate a slot in the globals table for this global variable.  */
     public int declareGlobal(Declaration newGlobal) {
@@ -99,9 +196,15 @@ public class Calculator {
         var oldIndex = globalIndices.put(newGlobal, newGlobalNumber);
         /* Should not have been present.  */
         assert oldIndex == null;
+        globalDeclarations.add(newGlobal);
         return newGlobalNumber;
     }
 
+    /** Get the declaration of the global stored in slot {@code slot}.  */
+    public Declaration getGlobalDeclaration(int slot) {
+        return globalDeclarations.get(slot);
+    }
+
     /** Get number of globals.  */
     public int getGlobalCount() {
         return globalIndices.size();
@@ -119,49 +222,105 @@ public class Calculator {
     @Getter(AccessLevel.NONE)
     /** How many globals have we printed so far?  So that we can resume.  */
     private int printedVariableCount = 0;
+    @Getter(AccessLevel.NONE)
+    /** Slots of the functions printed before they were {@link #lazy lazily}
+        compiled, in order.  Their code is printed once it is.  */
+    private final List<Integer> uncompiledFunctions = new ArrayList<>();
 
     public void dumpNewAssembly(PrintStream out, Blob bytecode) {
-        if (printedVariableCount < globalIndices.size())
+        dumpNewGlobalsAndFunctions(out);
+        out.println("Toplevel blob:");
+        dumpBlob(out, "  ", bytecode);
+    }
+
+    public void dumpNewAssembly(PrintStream out, RegisterBlob bytecode) {
+        dumpNewGlobalsAndFunctions(out);
+        out.println("Toplevel blob:");
+        dumpBlob(out, "  ", bytecode);
+    }
+
+    /** Print the globals and functions declared since the last call, in
+        slot order, and the functions compiled since then, which were
+        declared before.  */
+    private void dumpNewGlobalsAndFunctions(PrintStream out) {
+        var compiled = uncompiledFunctions.stream()
+            .filter(fnId -> getFunction(fnId).getCode() != null)
+            .toList();
+        if (!compiled.isEmpty())
+            out.println("Newly compiled functions:");
+        for (var fnId : compiled)
+            dumpFunction(out, fnId);
+        uncompiledFunctions.removeAll(compiled);
+
+        if (printedVariableCount < globalDeclarations.size())
             out.println("New globals:");
-        globalIndices
-            .entrySet()
-            .stream()
-            .filter(e -> e.getValue() >= printedVariableCount)
-            .forEach(e ->
-                     out.printf("  %4x: %s\n",
-                                e.getValue(), e.getKey().getName()));
-        printedVariableCount = globalIndices.size();
-
-        if (printedVariableCount < functions.size())
+        for (; printedVariableCount < globalDeclarations.size();
+             printedVariableCount++)
+            out.printf("  %4x: %s\n", printedVariableCount,
+                       globalDeclarations.get(printedVariableCount).getName());
+
+        if (printedFunctionCount < functions.size())
             out.println("New functions:");
         for (; printedFunctionCount < functions.size();
-             printedFunctionCount++) {
-            var fn = getFunction(printedFunctionCount);
-            var fnTag = "FN%x".formatted(printedFunctionCount);
-            out.printf("  %-6s: Function '%s'\n", fnTag,
-                       fn.getFuncDecl().getName());
+             printedFunctionCount++)
+            dumpFunction(out, printedFunctionCount);
+    }
+
+    /** Print function {@code fnId}.  If it is not compiled yet, remember to
+        print it again once it is.  */
+    private void dumpFunction(PrintStream out, int fnId) {
+        var fn = getFunction(fnId);
+        var fnTag = "FN%x".formatted(fnId);
+        out.printf("  %-6s: Function '%s'\n", fnTag,
+                   fn.getFuncDecl().getName());
+        if (fn.getCode() != null)
             dumpBlob(out, "  ", fn.getCode());
-            out.printf("  - Upvalues:\n");
-            var upvals = fn.getUpvalueMap();
-            for (int u = 0; u < upvals.length; u++) {
-                out.printf("    %4x: %s\n", u, upvals[u].format());
-            }
+        else if (fn.getRegisterCode() != null)
+            dumpBlob(out, "  ", fn.getRegisterCode());
+        else {
+            out.printf("  - Code: not compiled yet\n");
+            uncompiledFunctions.add(fnId);
+        }
+        out.printf("  - Upvalues:\n");
+        var upvals = fn.getUpvalueMap();
+        for (int u = 0; u < upvals.length; u++) {
+            out.printf("    %4x: %s\n", u, upvals[u].format());
         }
-        out.println("Toplevel blob:");
-        dumpBlob(out, "  ", bytecode);
     }
 
     private void dumpBlob(PrintStream out, String indent, Blob blob) {
-        if (!blob.code().isEmpty())
+        /* Disassemble the packed form, as that is what the VM executes.  */
+        var code = blob.packedCode();
+        if (code.length != 0)
+            out.printf("%s- Code:\n", indent);
+        for (int ip = 0; ip < code.length;) {
+            var insn = Instruction.unpack(code, ip);
+            out.printf("%s  %4x: %s\n", indent, ip, insn);
+            ip += insn.getOpcode().length;
+        }
+        var csts = blob.packedConstants();
+        if (csts.length != 0)
+            out.printf("%s- Constants:\n", indent);
+        for (int i = 0; i < csts.length; i++){
+            out.printf("%s  %4x: %s\n", indent, i, csts[i]);
+        }
+    }
+
+    private void dumpBlob(PrintStream out, String indent, RegisterBlob blob) {
+        out.printf("%s- Registers: %d\n", indent, blob.registerCount());
+        var code = blob.packedCode();
+        if (code.length != 0)
             out.printf("%s- Code:\n", indent);
-        for (int i = 0; i < blob.code().size(); i++){
-            var insn = blob.code().get(i);
-            out.printf("%s  %4x: %s\n", indent, i, insn);
+        for (int ip = 0; ip < code.length;) {
+            var insn = RegisterInstruction.unpack(code, ip);
+            out.printf("%s  %4x: %s\n", indent, ip, insn);
+            ip += insn.getOpcode().length;
         }
-        if (!blob.constantTable().isEmpty())
+        var csts = blob.packedConstants();
+        if (csts.length != 0)
             out.printf("%s- Constants:\n", indent);
-        for (int i = 0; i < blob.constantTable().size(); i++){
-            out.printf("%s  %4x: %s\n", indent, i, blob.constantTable().get(i));
+        for (int i = 0; i < csts.length; i++){
+            out.printf("%s  %4x: %s\n", indent, i, csts[i]);
         }
     }
 }
@@ -0,0 +1,214 @@
+package rs.raf.calculator;
+
+import rs.raf.calculator.ast.*;
+
+/** Simplifies type checked ASTs before they are compiled.  Enabled by
+    {@link Calculator#fold}.
+
+    <p> Arithmetic on number literals is computed ahead of time, and
+    replaced by its result.  Arithmetic is simplified using identities that
+    hold for every IEEE 754 double, including infinities, NaNs and negative
+    zero:
+
+    <ul>
+      <li>{@code x * 1}, {@code 1 * x}, {@code x / 1}, {@code x - 0}, {@code
+      x + -0}, {@code -0 + x} and {@code x ^ 1} are all {@code x},</li>
+
+      <li>{@code x ^ 0} is {@code 1}, if computing {@code x} has no
+      effects,</li>
+
+      <li>{@code x ^ 2} is {@code x * x}, if {@code x} is cheap enough to
+      compute twice.  {@link Math#pow(double, double)} squares exactly like
+      that, but takes a lot longer.</li>
+    </ul>
+
+    Identities which do not hold for all doubles, like {@code x + 0} being
+    {@code x} ({@code -0 + 0} is {@code 0}), or {@code x ^ 3} being {@code x
+    * x * x} (which rounds twice), are left alone.  */
+public class ConstantFolder {
+    private final Calculator c;
+
+    public ConstantFolder(Calculator calculator) {
+        this.c = calculator;
+    }
+
+    /** Simplify all statements of {@code block}.  When compiling {@link
+        Calculator#lazy lazily}, function bodies are not type checked yet,
+        so are left for {@link #foldBody(FunctionDeclaration)}.  */
+    public void fold(StatementList block) {
+        block.getStmts().forEach(this::fold);
+    }
+
+    /** Simplify the body of {@code fn}, which was just type checked.  */
+    public void foldBody(FunctionDeclaration fn) {
+        fold(fn.getBody());
+    }
+
+    private void fold(Statement stmt_) {
+        switch (stmt_) {
+            case PrintStmt stmt -> stmt.getArgs().replaceAll(this::fold);
+            case FunctionDeclaration stmt -> {
+                if (!c.isLazy())
+                    fold(stmt.getBody());
+            }
+            case Declaration stmt -> stmt.setValue(fold(stmt.getValue()));
+            case ExprStmt stmt -> stmt.setExpr(fold(stmt.getExpr()));
+            case StatementList stmt -> fold(stmt);
+            case ReturnStatement stmt -> {
+                if (stmt.getValue() != null)
+                    stmt.setValue(fold(stmt.getValue()));
+            }
+        }
+    }
+
+    /** Simplify {@code expr_}, altering it.  Returns the expression to use
+        instead of it.  */
+    private Expr fold(Expr expr_) {
+        switch (expr_) {
+            case ErrorExpr expr -> {
+                return expr;
+            }
+            case NumberLit expr -> {
+                return expr;
+            }
+            case VarRef expr -> {
+                return expr;
+            }
+            case VectorExpr expr -> {
+                expr.getElements().replaceAll(this::fold);
+                return expr;
+            }
+            case FunctionCall expr -> {
+                expr.setFunction(fold(expr.getFunction()));
+                expr.getArguments().replaceAll(this::fold);
+                return expr;
+            }
+            default -> {
+                /* A binary expression, handled below.  */
+            }
+        }
+
+        expr_.setLhs(fold(expr_.getLhs()));
+        expr_.setRhs(fold(expr_.getRhs()));
+        var lhs = expr_.getLhs();
+        var rhs = expr_.getRhs();
+
+        if (lhs instanceof NumberLit l && rhs instanceof NumberLit r) {
+            var a = l.getValue();
+            var b = r.getValue();
+            /* Exactly what the VMs compute.  */
+            return number(expr_, switch (expr_.getOperation()) {
+                case ADD -> a + b;
+                case SUB -> a - b;
+                case MUL -> a * b;
+                case DIV -> a / b;
+                case POW -> Math.pow(a, b);
+                case VALUE -> throw new IllegalStateException();
+                });
+        }
+
+        switch (expr_.getOperation()) {
+            case ADD -> {
+                if (is(rhs, -0.0)) return lhs;
+                if (is(lhs, -0.0)) return rhs;
+            }
+            case SUB -> {
+                if (is(rhs, 0.0)) return lhs;
+            }
+            case MUL -> {
+                if (is(rhs, 1.0)) return lhs;
+                if (is(lhs, 1.0)) return rhs;
+            }
+            case DIV -> {
+                if (is(rhs, 1.0)) return lhs;
+            }
+            case POW -> {
+                if (is(rhs, 1.0)) return lhs;
+                if (is(rhs, 0.0) || is(rhs, -0.0)) {
+                    /* Even NaN to the power of zero is one.  */
+                    if (isPure(lhs)) return number(expr_, 1.0);
+                }
+                if (is(rhs, 2.0) && isCheap(lhs)) {
+                    var square = new Expr(expr_.getLocation(),
+                                          Expr.Operation.MUL, lhs,
+                                          copy(lhs));
+                    square.setResultType(c.getNumberType());
+                    return square;
+                }
+            }
+            case VALUE -> throw new IllegalStateException();
+        }
+        return expr_;
+    }
+
+    /** @return A number literal of value {@code value} replacing {@code
+                expr}.  */
+    private NumberLit number(Expr expr, double value) {
+        var lit = new NumberLit(expr.getLocation(), value);
+        lit.setResultType(c.getNumberType());
+        return lit;
+    }
+
+    /** @return Whether {@code expr} is a literal of exactly {@code value},
+                telling zero and negative zero apart.  */
+    private static boolean is(Expr expr, double value) {
+        return expr instanceof NumberLit lit
+            && Double.doubleToRawLongBits(lit.getValue())
+               == Double.doubleToRawLongBits(value);
+    }
+
+    /** @return Whether computing {@code expr} has no effects, and always
+                finishes.  Only calls can print or recurse forever.  */
+    private static boolean isPure(Expr expr) {
+        return switch (expr) {
+            case FunctionCall ignored -> false;
+            case ErrorExpr ignored -> false;
+            case NumberLit ignored -> true;
+            case VarRef ignored -> true;
+            case VectorExpr vector ->
+                vector.getElements().stream()
+                    .allMatch(ConstantFolder::isPure);
+            default -> isPure(expr.getLhs()) && isPure(expr.getRhs());
+        };
+    }
+
+    /** @return Whether {@code expr} is pure and takes no more than an
+                operation to compute, so that computing it twice is cheaper
+                than a call of {@link Math#pow(double, double)}.  */
+    private static boolean isCheap(Expr expr) {
+        return switch (expr) {
+            case NumberLit ignored -> true;
+            case VarRef ignored -> true;
+            case FunctionCall ignored -> false;
+            case ErrorExpr ignored -> false;
+            case VectorExpr ignored -> false;
+            default -> isLeaf(expr.getLhs()) && isLeaf(expr.getRhs());
+        };
+    }
+
+    private static boolean isLeaf(Expr expr) {
+        return expr instanceof NumberLit || expr instanceof VarRef;
+    }
+
+    /** @return A copy of {@link #isCheap(Expr) cheap} expression {@code
+                expr}.  */
+    private Expr copy(Expr expr) {
+        switch (expr) {
+            case NumberLit lit -> {
+                return number(lit, lit.getValue());
+            }
+            case VarRef var -> {
+                var ref = new VarRef(var.getLocation(), var.getVariable());
+                ref.setResultType(var.getResultType());
+                return ref;
+            }
+            default -> {
+                var binary = new Expr(expr.getLocation(), expr.getOperation(),
+                                      copy(expr.getLhs()),
+                                      copy(expr.getRhs()));
+                binary.setResultType(expr.getResultType());
+                return binary;
+            }
+        }
+    }
+}
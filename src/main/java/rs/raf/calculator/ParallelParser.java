@@ -0,0 +1,172 @@
+package rs.raf.calculator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import calculator.parser.CalculatorParser.StartContext;
+
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.misc.Interval;
+
+/** Parses large inputs on all cores, by splitting them into chunks of
+    toplevel statements, and parsing each chunk on its own.
+
+    <p> A quick scan of the text finds where toplevel statements end: at a
+    {@code ;} or a <code>}</code> outside of any braces and comments.  The input
+    is cut at the first such point past every {@link #MIN_CHUNK_SIZE}
+    characters, or more for inputs with many more chunks than cores.  Each
+    chunk is then lexed and parsed by its own {@link Parser}, with its lexer
+    starting at the line and column the chunk starts at, so that positions,
+    and hence {@link rs.raf.calculator.ast.Location}s, are exactly those of
+    the whole input.  The statements of all chunks are then stitched, in
+    order, into one syntax tree, which is converted into an AST as if it
+    were parsed whole.
+
+    <p> Error recovery in a chunk cannot see past its end, so it might
+    report errors differently than when parsing the whole input.  Any chunk
+    failing to parse thus makes {@link #getSyntaxTree(CharStream)} give up,
+    for the input to be parsed whole, reporting errors as usual.  */
+public class ParallelParser {
+    /** Number of characters below which splitting is not worth it.  */
+    private static final int MIN_CHUNK_SIZE = 1 << 16;
+    /** Number of chunks to aim for per core, so that cores finishing early
+        can take the chunks of the others.  */
+    private static final int CHUNKS_PER_CORE = 4;
+
+    private final Calculator compiler;
+
+    public ParallelParser(Calculator compiler) {
+        this.compiler = compiler;
+    }
+
+    /** A part of the input.
+
+        @param text Text of the chunk.
+        @param line Line the chunk starts at, from 1.
+        @param column Column the chunk starts at, from 0, in code points.  */
+    record Chunk(String text, int line, int column) {}
+
+    /** Parse {@code source} in parallel.
+
+        @return The syntax tree of all of {@code source}, or {@code null} if
+                some chunk of it has syntax errors, which are not reported,
+                or splitting {@code source} is not worth it.  */
+    public StartContext getSyntaxTree(CharStream source) {
+        var cores = Runtime.getRuntime().availableProcessors();
+        if (cores < 2 || source.size() < 2 * MIN_CHUNK_SIZE)
+            return null;
+        var text = source.getText(Interval.of(0, source.size() - 1));
+        var chunkSize = Math.max(MIN_CHUNK_SIZE,
+                                 text.length() / (cores * CHUNKS_PER_CORE));
+        var chunks = split(text, chunkSize);
+        if (chunks.size() < 2)
+            return null;
+
+        var trees = chunks.parallelStream()
+            .map(chunk -> parse(chunk, source.getSourceName()))
+            .toList();
+        if (trees.contains(null))
+            return null;
+
+        /* Stitch the statements of all chunks together, ending with the
+           EOF of the last one, into a start invoked by no rule.  */
+        var whole = new StartContext(null, -1);
+        for (var tree : trees)
+            tree.statement().forEach(whole::addAnyChild);
+        var last = trees.getLast();
+        whole.addAnyChild(last.EOF());
+        whole.start = trees.getFirst().start;
+        whole.stop = last.stop;
+        return whole;
+    }
+
+    /** @return The syntax tree of {@code chunk}, or {@code null} if it has
+                errors.  */
+    private StartContext parse(Chunk chunk, String sourceName) {
+        var failed = new AtomicBoolean(false);
+        var listener = new BaseErrorListener() {
+            @Override
+            public void syntaxError(Recognizer<?, ?> recognizer,
+                                    Object offendingSymbol, int line,
+                                    int charPositionInLine, String msg,
+                                    RecognitionException e) {
+                failed.set(true);
+            }
+        };
+
+        var lexer = new Scanner(compiler)
+            .getTokens(CharStreams.fromString(chunk.text(), sourceName));
+        lexer.removeErrorListeners();
+        lexer.addErrorListener(listener);
+        lexer.setLine(chunk.line());
+        lexer.setCharPositionInLine(chunk.column());
+
+        var tree = new Parser(compiler, listener).getSyntaxTree(lexer);
+        return failed.get() ? null : tree;
+    }
+
+    /** Split {@code text} into chunks of whole toplevel statements, each
+        at least {@code chunkSize} characters long, save for the last.  */
+    static List<Chunk> split(String text, int chunkSize) {
+        var chunks = new ArrayList<Chunk>();
+        /* Where the current chunk starts.  */
+        int start = 0, startLine = 1, startColumn = 0;
+        /* Where the scan is.  */
+        int line = 1, column = 0, depth = 0;
+        boolean lineComment = false, blockComment = false;
+
+        for (int i = 0; i < text.length(); ) {
+            var cp = text.codePointAt(i);
+            var next = i + Character.charCount(cp) < text.length()
+                ? text.codePointAt(i + Character.charCount(cp)) : -1;
+            var boundary = false;
+            if (lineComment) {
+                lineComment = cp != '\n';
+            } else if (blockComment) {
+                if (cp == '*' && next == '/') {
+                    blockComment = false;
+                    /* Skip the slash, which cannot be a newline.  */
+                    i++;
+                    column++;
+                }
+            } else if (cp == '/' && next == '/') {
+                lineComment = true;
+            } else if (cp == '/' && next == '*') {
+                blockComment = true;
+                /* So that the star cannot end the comment.  */
+                i++;
+                column++;
+            } else if (cp == '{') {
+                depth++;
+            } else if (cp == '}') {
+                /* Unbalanced, so the rest is best left to the parser.  */
+                if (--depth < 0)
+                    break;
+                boundary = depth == 0;
+            } else if (cp == ';') {
+                boundary = depth == 0;
+            }
+
+            i += Character.charCount(cp);
+            if (cp == '\n') {
+                line++;
+                column = 0;
+            } else {
+                column++;
+            }
+            if (boundary && i - start >= chunkSize) {
+                chunks.add(new Chunk(text.substring(start, i), startLine,
+                                     startColumn));
+                start = i;
+                startLine = line;
+                startColumn = column;
+            }
+        }
+
+        if (start < text.length())
+            chunks.add(new Chunk(text.substring(start), startLine,
+                                 startColumn));
+        return chunks;
+    }
+}
@@ -1,28 +1,170 @@
 package rs.raf.calculator;
 
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
 import calculator.parser.CalculatorParser;
 import calculator.parser.CalculatorParser.StartContext;
+import calculator.parser.CalculatorParser.StatementContext;
 import lombok.Getter;
 
 import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.atn.DecisionInfo;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+
+/** Parses token streams into syntax trees.
+
+    <p> Parsing is done in two stages.  First, the parser predicts which
+    alternative to take using SLL prediction, which looks at less context,
+    and so is much faster than the full LL prediction ANTLR does by default,
+    but might fail on valid input.  If it does fail, whether because of a
+    syntax error or because it needed more context, the parse is thrown
+    away, and the input is parsed again with LL prediction, which reports
+    syntax errors and recovers from them.  Valid input, which is almost all
+    input, is only ever parsed once, with SLL.
 
+    <p> Inputs too large to hold in memory can be {@link
+    #parseStatements(Lexer, Predicate) parsed a toplevel statement at a
+    time}, dropping the tokens of each once it is parsed.
+
+    <p> If {@link Calculator#parseProfile} is set, the parser also records
+    how much time each decision of the grammar spent predicting, for {@link
+    #printDecisionProfile(PrintStream)}.  */
 public class Parser {
+    /** Number of decisions {@link #printDecisionProfile(PrintStream)}
+        reports.  */
+    private static final int REPORTED_DECISIONS = 10;
+
     private final Calculator compiler;
+    /** Listener the errors of LL parses are reported to.  */
+    private final ANTLRErrorListener errors;
 
     @Getter
     private CalculatorParser calculatorParser;
+    /** Whether the last parse had to fall back to LL prediction, for any
+        statement.  */
+    private boolean fellBack = false;
 
     public Parser(Calculator compiler) {
+        this(compiler, compiler.errorListener());
+    }
+
+    /** @param errors Listener to report syntax errors to, rather than the
+                      {@link Calculator#errorListener() calculator}.  */
+    Parser(Calculator compiler, ANTLRErrorListener errors) {
         this.compiler = compiler;
+        this.errors = errors;
     }
 
     public StartContext getSyntaxTree(Lexer tokens) {
         CommonTokenStream tokenStream = new CommonTokenStream(tokens);
         calculatorParser = new CalculatorParser(tokenStream);
+        calculatorParser.setProfile(compiler.isParseProfile());
+        fellBack = false;
+
+        /* Also rewinds the tokens.  */
+        return parse(calculatorParser::start, calculatorParser::reset);
+    }
+
+    /** Parse the toplevel statements of {@code tokens} one by one, handing
+        each to {@code consumer} as soon as it is parsed, and before the
+        next is read.  Only the tokens of the statement being parsed are
+        held in memory, so, if {@code tokens} reads an {@link
+        UnbufferedCharStream}, neither the text nor the syntax tree of the
+        whole input ever is.
+
+        @param tokens Lexer reading the input.
+        @param consumer Called with each statement.  Returns whether to go
+                        on to the next one.  */
+    public void parseStatements(Lexer tokens,
+                                Predicate<StatementContext> consumer) {
+        /* Tokens outlive the characters they were read from.  */
+        tokens.setTokenFactory(new CommonTokenFactory(true));
+        var tokenStream = new UnbufferedTokenStream<Token>(tokens);
+        calculatorParser = new CalculatorParser(tokenStream);
+        calculatorParser.setProfile(compiler.isParseProfile());
+        fellBack = false;
+
+        while (tokenStream.LA(1) != Token.EOF) {
+            /* Keep the tokens of the statement, in case it is parsed
+               again.  */
+            var marker = tokenStream.mark();
+            var start = tokenStream.index();
+            StatementContext statement;
+            try {
+                statement = parse(calculatorParser::statement,
+                                  () -> tokenStream.seek(start));
+                /* A statement that could not even begin to be parsed.  */
+                if (tokenStream.index() == start)
+                    tokenStream.consume();
+            } finally {
+                tokenStream.release(marker);
+            }
+            if (!consumer.test(statement))
+                return;
+        }
+    }
+
+    /** Parse a {@code rule} of the input, first with SLL prediction, then,
+        if that fails, with LL prediction, reporting errors.
+
+        @param rule Parses the rule.
+        @param rewind Rewinds the tokens to where {@code rule} starts.  */
+    private <T extends ParserRuleContext> T parse(Supplier<T> rule,
+                                                  Runnable rewind) {
+        /* Errors are reported by the second stage, if there are any.  */
         calculatorParser.removeErrorListeners();
-        calculatorParser.addErrorListener(compiler.errorListener());
+        calculatorParser.setErrorHandler(new BailErrorStrategy());
+        calculatorParser.getInterpreter()
+            .setPredictionMode(PredictionMode.SLL);
+        try {
+            return rule.get();
+        } catch (ParseCancellationException e) {
+            fellBack = true;
+        }
 
-        return calculatorParser.start();
+        rewind.run();
+        calculatorParser.addErrorListener(errors);
+        calculatorParser.setErrorHandler(new DefaultErrorStrategy());
+        calculatorParser.getInterpreter()
+            .setPredictionMode(PredictionMode.LL);
+        return rule.get();
     }
 
+    /** Print the decisions of the grammar which spent the most time
+        predicting during the last parse, which must have been {@link
+        Calculator#parseProfile profiled}.  For each, print the rule it is
+        in, how many times it was made, how many tokens SLL and LL
+        prediction looked at, how many times SLL prediction needed LL
+        prediction to decide, and how many ambiguities were found.  */
+    public void printDecisionProfile(PrintStream out) {
+        var info = calculatorParser.getParseInfo();
+        assert info != null;
+        var atn = calculatorParser.getATN();
+        var ruleNames = calculatorParser.getRuleNames();
+
+        out.printf("parse: %s prediction, %.3f ms predicting\n",
+                   fellBack ? "SLL failed, fell back to LL" : "SLL",
+                   info.getTotalTimeInPrediction() / 1e6);
+        out.printf("%8s  %-20s %8s %10s %10s %10s %8s %6s\n",
+                   "decision", "rule", "calls", "time (ms)", "SLL tokens",
+                   "LL tokens", "LL falls", "ambig");
+        Arrays.stream(info.getDecisionInfo())
+            .filter(d -> d.invocations > 0)
+            .sorted(Comparator.comparingLong((DecisionInfo d) ->
+                                             d.timeInPrediction)
+                    .reversed())
+            .limit(REPORTED_DECISIONS)
+            .forEach(d -> out.printf
+                     ("%8d  %-20s %8d %10.3f %10d %10d %8d %6d\n",
+                      d.decision,
+                      ruleNames[atn.getDecisionState(d.decision).ruleIndex],
+                      d.invocations, d.timeInPrediction / 1e6,
+                      d.SLL_TotalLook, d.LL_TotalLook, d.LL_Fallback,
+                      d.ambiguities.size()));
+    }
 }
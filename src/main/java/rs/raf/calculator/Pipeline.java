@@ -0,0 +1,198 @@
+package rs.raf.calculator;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import calculator.parser.CalculatorParser;
+import calculator.parser.CalculatorParser.StartContext;
+
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.ParserRuleContext;
+
+import rs.raf.calculator.ast.ASTPrettyPrinter;
+import rs.raf.calculator.ast.CSTtoASTConverter;
+import rs.raf.calculator.ast.StatementList;
+import rs.raf.utils.PrettyPrint;
+
+/** The stages a program goes through, from source text to execution.
+
+    <p> The source is lexed by a {@link Scanner}, parsed by a {@link Parser},
+    converted into an AST by a {@link CSTtoASTConverter}, and checked by
+    {@link Typecheck}.  Then each {@link #addPass(Consumer) pass} added,
+    such as a {@link ConstantFolder}, rewrites the checked AST, and finally
+    the {@link Backend} compiles and runs it.  Every stage stops the
+    pipeline if it reports an error.
+
+    <p> The pipeline keeps the global scope, so the programs it runs can
+    refer to what earlier ones declared, which is what the prompt, and
+    {@link #runStream(CharStream) streaming}, rely on.
+
+    <p> Stages only produce diagnostic output, such as the trees and code
+    they produce, if it was asked for, by giving a stream to {@link
+    #dumpTo(Dump, PrintStream)}.  Otherwise, none of it is even formatted.
+
+    @param <T> Type of the code the backend runs.  */
+public class Pipeline<T> {
+    /** Diagnostic output of the stages.  */
+    public enum Dump {
+        /** The syntax tree, as recovered from errors by the parser.  */
+        SYNTAX_TREE,
+        /** The AST, before type checking.  */
+        AST,
+        /** The AST, after type checking.  */
+        TYPED_AST,
+        /** The code the backend produced, and functions and globals it
+            declared, that were not dumped yet.  */
+        ASSEMBLY,
+        /** Time spent compiling and running.  */
+        TIME,
+    }
+
+    /** Compiles checked programs, and runs the result.  */
+    public interface Backend<T> {
+        /** Compile {@code program}.
+
+            @return The code of {@code program}, or {@code null} if
+                    compiling it failed, after reporting why.  */
+        T compile(StatementList program);
+
+        /** Print {@code code}, just {@link #compile(StatementList)
+            compiled}, along with whatever compiling it added that was not
+            printed yet.  */
+        void dumpAssembly(PrintStream out, T code);
+
+        /** Run {@code code}.  */
+        void run(T code);
+    }
+
+    private final Calculator c;
+    private final Backend<T> backend;
+    /** Holds the global scope, so it is kept for as long as the pipeline
+        is.  */
+    private final CSTtoASTConverter treeProcessor;
+    /** Passes rewriting checked ASTs, in order.  */
+    private final List<Consumer<StatementList>> passes = new ArrayList<>();
+    /** Where each requested diagnostic goes.  */
+    private final Map<Dump, PrintStream> sinks = new EnumMap<>(Dump.class);
+
+    public Pipeline(Calculator calculator, Backend<T> backend) {
+        this.c = calculator;
+        this.backend = backend;
+        this.treeProcessor = new CSTtoASTConverter(calculator);
+    }
+
+    /** Print {@code dump} into {@code out} from now on.  */
+    public void dumpTo(Dump dump, PrintStream out) {
+        sinks.put(dump, out);
+    }
+
+    /** Run {@code pass} over each checked program, after the passes added
+        before it.  */
+    public void addPass(Consumer<StatementList> pass) {
+        passes.add(pass);
+    }
+
+    /** Run the program in {@code source}, read whole.  When parsing {@link
+        Calculator#parallelParse in parallel}, the {@link ParallelParser}
+        gets the first go at it.  */
+    public void run(CharStream source) {
+        var tree = c.isParallelParse()
+            ? new ParallelParser(c).getSyntaxTree(source)
+            : null;
+        if (tree == null) {
+            /* Including when some chunk had errors, so that they are
+               reported as always.  */
+            source.seek(0);
+            tree = parse(source);
+        }
+        /* ANTLR error recovers, so lets print it in its error recovered
+           form.  */
+        dumpSyntaxTree(tree);
+        if (c.hadError()) return;
+
+        run((StatementList) tree.accept(treeProcessor));
+    }
+
+    /** @return The syntax tree of {@code source}, parsed whole.  */
+    private StartContext parse(CharStream source) {
+        var tokens = new Scanner(c).getTokens(source);
+        var parser = new Parser(c);
+        var tree = parser.getSyntaxTree(tokens);
+        if (c.isParseProfile())
+            parser.printDecisionProfile(System.err);
+        return tree;
+    }
+
+    /** Run the program in {@code source} a toplevel statement at a time,
+        running each before reading the next, like the prompt does with
+        lines.  Neither the text nor the trees of the whole program are ever
+        held in memory, only those of the statement being run, and the
+        declarations later statements might refer to.  Statements after the
+        first one with an error are not read at all.
+
+        @param source Source of the program, best an {@link
+                      org.antlr.v4.runtime.UnbufferedCharStream}.  */
+    public void runStream(CharStream source) {
+        var tokens = new Scanner(c).getTokens(source);
+        var parser = new Parser(c);
+        parser.parseStatements(tokens, statement -> {
+                dumpSyntaxTree(statement);
+                if (c.hadError())
+                    return false;
+                run(treeProcessor.visitToplevelStatement(statement));
+                return !c.hadError() && !c.hadRuntimeError();
+            });
+        if (c.isParseProfile())
+            parser.printDecisionProfile(System.err);
+    }
+
+    /** Check, rewrite, compile and run {@code program}, which was just
+        parsed.  */
+    private void run(StatementList program) {
+        dumpAst(Dump.AST, "AST:", program);
+        if (c.hadError()) return;
+
+        new Typecheck(c).typecheck(program);
+        dumpAst(Dump.TYPED_AST, "tAST:", program);
+        if (c.hadError()) return;
+
+        passes.forEach(pass -> pass.accept(program));
+
+        var start = System.nanoTime();
+        var code = backend.compile(program);
+        var compiled = System.nanoTime();
+        if (code == null)
+            return;
+        /* The compilers cannot emit errors.  */
+        assert !c.hadError();
+        var asm = sinks.get(Dump.ASSEMBLY);
+        if (asm != null)
+            backend.dumpAssembly(asm, code);
+
+        var started = System.nanoTime();
+        backend.run(code);
+        var time = sinks.get(Dump.TIME);
+        if (time != null)
+            time.printf("compile: %.3f ms, run: %.3f ms\n",
+                        (compiled - start) / 1e6,
+                        (System.nanoTime() - started) / 1e6);
+    }
+
+    private void dumpSyntaxTree(ParserRuleContext tree) {
+        var out = sinks.get(Dump.SYNTAX_TREE);
+        if (out != null)
+            out.println("Syntax Tree: " + PrettyPrint.prettyPrintTree(tree, CalculatorParser.ruleNames));
+    }
+
+    private void dumpAst(Dump dump, String title, StatementList program) {
+        var out = sinks.get(dump);
+        if (out == null)
+            return;
+        out.println(title);
+        program.prettyPrint(new ASTPrettyPrinter(out));
+    }
+}
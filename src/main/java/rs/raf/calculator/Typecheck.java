@@ -19,6 +19,21 @@ public class Typecheck {
         block.getStmts().forEach(this::typecheck);
     }
 
+    /** Typecheck the body of {@code fn}, whose own declaration was already
+        checked.  Used when compiling {@link Calculator#lazy lazily}, where
+        bodies are left unchecked until they are compiled.
+
+        @param fn Function whose body to check.  */
+    public void typecheckBody(FunctionDeclaration fn) {
+        var oldFunctionDeclaration = currentFunction;
+        try {
+            currentFunction = fn;
+            typecheck(fn.getBody());
+        } finally {
+            currentFunction = oldFunctionDeclaration;
+        }
+    }
+
     private void typecheck(Statement stmt_) {
         switch (stmt_) {
             case PrintStmt stmt -> {
@@ -40,7 +55,10 @@ public class Typecheck {
                 try {
                     currentFunction = functionDeclaration;
 
-                    if (functionDeclaration.getBody() != null) {
+                    /* When compiling lazily, the body is checked when it
+                       is compiled.  See typecheckBody.  */
+                    if (functionDeclaration.getBody() != null
+                        && !c.isLazy()) {
                         typecheck(functionDeclaration.getBody());
                     }
                 } finally {
@@ -29,11 +29,26 @@ public class CSTtoASTConverter extends AbstractParseTreeVisitor<Tree> implements
 
     @Override
     public Tree visitStart(StartContext ctx) {
+        return convertToplevel(ctx, ctx.statement());
+    }
+
+    /** Convert a single toplevel statement, parsed on its own rather than
+        as part of a {@code start}, when {@link
+        rs.raf.calculator.Parser#parseStatements streaming}.
+
+        @return A statement list holding just the converted statement.  */
+    public StatementList visitToplevelStatement(StatementContext ctx) {
+        return convertToplevel(ctx, List.of(ctx));
+    }
+
+    /** Convert toplevel {@code statements}, which {@code ctx} spans.  */
+    private StatementList convertToplevel(ParserRuleContext ctx,
+                                          List<StatementContext> statements) {
         /* We don't open a new scope here, because we should be in the global
            scope we opened in the constructor.  */
         assert environments.size() == 1;
         var oldGlobalEnvironment = new HashMap<>(environments.getFirst());
-        var stmts = ctx.statement()
+        var stmts = statements
             /* Take all the parsed statements, ... */
             .stream()
             /* ... visit them using this visitor, ... */
@@ -10,7 +10,7 @@ import lombok.*;
 public final class VarRef extends Expr {
     private Declaration variable;
 
-    protected VarRef(Location location, Declaration variable) {
+    public VarRef(Location location, Declaration variable) {
         super(location);
         this.variable = variable;
     }
@@ -0,0 +1,254 @@
+package rs.raf.calculator.compiler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import rs.raf.calculator.ast.*;
+
+/** Finds the functions nested in a toplevel function whose closures can be
+    built once, by toplevel code, instead of on every call of the function
+    they are declared in.
+
+    <p> A nested function that captures nothing can be <i>hoisted</i>: the
+    {@link Compiler} declares it as a global, unreachable by name from
+    anywhere but where it was declared, and builds its closure right before
+    that of the toplevel function.  Captures of hoisted functions are
+    accesses of globals, so hoisting a function might let the functions
+    referring to it be hoisted too.
+
+    <p> A nested function that does capture variables can still be hoisted
+    once it is <i>lifted</i>: each variable it captures becomes an extra
+    parameter, and each call of it passes the variable along.  This is only
+    possible if the function is only ever called by name, and only directly
+    in the function it is declared in, or in itself, as only there are the
+    variables it captures in scope.  As values are immutable, the callee
+    cannot tell the difference.
+
+    <p> This analysis rewrites the AST of lifted functions and their calls in
+    place, so it must run after type checking the whole function, and hence
+    never when compiling {@link rs.raf.calculator.Calculator#lazy lazily}.  */
+final class ClosureLifter {
+    /** Tells whether a variable is global.  */
+    private final Predicate<Declaration> isGlobal;
+    /** Nested functions, in order of declaration.  Functions come before
+        the functions nested in them.  */
+    private final List<FunctionDeclaration> nested = new ArrayList<>();
+    /** The function each nested function is declared directly in.  */
+    private final Map<FunctionDeclaration, FunctionDeclaration> parents =
+        new IdentityHashMap<>();
+    /** Calls of each function by name.  */
+    private final Map<FunctionDeclaration, List<FunctionCall>> calls =
+        new IdentityHashMap<>();
+    /** Functions referred to other than by being called, or called from
+        where the variables they capture might not be in scope.  */
+    private final Set<FunctionDeclaration> unliftable = identitySet();
+
+    private ClosureLifter(Predicate<Declaration> isGlobal) {
+        this.isGlobal = isGlobal;
+    }
+
+    /** Find the functions nested in {@code fn} that can be hoisted, and lift
+        those of them that need to be lifted first.
+
+        @param fn Toplevel function to analyze.
+        @param isGlobal Tells whether a variable is global.  {@code fn} must
+                        already be.
+        @return The functions to hoist, functions before the functions
+                nested in them.  */
+    static List<FunctionDeclaration> lift(FunctionDeclaration fn,
+                                          Predicate<Declaration> isGlobal) {
+        var lifter = new ClosureLifter(isGlobal);
+        lifter.scan(fn.getBody(), fn);
+        return lifter.liftAll();
+    }
+
+    /** Decide which functions to hoist, and lift them.  */
+    private List<FunctionDeclaration> liftAll() {
+        var free = new IdentityHashMap<FunctionDeclaration, List<Declaration>>();
+        for (var fn : nested)
+            free.put(fn, FreeVariables.of(fn, isGlobal));
+
+        /* Start from hoisting everything, and give up on functions that
+           capture non-hoisted variables but cannot be lifted, until there
+           are no more.  */
+        var hoisted = identitySet();
+        hoisted.addAll(nested);
+        for (boolean changed = true; changed; ) {
+            changed = false;
+            for (var fn : nested)
+                if (hoisted.contains(fn) && unliftable.contains(fn)
+                    && !captures(free.get(fn), hoisted).isEmpty()) {
+                    hoisted.remove(fn);
+                    changed = true;
+                }
+        }
+
+        var lifted = new IdentityHashMap<FunctionDeclaration, List<Declaration>>();
+        for (var fn : nested) {
+            if (!hoisted.contains(fn))
+                continue;
+            var captures = captures(free.get(fn), hoisted);
+            if (captures.isEmpty())
+                continue;
+            lifted.put(fn, captures);
+            for (var call : calls.get(fn)) {
+                var arguments = new ArrayList<>(call.getArguments());
+                for (var capture : captures) {
+                    var ref = new VarRef(call.getLocation(), capture);
+                    ref.setResultType(capture.getDeclaredType());
+                    arguments.add(ref);
+                }
+                call.setArguments(arguments);
+            }
+        }
+
+        /* Innermost functions first, so that, when renaming the captures of
+           a function to its new parameters, the arguments passed to the
+           functions nested in it are renamed too.  */
+        for (var fn : nested.reversed())
+            if (lifted.containsKey(fn))
+                addParameters(fn, lifted.get(fn));
+
+        return nested.stream().filter(hoisted::contains).toList();
+    }
+
+    /** @return Those of {@code free} which are not hoisted functions.  */
+    private static List<Declaration> captures(List<Declaration> free,
+                                              Set<FunctionDeclaration> hoisted) {
+        return free.stream()
+            .filter(d -> !(d instanceof FunctionDeclaration fn
+                           && hoisted.contains(fn)))
+            .toList();
+    }
+
+    /** Turn the {@code captures} of {@code fn} into parameters appended to
+        its own.  */
+    private static void addParameters(FunctionDeclaration fn,
+                                      List<Declaration> captures) {
+        var renames = new IdentityHashMap<Declaration, Declaration>();
+        for (var capture : captures) {
+            var param = new Declaration(fn.getLocation(), capture.getName(),
+                                        null);
+            param.setDeclaredType(capture.getDeclaredType());
+            fn.getArgs().getArguments().add(param);
+            renames.put(capture, param);
+        }
+        /* The type is shared by all references to fn.  */
+        var type = (FunctionType) fn.getDeclaredType();
+        type.setArgumentTypes(fn.getArgs().getArguments().stream()
+                              .map(Declaration::getDeclaredType)
+                              .toList());
+        rename(fn.getBody(), renames);
+    }
+
+    /** Record the nested functions in {@code stmt}, and how they are used.
+
+        @param stmt Statement to scan.
+        @param enclosing The function {@code stmt} is in.  */
+    private void scan(Statement stmt, FunctionDeclaration enclosing) {
+        switch (stmt) {
+        case FunctionDeclaration fn -> {
+            nested.add(fn);
+            parents.put(fn, enclosing);
+            calls.put(fn, new ArrayList<>());
+            scan(fn.getBody(), fn);
+        }
+        case Declaration decl -> scan(decl.getValue(), enclosing);
+        case ExprStmt es -> scan(es.getExpr(), enclosing);
+        case PrintStmt print ->
+            print.getArgs().forEach(e -> scan(e, enclosing));
+        case ReturnStatement ret -> {
+            if (ret.getValue() != null)
+                scan(ret.getValue(), enclosing);
+        }
+        case StatementList block ->
+            block.getStmts().forEach(s -> scan(s, enclosing));
+        }
+    }
+
+    /** Record how the nested functions are used in {@code expr}.
+
+        @param expr Expression to scan.
+        @param enclosing The function {@code expr} is in.  */
+    private void scan(Expr expr, FunctionDeclaration enclosing) {
+        switch (expr) {
+        case VarRef var -> {
+            /* Not called, so it is passed around as a value.  */
+            if (var.getVariable() instanceof FunctionDeclaration fn)
+                unliftable.add(fn);
+        }
+        case FunctionCall call -> {
+            if (call.getFunction() instanceof VarRef var
+                && var.getVariable() instanceof FunctionDeclaration fn
+                && calls.containsKey(fn)) {
+                calls.get(fn).add(call);
+                if (enclosing != fn && enclosing != parents.get(fn))
+                    unliftable.add(fn);
+            } else
+                scan(call.getFunction(), enclosing);
+            call.getArguments().forEach(e -> scan(e, enclosing));
+        }
+        case VectorExpr vector ->
+            vector.getElements().forEach(e -> scan(e, enclosing));
+        case ErrorExpr ignored -> {}
+        case NumberLit ignored -> {}
+        case Expr binaryExpr -> {
+            scan(binaryExpr.getLhs(), enclosing);
+            scan(binaryExpr.getRhs(), enclosing);
+        }
+        }
+    }
+
+    /** Make the references in {@code stmt} to the keys of {@code renames}
+        refer to their values instead.  */
+    private static void rename(Statement stmt,
+                               Map<Declaration, Declaration> renames) {
+        switch (stmt) {
+        case FunctionDeclaration fn -> rename(fn.getBody(), renames);
+        case Declaration decl -> rename(decl.getValue(), renames);
+        case ExprStmt es -> rename(es.getExpr(), renames);
+        case PrintStmt print ->
+            print.getArgs().forEach(e -> rename(e, renames));
+        case ReturnStatement ret -> {
+            if (ret.getValue() != null)
+                rename(ret.getValue(), renames);
+        }
+        case StatementList block ->
+            block.getStmts().forEach(s -> rename(s, renames));
+        }
+    }
+
+    /** Make the references in {@code expr} to the keys of {@code renames}
+        refer to their values instead.  */
+    private static void rename(Expr expr,
+                               Map<Declaration, Declaration> renames) {
+        switch (expr) {
+        case VarRef var -> {
+            var renamed = renames.get(var.getVariable());
+            if (renamed != null)
+                var.setVariable(renamed);
+        }
+        case FunctionCall call -> {
+            rename(call.getFunction(), renames);
+            call.getArguments().forEach(e -> rename(e, renames));
+        }
+        case VectorExpr vector ->
+            vector.getElements().forEach(e -> rename(e, renames));
+        case ErrorExpr ignored -> {}
+        case NumberLit ignored -> {}
+        case Expr binaryExpr -> {
+            rename(binaryExpr.getLhs(), renames);
+            rename(binaryExpr.getRhs(), renames);
+        }
+        }
+    }
+
+    private static Set<FunctionDeclaration> identitySet() {
+        return Collections.newSetFromMap(new IdentityHashMap<>());
+    }
+}
@@ -1,9 +1,16 @@
 package rs.raf.calculator.compiler;
 
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
 
 import lombok.RequiredArgsConstructor;
 import rs.raf.calculator.Calculator;
+import rs.raf.calculator.ConstantFolder;
+import rs.raf.calculator.Typecheck;
 import rs.raf.calculator.ast.*;
 import rs.raf.calculator.compiler.InTranslationBlob.UpvalSlotInfo;
 import rs.raf.calculator.vm.*;
@@ -35,6 +42,21 @@ import static rs.raf.calculator.vm.Instruction.Code.*;
     Instruction.Code#SET_GLOBAL <code>SET_GLOBAL</code>} or {@link
     Instruction.Code#SET_LOCAL <code>SET_LOCAL</code>}.
 
+    <p> Closures of functions nested in other functions would hence be built
+    on every call of the enclosing function.  Where {@link ClosureLifter}
+    finds that they need not be, they are instead built once, before the
+    enclosing toplevel function, and saved as globals.
+
+    <p> Given {@link Calculator#inline}, calls of small functions are replaced
+    by their bodies, with the arguments and locals of the function given
+    fresh slots among the locals of the caller.  Only functions that are
+    referred to by name, and hence known when compiling, can be inlined, and
+    only if they capture nothing, do not call themselves, and have a body
+    that is a few statements ending with a {@code return} of a value.  Given
+    a {@link Calculator#profile profile}, nothing is inlined into functions
+    it never saw called, while calls it saw made often, or of hot functions,
+    may inline larger bodies.
+
     <p> Variables in the toplevel blob are global.  Their values are accessed
     using {@link Instruction.Code#GET_GLOBAL <code>GET_GLOBAL</code>} and
     modified using {@link Instruction.Code#SET_GLOBAL <code>SET_GLOBAL</code>}.
@@ -67,23 +89,81 @@ import static rs.raf.calculator.vm.Instruction.Code.*;
 
     </ol>
 
-    This algorithm is implemented in {@link #findLocalInsn(InTranslationBlob,
-    Declaration)}.  It is called <code>findLocal<b>Insn</b></code> because it
-    actually returns one of {@code GET_LOCAL n} or {@code GET_UPVALUE n}, where
-    {@code n} is in the slot in the appropriate table, and the opcode is {@code
-    GET_LOCAL} if the reference is to a local, otherwise {@code GET_UPVALUE}.
+    This algorithm is implemented in {@link
+    InTranslationBlob#findLocal(Declaration)}, so that all backends share it,
+    and used here by {@link #findLocalInsn(InTranslationBlob, Declaration)}.
+    It is called <code>findLocal<b>Insn</b></code> because it actually returns
+    one of {@code GET_LOCAL n} or {@code GET_UPVALUE n}, where {@code n} is in
+    the slot in the appropriate table, and the opcode is {@code GET_LOCAL} if
+    the reference is to a local, otherwise {@code GET_UPVALUE}.
 */
 @RequiredArgsConstructor
 public class Compiler {
-    /* This class should not emit errors.  */
+    /* This class should not emit errors, except for the type errors of
+       function bodies it compiles lazily.  */
     /** Wider compilation context.  */
     private final Calculator c;
 
+    /** Thrown when the body of a function compiled {@link Calculator#lazy
+        lazily} turns out to have type errors, as it is about to be called.
+        The errors were already reported.  */
+    @SuppressWarnings("serial")
+    public static final class BodyErrorException extends RuntimeException {
+        /** @param fn Function whose body is erroneous.  */
+        BodyErrorException(FunctionDeclaration fn) {
+            super("errors in the body of '%s'".formatted(fn.getName()));
+        }
+    }
+
     /** A "sphagetti-stack" of blobs of code.  Each blob of code, except for
         the outermost one, is related to a function, and hence has a table of
         local values, as well as a table of "upvalues", which are variables
         copied from the outer scope.  */
-    private InTranslationBlob blob = null;
+    private InTranslationBlob<Blob> blob = null;
+
+    /** Calls of functions whose bodies have at most this many statements
+        and expressions may be inlined.  */
+    private static final int INLINE_BUDGET = 24;
+    /** Calls are not inlined into code inlined from this many nested
+        calls.  */
+    private static final int MAX_INLINE_DEPTH = 4;
+    /** Calls are not inlined into functions that already had this many
+        statements and expressions inlined into them.  */
+    private static final int MAX_INLINED_SIZE = 128;
+    /** How many times larger than otherwise bodies inlined into calls the
+        profile finds hot may be, as may be the callers they are inlined
+        into.  */
+    private static final int HOT_INLINE_FACTOR = 4;
+
+    /** A decision on whether to inline a call.
+
+        @param call Location of the callee in the call.
+        @param callee Name of the called function.
+        @param reason Why the call was not inlined, or {@code null} if it
+                      was.  */
+    private record InliningDecision(Location call, String callee,
+                                    String reason) {}
+
+    /** Functions whose bodies are being compiled or inlined, innermost
+        last.  Calls of these are not inlined, as they are recursive.  */
+    private final ArrayList<FunctionDeclaration> enclosingFunctions =
+        new ArrayList<>();
+    /** Function whose body is being compiled, rather than inlined, or
+        {@code null} in toplevel code.  */
+    private FunctionDeclaration compiling = null;
+    /** Number of calls whose inlined bodies are being compiled.  */
+    private int inlineDepth = 0;
+    /** Number of statements and expressions inlined into the function being
+        compiled so far.  */
+    private int inlinedSize = 0;
+    /** Every inlining decision made, in order.  */
+    private final ArrayList<InliningDecision> inliningDecisions =
+        new ArrayList<>();
+
+    /** Nested functions built by toplevel code, into globals, by {@link
+        #hoistNestedFunctions(FunctionDeclaration)}.  */
+    private final Set<FunctionDeclaration> hoisted =
+        Collections.newSetFromMap(new IdentityHashMap<>());
 
     /** Emit a zero argument instruction with opcode {@code opcode} into the
         current top in-translation blob.
@@ -110,6 +190,23 @@ public class Compiler {
         return blob.getCode().addInsn(insn);
     }
 
+    /** Run the enabled optimizations over {@code code}, and then {@link
+        Blob#finish(ConstantPool) finish} it.  Given a profile,
+        superinstructions are fused in hot functions even if not enabled, as
+        the time spent fusing them pays off there.
+
+        @param code Fully emitted blob.
+        @param function Function whose code {@code code} is, or {@code null}
+                        for toplevel code.  */
+    private void finishBlob(Blob code, Function function) {
+        if (c.isPeephole() || (function != null && function.isHot())) {
+            var optimized = Peephole.optimize(code.code());
+            code.code().clear();
+            code.code().addAll(optimized);
+        }
+        code.finish(c.getConstantPool());
+    }
+
     /** Compiles a single global scope statement list and produces a blob of
         code for it that the VM can interpret immediately.  Populates the
         function table if a function is declared within {@code input}.
@@ -122,7 +219,7 @@ public class Compiler {
         assert !(c.hadError() || c.hadRuntimeError());
         /* This function should only be called for the global scope.  */
         assert blob == null;
-        var outerBlob = new InTranslationBlob(new Blob(),
+        var outerBlob = new InTranslationBlob<>(new Blob(),
                                               null,
                                               null,
                                               blob);
@@ -132,6 +229,8 @@ public class Compiler {
         compileBlock(input);
         /* Used as a signal to our VM that we're done with the blob.  */
         emit(FINISH_OUTER);
+        finishBlob(outerBlob.getCode(), null);
+        Verifier.verify(c, outerBlob.getCode());
 
         /* We must've come back down to the bottom of the stack.  */
         assert blob == outerBlob;
@@ -172,7 +271,9 @@ public class Compiler {
         @return An instruction that pops the top of the stack into the
         newly-allocated slot.  */
     private Instruction declareVariable(Declaration declaration) {
-        if (blob.getPreviousBlob() == null) {
+        /* Only the toplevel blob has no local table.  Note that a lazily
+           compiled function has no previous blob either.  */
+        if (blob.getLocalSlots() == null) {
             /* New global variable.  */
             return new Instruction(SET_GLOBAL, c.declareGlobal(declaration));
         } else {
@@ -191,21 +292,112 @@ public class Compiler {
         the needed number of locals, and saves that information into the
         function table.
 
+        <p> When compiling {@link Calculator#lazy lazily}, only the upvalues
+        are determined here, while the blobs of the enclosing functions are
+        still around to allocate them in.  The body is left to be type
+        checked and compiled when the function is first called, unless the
+        {@link Calculator#profile profile} says it is hot.  See {@link
+        #compileBody(Function, InTranslationBlob)}.
+
         @param fn Function declaration to compile.
 
         @return The function table slot given to this function.  */
     private int compileFunction(FunctionDeclaration fn) {
         var function = new Function();
         function.setFuncDecl(fn);
+        function.setHot(c.getProfile() != null
+                        && c.getProfile().isHot(fn, c.getJitThreshold()));
+        var newFnId = c.addFunction(function);
+
+        if (c.isLazy()) {
+            /* Every variable the body, or any function nested in it, refers
+               to, and that is neither global nor declared within, must come
+               from an enclosing function.  The function itself counts as
+               declared within, as its body refers to it through its own
+               closure.  */
+            var upvalSlots = new IdentityHashMap<Declaration, UpvalSlotInfo>();
+            var free = FreeVariables.of(fn,
+                                        d -> c.getGlobalSlot(d).isPresent());
+            for (var decl : free)
+                upvalSlots.put(decl, new UpvalSlotInfo(upvalSlots.size(),
+                                                       blob.findLocal(decl)));
+            if (FreeVariables.refersToItself(fn))
+                upvalSlots.put(fn, new UpvalSlotInfo
+                               (upvalSlots.size(),
+                                new UpvalueMapEntry(UpvalueMapEntry
+                                                    .UpvalueLocation.SELF,
+                                                    0)));
+            setUpvalues(function, upvalSlots);
+            /* With all of its upvalues known, the body needs nothing from the
+               enclosing blobs.  */
+            function.setPendingBody
+                (() -> compileBody(function,
+                                   new InTranslationBlob<>(new Blob(),
+                                                           new IdentityHashMap<>(),
+                                                           upvalSlots,
+                                                           null)));
+            /* Hot functions are going to be called anyway, so do not hold
+               up their first call.  */
+            if (function.isHot())
+                function.ensureCompiled();
+            return newFnId;
+        }
 
         /* Push a new in-translation blob, suspending the translation of the
            previous one.  */
-        var functionBlob = new InTranslationBlob(new Blob(),
+        var functionBlob = new InTranslationBlob<>(new Blob(),
                                                  new IdentityHashMap<>(),
                                                  new IdentityHashMap<>(),
                                                  blob);
+        compileBody(function, functionBlob);
+        return newFnId;
+    }
+
+    /** Emit toplevel code building the closures of the functions nested in
+        the toplevel function {@code fn} which {@link ClosureLifter} finds can
+        be hoisted, into globals of their own.  Their declarations are then
+        skipped when compiling {@code fn}.
+
+        @param fn Toplevel function, already declared, about to be compiled.  */
+    private void hoistNestedFunctions(FunctionDeclaration fn) {
+        var functions = ClosureLifter.lift(fn, d -> c.getGlobalSlot(d)
+                                           .isPresent());
+        hoisted.addAll(functions);
+        /* Declare all of them first, as they may refer to each other.  */
+        var slots = functions.stream().map(c::declareGlobal).toList();
+        for (int i = 0; i < functions.size(); i++) {
+            emit(BUILD_CLOSURE, compileFunction(functions.get(i)));
+            emit(SET_GLOBAL, slots.get(i));
+        }
+    }
+
+    /** Compile the body of {@code function} into {@code functionBlob}, and
+        populate the rest of the function data.  When compiling lazily, also
+        type check it first, and populate nothing that was populated when the
+        function was declared.
+
+        @param function Function to compile the body of.
+        @param functionBlob In-translation blob to compile the body in.  */
+    private void compileBody(Function function,
+                             InTranslationBlob<Blob> functionBlob) {
+        var fn = function.getFuncDecl();
+        if (c.isLazy()) {
+            new Typecheck(c).typecheckBody(fn);
+            if (c.hadError())
+                throw new BodyErrorException(fn);
+            if (c.isFold())
+                new ConstantFolder(c).foldBody(fn);
+        }
+
+        /* Push.  The previous blob is that of the enclosing function when
+           compiling eagerly, or, when compiling lazily, whatever was being
+           compiled when the function got called, usually nothing.  */
+        var previousBlob = blob;
         blob = functionBlob;
-        var newFnId = c.addFunction(function);
+        /* The function refers to itself through its own closure, as the
+           variable holding that might not be assigned yet, or, when
+           compiling lazily, be out of reach.  */
+        blob.setSelf(fn);
 
         /* Declare function arguments into the first few slots.  We do this
            because the VM will, in response to CALL, place the arguments it
@@ -215,29 +407,68 @@ public class Compiler {
         /* Compile body as a usual block.  We've set up the compiler state so
            that the code the compiler emits while translating this function
            ends up in the new function.  */
+        enclosingFunctions.add(fn);
+        var outerCompiling = compiling;
+        compiling = fn;
+        var outerInlinedSize = inlinedSize;
+        inlinedSize = 0;
         compileBlock(fn.getBody());
+        inlinedSize = outerInlinedSize;
+        compiling = outerCompiling;
+        enclosingFunctions.removeLast();
 
         /* Add a void return.  If function is not void, well, that's UB.  */
         emit(RETURN_VOID);
+        var localCount = functionBlob.getMaxLocalDepth();
+        /* Before fusing superinstructions, which it does not know.  */
+        if (c.isOptimize())
+            localCount = SsaOptimizer.optimize
+                (c, functionBlob.getCode().code(),
+                 functionBlob.getCode().constantTable(),
+                 fn.getArgs().getArguments().size(), localCount);
+        finishBlob(functionBlob.getCode(), function);
 
         /* Populate the function data.  */
         function.setCode(functionBlob.getCode());
-        function.setLocalCount(functionBlob.getMaxLocalDepth());
+        function.setLocalCount(localCount);
+        if (!c.isLazy())
+            setUpvalues(function, functionBlob.getUpvalSlots());
+        /* When compiling lazily, the upvalues were set up when the function
+           was declared, and nothing new could have been captured since.  */
+        assert function.getUpvalueMap().length
+            == functionBlob.getUpvalSlots().size();
+        /* Now that the function is complete, check what we generated.  */
+        Verifier.verify(c, function);
+
+        /* Pop.  */
+        blob = previousBlob;
+    }
+
+    /** Set up the upvalue map of {@code function}, and the types of its
+        upvalues.
 
-        /* Set up the upvalue map.  */
-        var upvals = new UpvalueMapEntry[functionBlob.getUpvalSlots().size()];
+        @param function Function to set up.
+        @param upvalSlots Upvalue slots of its body.  */
+    private static void
+        setUpvalues(Function function,
+                    IdentityHashMap<Declaration, UpvalSlotInfo> upvalSlots)
+    {
+        var upvals = new UpvalueMapEntry[upvalSlots.size()];
         function.setUpvalueMap(upvals);
-        functionBlob.getUpvalSlots()
+        upvalSlots
             .values()
             /* The function blob contains a mapping from declarations to the
                slots they are in.  This time, we only care about the slots.
                For each of those slots. set it up in the new upvalue map using
                the upvalue reference we computed earlier.  */
             .forEach(s -> { upvals[s.slotNr()] = s.entry(); });
-
-        /* Pop.  */
-        blob = blob.getPreviousBlob();
-        return newFnId;
+        /* ... and their types, which the JIT needs.  */
+        var upvalTypes = new Type[upvals.length];
+        function.setUpvalueTypes(upvalTypes);
+        upvalSlots
+            .forEach((decl, s) -> {
+                    upvalTypes[s.slotNr()] = decl.getDeclaredType();
+                });
     }
 
     /** Generate the instruction for accessing the local variable or upvalue
@@ -253,37 +484,16 @@ public class Compiler {
 
         @return An instruction that accesses {@code decl} if placed in {@code
                 blob}.  */
-    private Instruction findLocalInsn(InTranslationBlob blob,
+    private Instruction findLocalInsn(InTranslationBlob<Blob> blob,
                                       Declaration decl) {
         /* We already checked globals in getVarInsn.  */
-        var locals = blob.getLocalSlots();
-        var upvals = blob.getUpvalSlots();
-        assert locals != null && upvals != null;
-
-        var local = locals.get(decl);
-        if (local != null)
-            return new Instruction(GET_LOCAL, local);
-
-        /* So, this is a upvalue.  But is it new?  */
-        var upval = blob.getUpvalSlots().get(decl);
-        if (upval != null)
-            /* No, it isn't.  */
-            return new Instruction(GET_UPVALUE, upval.slotNr());
-
-        /* It is.  */
-        var inSuperscope = findLocalInsn(blob.getPreviousBlob(), decl);
-        var upvalSlot = blob.getUpvalSlots().size();
-
-        var upvalME = new UpvalueMapEntry(switch (inSuperscope.getOpcode()) {
-            case GET_LOCAL -> UpvalueMapEntry.UpvalueLocation.LOCAL;
-            case GET_UPVALUE -> UpvalueMapEntry.UpvalueLocation.UPVALUE;
-            default -> throw new IllegalArgumentException();
-            }, Math.toIntExact(inSuperscope.getArg1()));
-
-        var oldSlot = blob.getUpvalSlots()
-            .put(decl, new UpvalSlotInfo(upvalSlot, upvalME));
-        assert oldSlot == null;
-        return new Instruction(GET_UPVALUE, upvalSlot);
+        var ref = blob.findLocal(decl);
+        return new Instruction(switch (ref.loc()) {
+            case LOCAL -> GET_LOCAL;
+            case UPVALUE -> GET_UPVALUE;
+            /* Only found in upvalue maps.  */
+            case SELF -> throw new IllegalStateException();
+            }, ref.slot());
     }
 
     /** Generate the instruction for access to the variable {@code decl} in the
@@ -317,12 +527,23 @@ public class Compiler {
             print.getArgs().forEach
                 (expr -> {
                     compileExpr(expr);
+                    boxIfNumber(expr);
                     emit(PRINT);
                 });
         }
 
         case ReturnStatement ret -> {
-            if (ret.getValue() != null) {
+            if (ret.getValue() instanceof FunctionCall call) {
+                if (tryInline(call)) {
+                    emit(RETURN);
+                    break;
+                }
+                /* A call in tail position.  Its invocation can replace that
+                   of the current function.  */
+                compileExpr(call.getFunction());
+                call.getArguments().forEach(this::compileExpr);
+                emit(TAIL_CALL, call.getArguments().size());
+            } else if (ret.getValue() != null) {
                 compileExpr(ret.getValue());
                 emit(RETURN);
             } else
@@ -330,7 +551,12 @@ public class Compiler {
         }
 
         case FunctionDeclaration fn -> {
+            if (hoisted.contains(fn))
+                /* Built by toplevel code already.  */
+                break;
             var newVarSetter = declareVariable(fn);
+            if (blob.getLocalSlots() == null && !c.isLazy())
+                hoistNestedFunctions(fn);
             var fnId = compileFunction(fn);
             emit(BUILD_CLOSURE, fnId);
             emit(newVarSetter);
@@ -363,6 +589,8 @@ public class Compiler {
         switch (expr) {
         case ErrorExpr ignored -> throw new IllegalStateException();
         case FunctionCall call -> {
+            if (tryInline(call))
+                break;
             compileExpr(call.getFunction());
             call.getArguments().forEach(this::compileExpr);
             emit(FUNCTION_CALL, call.getArguments().size());
@@ -370,13 +598,14 @@ public class Compiler {
         case VarRef var ->
             emit(getVarInsn(var.getVariable()));
         case VectorExpr vector -> {
-            vector.getElements().forEach(this::compileExpr);
+            vector.getElements().forEach(element -> {
+                    compileExpr(element);
+                    boxIfNumber(element);
+                });
             emit(VECTOR_CONSTRUCT, vector.getElements().size());
         }
         case NumberLit numlit -> {
-            var constantNumber = blob.getCode().constantTable().size();
-            blob.getCode().constantTable().add(numlit.getValue());
-            emit(PUSH_CONSTANT, constantNumber);
+            emit(PUSH_CONSTANT, blob.getCode().addConstant(numlit.getValue()));
         }
         case Expr binaryExpr -> {
             /* Must not be a subclass.  */
@@ -394,4 +623,236 @@ public class Compiler {
         }
         }
     }
+
+    /** If {@link Calculator#inline inlining}, and {@code call} is of a
+        function known when compiling, decide whether to inline it, record
+        the decision, and, if positive, emit the body of the function in
+        place of the call.  Either way, the value of the call is left on the
+        stack as if it were compiled with {@link #compileExpr(Expr)}.
+
+        @param call Call to inline.
+        @return Whether {@code call} was inlined.  Otherwise, no code was
+                emitted.  */
+    private boolean tryInline(FunctionCall call) {
+        if (!c.isInline() || c.isLazy()
+            || !(call.getFunction() instanceof VarRef var
+                 && var.getVariable() instanceof FunctionDeclaration callee))
+            return false;
+        var reason = whyNotInline(callee);
+        inliningDecisions.add(new InliningDecision(var.getLocation(),
+                                                   callee.getName(), reason));
+        if (reason != null)
+            return false;
+
+        var oldLocalDepth = blob.getLocalDepth();
+        var params = callee.getArgs().getArguments();
+        var locals = new ArrayList<Declaration>(params);
+        /* Compute all arguments before declaring any parameter, as the
+           arguments might inline calls of the same function.  As values
+           are immutable, arguments that are locals already can be shared
+           by the parameter, rather than copied.  */
+        var setters = new ArrayList<Instruction>();
+        var aliases = new ArrayList<Integer>();
+        for (var arg : call.getArguments()) {
+            var slot = arg instanceof VarRef ref
+                ? blob.getLocalSlots().get(ref.getVariable()) : null;
+            aliases.add(slot);
+            if (slot == null)
+                compileExpr(arg);
+        }
+        for (int i = 0; i < params.size(); i++)
+            if (aliases.get(i) != null)
+                blob.getLocalSlots().put(params.get(i), aliases.get(i));
+            else
+                setters.add(declareVariable(params.get(i)));
+        for (var setter : setters.reversed())
+            emit(setter);
+        inlinedSize += size(callee.getBody());
+
+        enclosingFunctions.add(callee);
+        inlineDepth++;
+        for (var stmt : callee.getBody().getStmts()) {
+            if (stmt instanceof ReturnStatement ret) {
+                compileExpr(ret.getValue());
+                break;
+            }
+            if (stmt instanceof Declaration decl)
+                locals.add(decl);
+            compileStatement(stmt);
+        }
+        inlineDepth--;
+        enclosingFunctions.removeLast();
+
+        /* The same function may be inlined again, so its variables must be
+           given new slots then.  */
+        locals.forEach(blob.getLocalSlots()::remove);
+        blob.setLocalDepth(oldLocalDepth);
+        return true;
+    }
+
+    /** @return Why a call of {@code callee} from the current {@link #blob}
+                cannot be inlined, or {@code null} if it can be.  */
+    private String whyNotInline(FunctionDeclaration callee) {
+        if (blob.getLocalSlots() == null)
+            /* Globals are not freed, and toplevel code only runs once.  */
+            return "at toplevel";
+        var profile = c.getProfile();
+        if (profile != null && profile.calls(compiling) == 0)
+            return "caller never called, as profiled";
+        if (enclosingFunctions.stream().anyMatch(fn -> fn == callee)
+            || calls(callee.getBody(), callee))
+            return "recursive";
+        if (inlineDepth >= MAX_INLINE_DEPTH)
+            return "too deeply inlined";
+        if (!FreeVariables.of(callee, d -> c.getGlobalSlot(d).isPresent())
+            .isEmpty())
+            return "captures variables";
+        if (callee.getReturnType() == null
+            || callee.getReturnType() instanceof VoidType)
+            return "returns no value";
+
+        var budget = INLINE_BUDGET;
+        var maxInlinedSize = MAX_INLINED_SIZE;
+        if (isHotCall(callee)) {
+            budget *= HOT_INLINE_FACTOR;
+            maxInlinedSize *= HOT_INLINE_FACTOR;
+        }
+        var size = 0;
+        for (var stmt : callee.getBody().getStmts()) {
+            switch (stmt) {
+            case FunctionDeclaration nested -> {
+                /* Hoisted ones are not compiled as part of the body.  */
+                if (!hoisted.contains(nested))
+                    return "declares functions";
+            }
+            case StatementList ignored -> {
+                return "contains blocks";
+            }
+            case ReturnStatement ret -> {
+                if (ret.getValue() == null)
+                    return "returns no value";
+                size += size(ret);
+                if (size > budget)
+                    return "too large";
+                if (inlinedSize + size > maxInlinedSize)
+                    return "caller too large";
+                return null;
+            }
+            default -> size += size(stmt);
+            }
+        }
+        return "returns no value";
+    }
+
+    /** @return Whether the {@link Calculator#profile profile} saw the
+                function whose body holds the call being compiled call
+                {@code callee} often, or saw {@code callee} called often
+                overall.  */
+    private boolean isHotCall(FunctionDeclaration callee) {
+        var profile = c.getProfile();
+        if (profile == null)
+            return false;
+        var threshold = c.getJitThreshold();
+        return profile.calls(enclosingFunctions.getLast(), callee) >= threshold
+            || profile.isHot(callee, threshold);
+    }
+
+    /** @return The number of statements and expressions in {@code stmt}
+                that would be inlined.  */
+    private static int size(Statement stmt) {
+        return switch (stmt) {
+        case FunctionDeclaration ignored -> 0;
+        case Declaration decl -> 1 + size(decl.getValue());
+        case ExprStmt es -> 1 + size(es.getExpr());
+        case PrintStmt print ->
+            1 + print.getArgs().stream().mapToInt(Compiler::size).sum();
+        case ReturnStatement ret ->
+            1 + (ret.getValue() != null ? size(ret.getValue()) : 0);
+        case StatementList block ->
+            block.getStmts().stream().mapToInt(Compiler::size).sum();
+        };
+    }
+
+    /** @return The number of nodes in {@code expr}.  */
+    private static int size(Expr expr) {
+        return switch (expr) {
+        case FunctionCall call ->
+            1 + size(call.getFunction())
+            + call.getArguments().stream().mapToInt(Compiler::size).sum();
+        case VectorExpr vector ->
+            1 + vector.getElements().stream().mapToInt(Compiler::size).sum();
+        case VarRef ignored -> 1;
+        case NumberLit ignored -> 1;
+        case ErrorExpr ignored -> 1;
+        case Expr binaryExpr ->
+            1 + size(binaryExpr.getLhs()) + size(binaryExpr.getRhs());
+        };
+    }
+
+    /** @return Whether {@code stmt} contains a call of {@code fn} by
+                name.  */
+    private static boolean calls(Statement stmt, FunctionDeclaration fn) {
+        return switch (stmt) {
+        case FunctionDeclaration nested -> calls(nested.getBody(), fn);
+        case Declaration decl -> calls(decl.getValue(), fn);
+        case ExprStmt es -> calls(es.getExpr(), fn);
+        case PrintStmt print ->
+            print.getArgs().stream().anyMatch(e -> calls(e, fn));
+        case ReturnStatement ret ->
+            ret.getValue() != null && calls(ret.getValue(), fn);
+        case StatementList block ->
+            block.getStmts().stream().anyMatch(s -> calls(s, fn));
+        };
+    }
+
+    /** @return Whether {@code expr} contains a call of {@code fn} by
+                name.  */
+    private static boolean calls(Expr expr, FunctionDeclaration fn) {
+        return switch (expr) {
+        case FunctionCall call ->
+            (call.getFunction() instanceof VarRef var
+             && var.getVariable() == fn)
+            || calls(call.getFunction(), fn)
+            || call.getArguments().stream().anyMatch(e -> calls(e, fn));
+        case VectorExpr vector ->
+            vector.getElements().stream().anyMatch(e -> calls(e, fn));
+        case VarRef ignored -> false;
+        case NumberLit ignored -> false;
+        case ErrorExpr ignored -> false;
+        case Expr binaryExpr ->
+            calls(binaryExpr.getLhs(), fn) || calls(binaryExpr.getRhs(), fn);
+        };
+    }
+
+    /** Print every decision on whether to inline a call made so far, with
+        the reason for not inlining.  Calls inlined into several places are
+        listed once for each.
+
+        @param out Stream to print into.  */
+    public void printInliningReport(PrintStream out) {
+        out.println("Inlining:");
+        var inlined = 0;
+        for (var decision : inliningDecisions) {
+            var start = decision.call().start();
+            out.printf("  %-20s %4d:%-4d %s\n", decision.callee(),
+                       start.line(), start.column(),
+                       decision.reason() == null
+                       ? "inlined" : "not inlined, " + decision.reason());
+            if (decision.reason() == null)
+                inlined++;
+        }
+        out.printf("  %-20s %d of %d calls inlined\n", "total", inlined,
+                   inliningDecisions.size());
+    }
+
+    /** When executing {@link Calculator#unboxed unboxed}, numbers are
+        kept out of values, and must be boxed before being used where an
+        arbitrary value is expected.  Emit the code for doing so if {@code
+        expr}, which was just computed onto the stack, is a number.
+
+        @param expr Expression whose value is on the top of the stack.  */
+    private void boxIfNumber(Expr expr) {
+        if (c.isUnboxed() && expr.getResultType() instanceof NumberType)
+            emit(BOX_NUMBER);
+    }
 }
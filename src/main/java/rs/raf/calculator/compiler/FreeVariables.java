@@ -0,0 +1,98 @@
+package rs.raf.calculator.compiler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import rs.raf.calculator.ast.*;
+
+/** Finds the variables a function refers to but does not declare, which
+    must hence be captured from the functions enclosing it, unless they are
+    global.  */
+final class FreeVariables {
+    private FreeVariables() {}
+
+    /** Find the variables the body of {@code fn} refers to, including from
+        functions nested in it, which are neither global nor declared in
+        {@code fn}, in order of first reference.
+
+        @param fn Function to analyze.
+        @param isGlobal Tells whether a variable is global.
+        @return The free variables of {@code fn}.  */
+    static List<Declaration> of(FunctionDeclaration fn,
+                                Predicate<Declaration> isGlobal) {
+        var declared = Collections.newSetFromMap
+            (new IdentityHashMap<Declaration, Boolean>());
+        var referenced = new ArrayList<Declaration>();
+        collectVariables(fn, declared, referenced);
+        var seen = Collections.newSetFromMap
+            (new IdentityHashMap<Declaration, Boolean>());
+        return referenced.stream()
+            .filter(d -> !declared.contains(d)
+                    && !isGlobal.test(d)
+                    && seen.add(d))
+            .toList();
+    }
+
+    /** @return Whether the body of {@code fn}, including functions nested in
+                it, refers to {@code fn} itself.  */
+    static boolean refersToItself(FunctionDeclaration fn) {
+        var referenced = new ArrayList<Declaration>();
+        collectVariables(fn.getBody(),
+                         Collections.newSetFromMap(new IdentityHashMap<>()),
+                         referenced);
+        return referenced.stream().anyMatch(d -> d == fn);
+    }
+
+    /** Collect the variables declared in {@code stmt}, into {@code declared},
+        and those referred to in it, into {@code referenced}.  */
+    private static void collectVariables(Statement stmt,
+                                         Set<Declaration> declared,
+                                         List<Declaration> referenced) {
+        switch (stmt) {
+        case FunctionDeclaration fn -> {
+            declared.add(fn);
+            declared.addAll(fn.getArgs().getArguments());
+            collectVariables(fn.getBody(), declared, referenced);
+        }
+        case Declaration decl -> {
+            declared.add(decl);
+            collectVariables(decl.getValue(), referenced);
+        }
+        case ExprStmt es -> collectVariables(es.getExpr(), referenced);
+        case PrintStmt print ->
+            print.getArgs().forEach(e -> collectVariables(e, referenced));
+        case ReturnStatement ret -> {
+            if (ret.getValue() != null)
+                collectVariables(ret.getValue(), referenced);
+        }
+        case StatementList block ->
+            block.getStmts()
+                .forEach(s -> collectVariables(s, declared, referenced));
+        }
+    }
+
+    /** Collect the variables referred to in {@code expr} into {@code
+        referenced}.  */
+    private static void collectVariables(Expr expr,
+                                         List<Declaration> referenced) {
+        switch (expr) {
+        case VarRef var -> referenced.add(var.getVariable());
+        case FunctionCall call -> {
+            collectVariables(call.getFunction(), referenced);
+            call.getArguments().forEach(e -> collectVariables(e, referenced));
+        }
+        case VectorExpr vector ->
+            vector.getElements().forEach(e -> collectVariables(e, referenced));
+        case ErrorExpr ignored -> {}
+        case NumberLit ignored -> {}
+        case Expr binaryExpr -> {
+            collectVariables(binaryExpr.getLhs(), referenced);
+            collectVariables(binaryExpr.getRhs(), referenced);
+        }
+        }
+    }
+}
@@ -5,6 +5,7 @@ import java.util.IdentityHashMap;
 import rs.raf.calculator.ast.Declaration;
 import rs.raf.calculator.vm.Blob;
 import rs.raf.calculator.vm.UpvalueMapEntry;
+import rs.raf.calculator.vm.UpvalueMapEntry.UpvalueLocation;
 import lombok.*;
 
 /** A function or toplevel bit of code currently under translation.  It
@@ -13,12 +14,15 @@ import lombok.*;
     including its locals and upvalues, as well as the number of necessary local
     variables.
 
-    The toplevel/global blob has no local variables, or upvalues.  */
+    The toplevel/global blob has no local variables, or upvalues.
+
+    @param <C> Type of code being generated, e.g. {@link Blob} for the stack
+               VM.  */
 @RequiredArgsConstructor
 @Getter
-public class InTranslationBlob {
+public class InTranslationBlob<C> {
     /** Code associated with this blob.  */
-    private final Blob code;
+    private final C code;
     /** A mapping from declaration to the local variable slot.  If declaration
         {@code d} is mapped to {@code i}, then emitting {@code GET_LOCAL i}
         will result in the VM pushing the value of local variable {@code d}
@@ -42,7 +46,12 @@ public class InTranslationBlob {
         upvalue map entry.  */
     private final IdentityHashMap<Declaration, UpvalSlotInfo> upvalSlots;
     /** Parent slot in the blob sphagetti-stack.  */
-    private final InTranslationBlob previousBlob;
+    private final InTranslationBlob<C> previousBlob;
+    /** Function whose body this is, which refers to itself through an
+        upvalue holding its own closure, or {@code null}.  See {@link
+        UpvalueLocation#SELF}.  */
+    @Setter
+    private Declaration self;
     /** Number of currently active local variables.  */
     private int localDepth = 0;
     /** Number of required local variable slots.  */
@@ -54,4 +63,41 @@ public class InTranslationBlob {
         if ((this.localDepth = localDepth) > maxLocalDepth)
             maxLocalDepth = localDepth;
     }
+
+    /** Find the local variable or upvalue slot {@code decl} is in, allocating
+        upvalue slots in this blob and its parents as necessary.  Refer to the
+        {@link Compiler} class documentation for details of the algorithm.
+
+        <p> Globals are not handled here, and must be checked for first.
+
+        @param decl The decl to find.
+
+        @return A reference to the {@code LOCAL} or {@code UPVALUE} slot
+                holding {@code decl} while executing this blob.  */
+    public UpvalueMapEntry findLocal(Declaration decl) {
+        assert localSlots != null && upvalSlots != null;
+
+        var local = localSlots.get(decl);
+        if (local != null)
+            return new UpvalueMapEntry(UpvalueLocation.LOCAL, local);
+
+        /* So, this is a upvalue.  But is it new?  */
+        var upval = upvalSlots.get(decl);
+        if (upval != null)
+            /* No, it isn't.  */
+            return new UpvalueMapEntry(UpvalueLocation.UPVALUE,
+                                       upval.slotNr());
+
+        /* It is.  A function referring to itself captures its own closure,
+           which might not be reachable from the parent at all.  */
+        var inSuperscope = decl == self
+            ? new UpvalueMapEntry(UpvalueLocation.SELF, 0)
+            : previousBlob.findLocal(decl);
+        var upvalSlot = upvalSlots.size();
+
+        var oldSlot = upvalSlots
+            .put(decl, new UpvalSlotInfo(upvalSlot, inSuperscope));
+        assert oldSlot == null;
+        return new UpvalueMapEntry(UpvalueLocation.UPVALUE, upvalSlot);
+    }
 }
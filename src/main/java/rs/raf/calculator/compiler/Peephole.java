@@ -0,0 +1,134 @@
+package rs.raf.calculator.compiler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import rs.raf.calculator.vm.Instruction;
+
+import static rs.raf.calculator.vm.Instruction.Code.*;
+
+/** Peephole optimizer fusing common instruction sequences into
+    superinstructions, so that the VM goes through its dispatch loop fewer
+    times.
+
+    <p> As this language has no jumps, code is always straight-line, and
+    instructions can be fused and removed freely, without fixing up any branch
+    targets.  The fusions performed are:
+
+    <ul>
+      <li>{@code GET_LOCAL x; GET_LOCAL y; ADD} into {@code ADD_LOCAL_LOCAL x
+      y}, and likewise for {@code SUBTRACT} and {@code MULTIPLY},</li>
+
+      <li>{@code PUSH_CONSTANT k; ADD} into {@code ADD_CONST k}, and likewise
+      for {@code SUBTRACT}, {@code MULTIPLY} and {@code DIVIDE},</li>
+
+      <li>{@code GET_GLOBAL g; ...; FUNCTION_CALL n}, where the {@code
+      GET_GLOBAL} pushes the callee, into {@code ...; GET_GLOBAL_CALL g n}.
+      The global can be read after the arguments are computed instead of
+      before, as expressions never assign globals.</li>
+
+      <li>{@code BUILD_CLOSURE n; SET_LOCAL m} into {@code BUILD_CLOSURE_LOCAL
+      n m}.</li>
+    </ul>  */
+public class Peephole {
+    private Peephole() {}
+
+    /** Fuse instructions in {@code code}.
+
+        @param code Code to optimize.
+        @return Optimized code.  */
+    public static List<Instruction> optimize(List<Instruction> code) {
+        return fuseSequences(fuseGlobalCalls(code));
+    }
+
+    /** Fuse calls of globals.  */
+    private static List<Instruction> fuseGlobalCalls(List<Instruction> code) {
+        /* Simulate the operand stack, tracking which instruction pushed each
+           operand, so that we can find the instruction pushing the callee of
+           each call.  */
+        var producers = new ArrayList<Integer>();
+        var removed = new boolean[code.size()];
+        var result = new ArrayList<>(code);
+
+        for (int i = 0; i < code.size(); i++) {
+            var insn = code.get(i);
+            if (insn.getOpcode() == FUNCTION_CALL) {
+                var aty = insn.getArg1();
+                var calleeIp = producers.get(producers.size() - aty - 1);
+                var callee = code.get(calleeIp);
+                if (callee.getOpcode() == GET_GLOBAL) {
+                    removed[calleeIp] = true;
+                    result.set(i, new Instruction(GET_GLOBAL_CALL,
+                                                  callee.getArg1(), aty));
+                }
+            }
+
+            for (int p = 0; p < insn.pops(); p++)
+                producers.removeLast();
+            for (int p = 0; p < insn.pushes(); p++)
+                producers.add(i);
+        }
+
+        var fused = new ArrayList<Instruction>();
+        for (int i = 0; i < result.size(); i++)
+            if (!removed[i]) fused.add(result.get(i));
+        return fused;
+    }
+
+    /** Fuse sequences of adjacent instructions.  */
+    private static List<Instruction> fuseSequences(List<Instruction> code) {
+        var fused = new ArrayList<Instruction>();
+        for (int i = 0; i < code.size();) {
+            var a = code.get(i);
+            var b = i + 1 < code.size() ? code.get(i + 1) : null;
+            var c = i + 2 < code.size() ? code.get(i + 2) : null;
+
+            /* GET_LOCAL x; GET_LOCAL y; <op>  */
+            if (a.getOpcode() == GET_LOCAL
+                && b != null && b.getOpcode() == GET_LOCAL
+                && c != null) {
+                var superOp = switch (c.getOpcode()) {
+                case ADD -> ADD_LOCAL_LOCAL;
+                case SUBTRACT -> SUB_LOCAL_LOCAL;
+                case MULTIPLY -> MUL_LOCAL_LOCAL;
+                default -> null;
+                };
+                if (superOp != null) {
+                    fused.add(new Instruction(superOp,
+                                              a.getArg1(), b.getArg1()));
+                    i += 3;
+                    continue;
+                }
+            }
+
+            /* PUSH_CONSTANT k; <op>  */
+            if (a.getOpcode() == PUSH_CONSTANT && b != null) {
+                var superOp = switch (b.getOpcode()) {
+                case ADD -> ADD_CONST;
+                case SUBTRACT -> SUB_CONST;
+                case MULTIPLY -> MUL_CONST;
+                case DIVIDE -> DIV_CONST;
+                default -> null;
+                };
+                if (superOp != null) {
+                    fused.add(new Instruction(superOp, a.getArg1()));
+                    i += 2;
+                    continue;
+                }
+            }
+
+            /* BUILD_CLOSURE n; SET_LOCAL m  */
+            if (a.getOpcode() == BUILD_CLOSURE
+                && b != null && b.getOpcode() == SET_LOCAL) {
+                fused.add(new Instruction(BUILD_CLOSURE_LOCAL,
+                                          a.getArg1(), b.getArg1()));
+                i += 2;
+                continue;
+            }
+
+            fused.add(a);
+            i++;
+        }
+        return fused;
+    }
+}
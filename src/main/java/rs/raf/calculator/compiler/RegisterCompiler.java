@@ -0,0 +1,307 @@
+package rs.raf.calculator.compiler;
+
+import java.util.IdentityHashMap;
+
+import lombok.RequiredArgsConstructor;
+import rs.raf.calculator.Calculator;
+import rs.raf.calculator.ast.*;
+import rs.raf.calculator.vm.*;
+import rs.raf.calculator.vm.UpvalueMapEntry.UpvalueLocation;
+
+/* So that instructions can be used unqualified.  */
+import static rs.raf.calculator.vm.RegisterInstruction.Code.*;
+
+/** Turns ASTs into {@link RegisterBlob register blobs} for the {@link
+    RegisterVM}, populating the {@link Calculator} function table as it does
+    so.  The register machine counterpart of {@link Compiler}, which it
+    mirrors closely: it handles blobs, functions, globals and upvalues the
+    same way.
+
+    <p> The difference is in how expressions are translated.  Rather than
+    leaving its result on an operand stack, code for an expression writes its
+    result into a register.  Registers are allocated the same way local slots
+    are, using the local depth of the {@link InTranslationBlob}: local
+    variables occupy the first few slots, as they do in the stack VM, and
+    temporaries are allocated right above the currently active locals, and
+    released when no longer needed, like a stack.  The maximum local depth of
+    a blob is thus its register count.
+
+    <p> Reading a local variable requires no code at all, as the register it
+    lives in can be used as an operand directly.  Hence, {@code a + b}, given
+    locals {@code a} and {@code b}, translates to a single {@code ADD}.  */
+@RequiredArgsConstructor
+public class RegisterCompiler {
+    /* This class should not emit errors.  */
+    /** Wider compilation context.  */
+    private final Calculator c;
+
+    /** A "sphagetti-stack" of blobs of code.  See {@link Compiler#blob}.  */
+    private InTranslationBlob<RegisterBlob> blob = null;
+
+    /** Emit an instruction into the current top in-translation blob.
+        @param opcode Opcode of the new instruction.
+        @param args Arguments of the new instruction.
+        @return The IP of the new instruction.  */
+    private int emit(RegisterInstruction.Code opcode, int... args) {
+        return blob.getCode().addInsn(new RegisterInstruction(opcode, args));
+    }
+
+    /** Compiles a single global scope statement list and produces a blob of
+        code for it that the register VM can interpret immediately.  Populates
+        the function table if a function is declared within {@code input}.
+
+        @param input Root of the newly-loaded AST.
+
+        @return A blob that should be executed immediately, representing the
+                code in the global scope of the program.  */
+    public RegisterBlob compileInput(StatementList input) {
+        assert !(c.hadError() || c.hadRuntimeError());
+        assert blob == null;
+        var outerBlob = new InTranslationBlob<>(new RegisterBlob(),
+                                                null,
+                                                null,
+                                                blob);
+        /* Push.  */
+        blob = outerBlob;
+
+        compileBlock(input);
+        emit(FINISH_OUTER);
+
+        /* We must've come back down to the bottom of the stack.  */
+        assert blob == outerBlob;
+        blob = null;
+
+        /* The toplevel has no locals, but it does have temporaries.  */
+        outerBlob.getCode().finish(outerBlob.getMaxLocalDepth(),
+                                   c.getConstantPool());
+        return outerBlob.getCode();
+    }
+
+    /** Compile a block AST node, restoring the local depth afterwards.  See
+        {@link Compiler}'s counterpart for details.
+
+        @param input AST node to translate.  */
+    private void compileBlock(StatementList input) {
+        var oldLocalDepth = blob.getLocalDepth();
+
+        for (var statement : input.getStmts())
+            compileStatement(statement);
+
+        blob.setLocalDepth(oldLocalDepth);
+    }
+
+    /** @return A fresh temporary register.  It is released by restoring the
+                local depth to what it was before allocating it.  */
+    private int allocateRegister() {
+        var newRegister = blob.getLocalDepth();
+        blob.setLocalDepth(newRegister + 1);
+        return newRegister;
+    }
+
+    /** Allocate a local register for {@code declaration}.  Must not be called
+        for globals.
+
+        @param declaration Declaration to assign a register to.
+        @return The register allocated.  */
+    private int declareLocal(Declaration declaration) {
+        var newVarId = allocateRegister();
+        var oldId = blob.getLocalSlots().put(declaration, newVarId);
+        assert oldId == null : "how did you redeclare it??";
+        return newVarId;
+    }
+
+    /** @return Whether we are translating the toplevel blob, where variables
+                are global.  */
+    private boolean atToplevel() {
+        return blob.getPreviousBlob() == null;
+    }
+
+    /** Temporarily suspend compiling the current function in order to compile
+        function {@code fn}.  See {@link Compiler}'s counterpart.
+
+        @param fn Function declaration to compile.
+
+        @return The function table slot given to this function.  */
+    private int compileFunction(FunctionDeclaration fn) {
+        var function = new Function();
+        function.setFuncDecl(fn);
+
+        var functionBlob = new InTranslationBlob<>(new RegisterBlob(),
+                                                   new IdentityHashMap<>(),
+                                                   new IdentityHashMap<>(),
+                                                   blob);
+        blob = functionBlob;
+        /* The function refers to itself through its own closure, as its
+           register is not assigned yet when the closure is built.  */
+        blob.setSelf(fn);
+        var newFnId = c.addFunction(function);
+
+        /* Arguments go into the first few registers, as the register VM will
+           place them there in response to CALL.  */
+        fn.getArgs().getArguments().forEach(this::declareLocal);
+        compileBlock(fn.getBody());
+        emit(RETURN_VOID);
+
+        var registerCount = functionBlob.getMaxLocalDepth();
+        functionBlob.getCode().finish(registerCount, c.getConstantPool());
+        function.setRegisterCode(functionBlob.getCode());
+        function.setLocalCount(registerCount);
+
+        var upvals = new UpvalueMapEntry[functionBlob.getUpvalSlots().size()];
+        function.setUpvalueMap(upvals);
+        functionBlob.getUpvalSlots()
+            .values()
+            .forEach(s -> { upvals[s.slotNr()] = s.entry(); });
+        var upvalTypes = new Type[upvals.length];
+        function.setUpvalueTypes(upvalTypes);
+        functionBlob.getUpvalSlots()
+            .forEach((decl, s) -> {
+                    upvalTypes[s.slotNr()] = decl.getDeclaredType();
+                });
+
+        /* Pop.  */
+        blob = blob.getPreviousBlob();
+        return newFnId;
+    }
+
+    /** Emit the code for {@code stmt} in the current {@link #blob}.
+
+        @param stmt Statement to translate.  */
+    private void compileStatement(Statement stmt) {
+        var depth = blob.getLocalDepth();
+        switch (stmt) {
+        case ExprStmt es -> {
+            compileExpr(es.getExpr());
+            blob.setLocalDepth(depth);
+        }
+
+        case PrintStmt print ->
+            print.getArgs().forEach(expr -> {
+                    emit(PRINT, compileExpr(expr));
+                    blob.setLocalDepth(depth);
+                });
+
+        case ReturnStatement ret -> {
+            if (ret.getValue() != null) {
+                emit(RETURN, compileExpr(ret.getValue()));
+                blob.setLocalDepth(depth);
+            } else
+                emit(RETURN_VOID);
+        }
+
+        case FunctionDeclaration fn -> {
+            if (atToplevel()) {
+                var global = c.declareGlobal(fn);
+                var fnId = compileFunction(fn);
+                var temp = allocateRegister();
+                emit(BUILD_CLOSURE, temp, fnId);
+                emit(SET_GLOBAL, global, temp);
+                blob.setLocalDepth(depth);
+            } else {
+                var local = declareLocal(fn);
+                emit(BUILD_CLOSURE, local, compileFunction(fn));
+            }
+        }
+
+        case Declaration decl -> {
+            if (atToplevel()) {
+                var global = c.declareGlobal(decl);
+                emit(SET_GLOBAL, global, compileExpr(decl.getValue()));
+                blob.setLocalDepth(depth);
+            } else {
+                /* Compute the value right into the register of the new local
+                   variable.  */
+                compileExprInto(decl.getValue(), declareLocal(decl));
+            }
+        }
+
+        case StatementList block ->
+            compileBlock(block);
+        }
+    }
+
+    /** Emit code to compute the expression {@code expr} into some register,
+        and return that register.  The register may be a local variable, if
+        {@code expr} refers to one, or a new temporary.  Either way, it must
+        not be written to.  The caller is responsible for releasing any
+        temporaries allocated, by restoring the local depth.
+
+        @param expr Expression AST to translate.
+        @return Register holding the value of {@code expr}.  */
+    private int compileExpr(Expr expr) {
+        if (expr instanceof VarRef var
+            && c.getGlobalSlot(var.getVariable()).isEmpty()) {
+            var ref = blob.findLocal(var.getVariable());
+            if (ref.loc() == UpvalueLocation.LOCAL)
+                /* No need to copy it anywhere.  */
+                return ref.slot();
+        }
+
+        var result = allocateRegister();
+        compileExprInto(expr, result);
+        return result;
+    }
+
+    /** Emit code to compute the expression {@code expr} into register {@code
+        dest}.  Any temporaries used are released again.
+
+        @param expr Expression AST to translate.
+        @param dest Register to compute the value of {@code expr} into.  */
+    private void compileExprInto(Expr expr, int dest) {
+        var depth = blob.getLocalDepth();
+        switch (expr) {
+        case ErrorExpr ignored -> throw new IllegalStateException();
+        case FunctionCall call -> {
+            var callee = compileExpr(call.getFunction());
+            /* Arguments need to be in consecutive registers.  */
+            var args = call.getArguments();
+            var argBase = blob.getLocalDepth();
+            blob.setLocalDepth(argBase + args.size());
+            for (int i = 0; i < args.size(); i++)
+                compileExprInto(args.get(i), argBase + i);
+            emit(FUNCTION_CALL, dest, callee, argBase, args.size());
+        }
+        case VarRef var -> {
+            var decl = var.getVariable();
+            var global = c.getGlobalSlot(decl);
+            if (global.isPresent()) {
+                emit(GET_GLOBAL, dest, global.get());
+            } else {
+                var ref = blob.findLocal(decl);
+                switch (ref.loc()) {
+                case LOCAL -> emit(MOVE, dest, ref.slot());
+                case UPVALUE -> emit(GET_UPVALUE, dest, ref.slot());
+                }
+            }
+        }
+        case VectorExpr vector -> {
+            /* Elements need to be in consecutive registers.  */
+            var elts = vector.getElements();
+            var base = blob.getLocalDepth();
+            blob.setLocalDepth(base + elts.size());
+            for (int i = 0; i < elts.size(); i++)
+                compileExprInto(elts.get(i), base + i);
+            emit(VECTOR_CONSTRUCT, dest, base, elts.size());
+        }
+        case NumberLit numlit -> {
+            emit(LOAD_CONSTANT, dest,
+                 blob.getCode().addConstant(numlit.getValue()));
+        }
+        case Expr binaryExpr -> {
+            /* Must not be a subclass.  */
+            assert binaryExpr.getClass() == Expr.class;
+            var lhs = compileExpr(binaryExpr.getLhs());
+            var rhs = compileExpr(binaryExpr.getRhs());
+            emit(switch (binaryExpr.getOperation()) {
+                case ADD -> ADD;
+                case DIV -> DIVIDE;
+                case MUL -> MULTIPLY;
+                case SUB -> SUBTRACT;
+                case POW -> RAISE;
+                default -> throw new IllegalArgumentException();
+                }, dest, lhs, rhs);
+        }
+        }
+        blob.setLocalDepth(depth);
+    }
+}
@@ -0,0 +1,349 @@
+package rs.raf.calculator.compiler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import rs.raf.calculator.Calculator;
+import rs.raf.calculator.vm.Instruction;
+
+import static rs.raf.calculator.vm.Instruction.Code.*;
+
+/** Optimizer eliminating common subexpressions and dead code in function
+    bodies, by way of a static single assignment form of their code.
+
+    <p> As this language has no jumps, and values are never assigned, a body
+    is a single basic block, and is already in SSA form, save for the
+    operand stack and locals.  Simulating the stack and locals of the code,
+    each instruction computing a value becomes a {@link Node} whose inputs
+    are the nodes of the values it takes, and moving values in and out of
+    locals disappears.  Then:
+
+    <ul>
+      <li>Pure nodes (arithmetic, constants, globals, upvalues, vectors,
+      closures and boxing) computing the same operation on the same inputs
+      are merged into one, as the result is always the same, and can only be
+      told apart by identity, which nothing in the language looks at.  Even
+      globals are pure, as functions never set them.</li>
+
+      <li>Pure nodes whose value is never used, such as unused {@code let}
+      bindings or expression statements, are dropped.</li>
+
+      <li>Calls, prints, vector accesses, which can fail, and returns are
+      effects, so are kept, in order.</li>
+    </ul>
+
+    <p> Lowering back into stack code computes each effect's operands right
+    before the effect, recursively.  Nodes used more than once are stored
+    into a fresh local slot when first computed, unless they are as cheap
+    to recompute as to load.  Calls whose single use can be reached without
+    reordering effects are computed where they are used, like the compiler
+    would, and into a local otherwise.
+
+    <p> Blobs building closures that capture locals are left alone, as
+    lowering assigns local slots anew.  So is toplevel code, which runs
+    once, and has no locals to store values into.  */
+public class SsaOptimizer {
+    private SsaOptimizer() {}
+
+    /** A value computed by, or an effect of, one instruction.  */
+    private static final class Node {
+        /** Instruction computing this node, with operands taken from
+            {@link #inputs}.  */
+        final Instruction insn;
+        /** Nodes whose values this one takes, in stack order.  */
+        final Node[] inputs;
+        /** Whether this node must be computed exactly once, in order.  */
+        final boolean effect;
+        /** Number of times this node is an input of a live node.  */
+        int uses = 0;
+        /** If this node was the single input of a live node, that node.  */
+        Node user = null;
+        /** Local slot this node's value is held in once computed, or
+            {@code -1}.  */
+        int slot = -1;
+        /** Whether this effect was emitted already.  */
+        boolean emitted = false;
+
+        Node(Instruction insn, Node[] inputs, boolean effect) {
+            this.insn = insn;
+            this.inputs = inputs;
+            this.effect = effect;
+        }
+
+        /** @return Whether this node leaves a value on the stack.  */
+        boolean hasValue() {
+            var op = insn.getOpcode();
+            return op != PRINT && op != RETURN && op != RETURN_VOID
+                && op != TAIL_CALL;
+        }
+
+        /** @return Whether computing this node takes just one instruction
+                    with no inputs, so that it is as cheap to recompute as
+                    to load from a local.  */
+        boolean isCheap() {
+            return switch (insn.getOpcode()) {
+            case GET_LOCAL, PUSH_CONSTANT, GET_GLOBAL, GET_UPVALUE -> true;
+            default -> false;
+            };
+        }
+    }
+
+    /** Key merging identical pure nodes.
+
+        @param op Opcode of the node.
+        @param arg Argument of the instruction, or the constant pushed.
+        @param inputs Inputs of the node, by identity.  */
+    private record Key(Instruction.Code op, Object arg, List<Node> inputs) {}
+
+    /** State of building and lowering one blob.  */
+    private static final class Lowering {
+        /** Effects, in order.  */
+        final List<Node> effects = new ArrayList<>();
+        /** Index in {@link #effects} of the first effect not emitted.  */
+        int nextEffect = 0;
+        /** Lowered code.  */
+        final List<Instruction> out = new ArrayList<>();
+        /** First free local slot.  */
+        int nextSlot;
+        /** If effects are being left to be computed where their values are
+            used, the effect they are computed for, otherwise {@code
+            null}.  */
+        Node deferredUntil = null;
+    }
+
+    /** Optimize the body of a function.
+
+        @param c Compilation context.
+        @param code Code of the body, unfinished, and not peephole
+                    optimized.  Replaced by the optimized code, if it is not
+                    longer.
+        @param constants Constant table of the body.
+        @param arity Number of parameters of the function.
+        @param localCount Number of local slots the code uses.
+        @return Number of local slots the code uses now.  */
+    public static int optimize(Calculator c, List<Instruction> code,
+                               List<Double> constants, int arity,
+                               int localCount) {
+        var state = new Lowering();
+        if (!build(c, code, constants, arity, localCount, state))
+            return localCount;
+
+        /* Count uses of live nodes.  Effects are always live.  */
+        var live = Collections.newSetFromMap
+            (new IdentityHashMap<Node, Boolean>());
+        for (var effect : state.effects)
+            markLive(effect, live);
+
+        state.nextSlot = arity;
+        for (var effect : state.effects)
+            lowerEffect(effect, state);
+
+        /* Counting the final RETURN_VOID.  */
+        if (state.out.size() + 1 > code.size())
+            return localCount;
+        code.clear();
+        code.addAll(state.out);
+        /* So that the blob ends like every other.  */
+        code.add(new Instruction(RETURN_VOID));
+        return state.nextSlot;
+    }
+
+    /** Build the nodes of {@code code} into {@code state}.
+
+        @return Whether {@code code} can be optimized.  */
+    private static boolean build(Calculator c, List<Instruction> code,
+                                 List<Double> constants, int arity,
+                                 int localCount, Lowering state) {
+        var stack = new ArrayList<Node>();
+        var locals = new Node[localCount];
+        for (int i = 0; i < arity; i++)
+            locals[i] = new Node(new Instruction(GET_LOCAL, i), new Node[0],
+                                 false);
+        var pure = new HashMap<Key, Node>();
+
+        for (var insn : code) {
+            var op = insn.getOpcode();
+            switch (op) {
+            case ADD, SUBTRACT, MULTIPLY, DIVIDE, RAISE, BOX_NUMBER,
+                GET_GLOBAL, GET_UPVALUE, VECTOR_CONSTRUCT -> {
+                var inputs = pop(stack, insn.pops());
+                stack.add(pure(pure, insn, insn.getArg1(), inputs));
+            }
+            case PUSH_CONSTANT ->
+                stack.add(pure(pure, insn, constants.get(insn.getArg1()),
+                               new Node[0]));
+            case BUILD_CLOSURE -> {
+                if (c.getFunction(insn.getArg1()).getUpvalueMap().length > 0)
+                    return false;
+                stack.add(pure(pure, insn, insn.getArg1(), new Node[0]));
+            }
+            case GET_LOCAL -> stack.add(locals[insn.getArg1()]);
+            case SET_LOCAL -> locals[insn.getArg1()] = pop(stack, 1)[0];
+            case POP -> pop(stack, 1);
+            case FUNCTION_CALL, VECTOR_ACCESS, PRINT -> {
+                var node = new Node(insn,
+                                    pop(stack, insn.pops()),
+                                    true);
+                state.effects.add(node);
+                if (node.hasValue())
+                    stack.add(node);
+            }
+            case RETURN, RETURN_VOID, TAIL_CALL -> {
+                state.effects.add
+                    (new Node(insn, pop(stack, insn.pops()),
+                              true));
+                /* Anything after is dead.  */
+                return stack.isEmpty();
+            }
+            default -> {
+                /* Toplevel code, or already optimized.  */
+                return false;
+            }
+            }
+        }
+        return false;
+    }
+
+    /** @return The top {@code count} nodes of {@code stack}, popped, in
+                stack order.  */
+    private static Node[] pop(ArrayList<Node> stack, int count) {
+        var top = stack.subList(stack.size() - count, stack.size());
+        var nodes = top.toArray(Node[]::new);
+        top.clear();
+        return nodes;
+    }
+
+    /** @return A pure node computing {@code insn} on {@code inputs}, which
+                is an earlier one if there is one.  */
+    private static Node pure(HashMap<Key, Node> pure, Instruction insn,
+                             Object arg, Node[] inputs) {
+        return pure.computeIfAbsent(new Key(insn.getOpcode(), arg,
+                                            List.of(inputs)),
+                                    k -> new Node(insn, inputs, false));
+    }
+
+    /** Mark {@code node}, and every node it needs, live, counting uses.  */
+    private static void markLive(Node node, Set<Node> live) {
+        if (!live.add(node))
+            return;
+        for (var input : node.inputs) {
+            input.uses++;
+            input.user = node;
+            markLive(input, live);
+        }
+    }
+
+    /** Emit {@code effect}, unless it is computed later where it is used.  */
+    private static void lowerEffect(Node effect, Lowering state) {
+        if (effect.emitted)
+            return;
+        if (state.deferredUntil != null) {
+            if (state.deferredUntil != effect)
+                return;
+            state.deferredUntil = null;
+        }
+        if (!effect.hasValue() || effect.uses == 0) {
+            emit(effect, state);
+            if (effect.hasValue())
+                state.out.add(new Instruction(POP));
+            return;
+        }
+        if (isDeferrable(effect, state))
+            return;
+        emit(effect, state);
+        store(effect, state);
+    }
+
+    /** Decide whether {@code effect}, the value of which is used once, can
+        be left to be computed where it is used.  It can, if all the effects
+        still to be emitted before the effect it is used in are computed, in
+        order, in the operands of that effect.  If so, all of them are left
+        until that effect.
+
+        @return Whether {@code effect} is left to be computed later.  */
+    private static boolean isDeferrable(Node effect, Lowering state) {
+        var user = effect;
+        do {
+            if (user.uses != 1)
+                return false;
+            user = user.user;
+        } while (!user.effect);
+
+        var computed = new ArrayList<Node>();
+        var visited = Collections.newSetFromMap
+            (new IdentityHashMap<Node, Boolean>());
+        for (var input : user.inputs)
+            collectEffects(input, computed, visited);
+        var pending = state.effects.subList(state.nextEffect,
+                                            state.effects.indexOf(user));
+        if (!computed.equals(pending))
+            return false;
+        state.deferredUntil = user;
+        return true;
+    }
+
+    /** Collect the effects computing {@code node} would emit into {@code
+        computed}, in order.  */
+    private static void collectEffects(Node node, List<Node> computed,
+                                       Set<Node> visited) {
+        if (node.slot >= 0 || node.isCheap() || node.emitted
+            || !visited.add(node))
+            return;
+        for (var input : node.inputs)
+            collectEffects(input, computed, visited);
+        if (node.effect)
+            computed.add(node);
+    }
+
+    /** Emit the code leaving the value of {@code node} on the stack.  */
+    private static void push(Node node, Lowering state) {
+        if (node.slot >= 0) {
+            state.out.add(new Instruction(GET_LOCAL, node.slot));
+            return;
+        }
+        if (node.isCheap()) {
+            state.out.add(copy(node.insn));
+            return;
+        }
+        emit(node, state);
+        if (node.uses > 1) {
+            store(node, state);
+            state.out.add(new Instruction(GET_LOCAL, node.slot));
+        }
+    }
+
+    /** Emit the code computing {@code node}, from its inputs.  */
+    private static void emit(Node node, Lowering state) {
+        for (var input : node.inputs)
+            push(input, state);
+        state.out.add(copy(node.insn));
+        if (node.effect) {
+            /* Deferring effects never reorders them.  */
+            assert state.effects.get(state.nextEffect) == node;
+            node.emitted = true;
+            state.nextEffect++;
+        }
+    }
+
+    /** @return A copy of {@code insn}, as instructions are mutable, and
+                might be emitted more than once.  */
+    private static Instruction copy(Instruction insn) {
+        return switch (insn.getOpcode().argCount) {
+        case 0 -> new Instruction(insn.getOpcode());
+        case 1 -> new Instruction(insn.getOpcode(), insn.getArg1());
+        default -> new Instruction(insn.getOpcode(), insn.getArg1(),
+                                   insn.getArg2());
+        };
+    }
+
+    /** Store the value of {@code node}, just computed, into a new local
+        slot.  */
+    private static void store(Node node, Lowering state) {
+        node.slot = state.nextSlot++;
+        state.out.add(new Instruction(SET_LOCAL, node.slot));
+    }
+}
@@ -0,0 +1,426 @@
+package rs.raf.calculator.compiler;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+import lombok.RequiredArgsConstructor;
+import rs.raf.calculator.Calculator;
+import rs.raf.calculator.ast.*;
+import rs.raf.calculator.vm.Function;
+import rs.raf.calculator.vm.TreeInterpreter;
+import rs.raf.calculator.vm.TreeInterpreter.Frame;
+import rs.raf.calculator.vm.TreeInterpreter.NumNode;
+import rs.raf.calculator.vm.TreeInterpreter.RefNode;
+import rs.raf.calculator.vm.TreeInterpreter.StmtNode;
+import rs.raf.calculator.vm.UpvalueMapEntry;
+import rs.raf.calculator.vm.UpvalueMapEntry.UpvalueLocation;
+import rs.raf.calculator.vm.Value;
+
+/** Turns typed ASTs into trees of nodes for the {@link TreeInterpreter},
+    populating the {@link Calculator} function table as it does so.
+
+    <p> Each AST node becomes a lambda that evaluates it directly, having
+    captured the nodes of its children, and anything else it needs.  Globals,
+    locals and upvalues are resolved here, in the same way as the {@link
+    Compiler} resolves them, so that a variable reference becomes a read of a
+    fixed slot.  Operations are picked based on the types the type checker
+    computed, so, for instance, an addition node adds two {@code double}s,
+    and never checks what its operands are.  */
+@RequiredArgsConstructor
+public class TreeCompiler {
+    /* This class should not emit errors.  */
+    /** Wider compilation context.  */
+    private final Calculator c;
+    /** Interpreter the compiled code will run in.  Holds the globals.  */
+    private final TreeInterpreter interp;
+
+    /** A "sphagetti-stack" of functions being translated.  See {@link
+        Compiler#blob}.  The toplevel has no function.  */
+    private InTranslationBlob<Function> blob = null;
+
+    /** Binds an argument of a call into the frame of the callee.  */
+    @FunctionalInterface
+    private interface ArgNode {
+        /** @param caller Frame to evaluate the argument in.
+            @param callee Frame of the callee.  */
+        void bind(Frame caller, Frame callee);
+    }
+
+    /** A call.  */
+    @FunctionalInterface
+    private interface CallNode {
+        /** @param caller Frame to evaluate the call in.
+            @return Frame of the callee, holding the result.  */
+        Frame call(Frame caller);
+    }
+
+    /** Compiles a single global scope statement list.  Populates the function
+        table if a function is declared within {@code input}.
+
+        @param input Root of the newly-loaded AST.
+
+        @return A node that should be executed immediately, representing the
+                code in the global scope of the program.  */
+    public StmtNode compileInput(StatementList input) {
+        assert !(c.hadError() || c.hadRuntimeError());
+        assert blob == null;
+        blob = new InTranslationBlob<>(null, null, null, null);
+        var toplevel = compileBlock(input);
+        blob = null;
+        return toplevel;
+    }
+
+    /** Compile a block, restoring the local depth afterwards.  See {@link
+        Compiler}'s counterpart for details.
+
+        @param input AST node to translate.
+        @return A node executing the statements of {@code input} in order,
+                until one of them returns.  */
+    private StmtNode compileBlock(StatementList input) {
+        var oldLocalDepth = blob.getLocalDepth();
+        var stmts = input.getStmts()
+            .stream()
+            .map(this::compileStatement)
+            .toArray(StmtNode[]::new);
+        blob.setLocalDepth(oldLocalDepth);
+
+        return switch (stmts.length) {
+        case 0 -> f -> false;
+        case 1 -> stmts[0];
+        default -> f -> {
+            for (var stmt : stmts)
+                if (stmt.exec(f))
+                    return true;
+            return false;
+        };
+        };
+    }
+
+    /** @return Whether we are translating the toplevel, where variables are
+                global.  */
+    private boolean atToplevel() {
+        return blob.getPreviousBlob() == null;
+    }
+
+    /** Allocate a local slot for {@code declaration}.  Must not be called for
+        globals.
+
+        @param declaration Declaration to assign a slot to.
+        @return The slot allocated.  */
+    private int declareLocal(Declaration declaration) {
+        var newVarId = blob.getLocalDepth();
+        blob.setLocalDepth(newVarId + 1);
+        var oldId = blob.getLocalSlots().put(declaration, newVarId);
+        assert oldId == null : "how did you redeclare it??";
+        return newVarId;
+    }
+
+    /** Compile the body of function {@code fn}, and add it to the function
+        table.  See {@link Compiler}'s counterpart.
+
+        @param fn Function declaration to compile.
+        @return The new function.  */
+    private Function compileFunction(FunctionDeclaration fn) {
+        var function = new Function();
+        function.setFuncDecl(fn);
+
+        var functionBlob = new InTranslationBlob<>(function,
+                                                   new IdentityHashMap<>(),
+                                                   new IdentityHashMap<>(),
+                                                   blob);
+        blob = functionBlob;
+        /* The function refers to itself through its own closure, as its
+           slot is not assigned yet when the closure is built.  */
+        blob.setSelf(fn);
+        c.addFunction(function);
+
+        /* Arguments go into the first few slots, as calls will place them
+           there.  */
+        fn.getArgs().getArguments().forEach(this::declareLocal);
+        function.setTreeCode(compileBlock(fn.getBody()));
+        function.setLocalCount(functionBlob.getMaxLocalDepth());
+
+        var upvals = new UpvalueMapEntry[functionBlob.getUpvalSlots().size()];
+        var upvalTypes = new Type[upvals.length];
+        function.setUpvalueMap(upvals);
+        function.setUpvalueTypes(upvalTypes);
+        functionBlob.getUpvalSlots()
+            .forEach((decl, s) -> {
+                    upvals[s.slotNr()] = s.entry();
+                    upvalTypes[s.slotNr()] = decl.getDeclaredType();
+                });
+
+        /* Pop.  */
+        blob = blob.getPreviousBlob();
+        return function;
+    }
+
+    /** @return A node building a closure of {@code function} in the current
+                frame.  */
+    private RefNode buildClosure(Function function) {
+        var um = function.getUpvalueMap();
+        var locs = new UpvalueLocation[um.length];
+        var slots = new int[um.length];
+        for (int u = 0; u < um.length; u++) {
+            locs[u] = um[u].loc();
+            slots[u] = um[u].slot();
+        }
+
+        return f -> {
+            var upvalues = new Value[slots.length];
+            var numUpvalues = new double[slots.length];
+            var closure = new Value.Closure(function, upvalues, numUpvalues);
+            /* Copy both halves, as we do not know which one is
+               meaningful.  */
+            for (int u = 0; u < slots.length; u++) {
+                switch (locs[u]) {
+                case UPVALUE -> {
+                    upvalues[u] = f.closure.upvalues()[slots[u]];
+                    numUpvalues[u] = f.closure.numUpvalues()[slots[u]];
+                }
+                case LOCAL -> {
+                    upvalues[u] = f.locals[slots[u]];
+                    numUpvalues[u] = f.numLocals[slots[u]];
+                }
+                case SELF -> upvalues[u] = closure;
+                }
+            }
+            return closure;
+        };
+    }
+
+    /** @return Whether values of {@code type} are kept in {@code double}
+                tables.  */
+    private static boolean isNumber(Type type) {
+        return type instanceof NumberType;
+    }
+
+    /** Translate statement {@code stmt}.
+
+        @param stmt Statement to translate.
+        @return A node executing {@code stmt}.  */
+    private StmtNode compileStatement(Statement stmt) {
+        switch (stmt) {
+        case ExprStmt es -> {
+            var expr = es.getExpr();
+            var type = expr.getResultType();
+            if (expr instanceof FunctionCall call) {
+                /* Possibly a void call.  */
+                var node = compileCall(call);
+                return f -> { node.call(f); return false; };
+            } else if (isNumber(type)) {
+                var node = compileNum(expr);
+                return f -> { node.eval(f); return false; };
+            } else {
+                var node = compileRef(expr);
+                return f -> { node.eval(f); return false; };
+            }
+        }
+
+        case PrintStmt print -> {
+            var args = print.getArgs()
+                .stream()
+                .map(this::compileValue)
+                .toArray(RefNode[]::new);
+            return f -> {
+                for (var arg : args) {
+                    arg.eval(f).print(System.out);
+                    System.out.println();
+                }
+                return false;
+            };
+        }
+
+        case ReturnStatement ret -> {
+            var value = ret.getValue();
+            if (value == null)
+                return f -> true;
+            if (isNumber(value.getResultType())) {
+                var node = compileNum(value);
+                return f -> { f.numResult = node.eval(f); return true; };
+            }
+            var node = compileRef(value);
+            return f -> { f.result = node.eval(f); return true; };
+        }
+
+        case FunctionDeclaration fn -> {
+            if (atToplevel()) {
+                var slot = c.declareGlobal(fn);
+                var closure = buildClosure(compileFunction(fn));
+                return f -> {
+                    interp.getGlobals()[slot] = closure.eval(f);
+                    return false;
+                };
+            }
+            var slot = declareLocal(fn);
+            var closure = buildClosure(compileFunction(fn));
+            return f -> { f.locals[slot] = closure.eval(f); return false; };
+        }
+
+        case Declaration decl -> {
+            var global = atToplevel();
+            var slot = global ? c.declareGlobal(decl) : declareLocal(decl);
+            var value = decl.getValue();
+            if (isNumber(value.getResultType())) {
+                var node = compileNum(value);
+                if (global)
+                    return f -> {
+                        interp.getNumGlobals()[slot] = node.eval(f);
+                        return false;
+                    };
+                return f -> { f.numLocals[slot] = node.eval(f); return false; };
+            }
+            var node = compileRef(value);
+            if (global)
+                return f -> {
+                    interp.getGlobals()[slot] = node.eval(f);
+                    return false;
+                };
+            return f -> { f.locals[slot] = node.eval(f); return false; };
+        }
+
+        case StatementList block -> {
+            return compileBlock(block);
+        }
+        }
+    }
+
+    /** Translate an expression of number type.
+
+        @param expr Expression to translate.
+        @return A node evaluating {@code expr}.  */
+    private NumNode compileNum(Expr expr) {
+        assert isNumber(expr.getResultType());
+        switch (expr) {
+        case ErrorExpr ignored -> throw new IllegalStateException();
+        case NumberLit numlit -> {
+            var value = numlit.getValue();
+            return f -> value;
+        }
+        case VarRef var -> {
+            var decl = var.getVariable();
+            var global = c.getGlobalSlot(decl);
+            if (global.isPresent()) {
+                int slot = global.get();
+                return f -> interp.getNumGlobals()[slot];
+            }
+            var ref = blob.findLocal(decl);
+            var slot = ref.slot();
+            return switch (ref.loc()) {
+            case LOCAL -> f -> f.numLocals[slot];
+            case UPVALUE -> f -> f.closure.numUpvalues()[slot];
+            /* Only found in upvalue maps.  */
+            case SELF -> throw new IllegalStateException();
+            };
+        }
+        case FunctionCall call -> {
+            var node = compileCall(call);
+            return f -> node.call(f).numResult;
+        }
+        case VectorExpr vector -> throw new IllegalStateException();
+        case Expr binaryExpr -> {
+            /* Must not be a subclass.  */
+            assert binaryExpr.getClass() == Expr.class;
+            var lhs = compileNum(binaryExpr.getLhs());
+            var rhs = compileNum(binaryExpr.getRhs());
+            return switch (binaryExpr.getOperation()) {
+            case ADD -> f -> lhs.eval(f) + rhs.eval(f);
+            case SUB -> f -> lhs.eval(f) - rhs.eval(f);
+            case MUL -> f -> lhs.eval(f) * rhs.eval(f);
+            case DIV -> f -> lhs.eval(f) / rhs.eval(f);
+            case POW -> f -> Math.pow(lhs.eval(f), rhs.eval(f));
+            default -> throw new IllegalArgumentException();
+            };
+        }
+        }
+    }
+
+    /** Translate an expression not of number type.
+
+        @param expr Expression to translate.
+        @return A node evaluating {@code expr}.  */
+    private RefNode compileRef(Expr expr) {
+        assert !isNumber(expr.getResultType());
+        switch (expr) {
+        case VarRef var -> {
+            var decl = var.getVariable();
+            var global = c.getGlobalSlot(decl);
+            if (global.isPresent()) {
+                int slot = global.get();
+                return f -> interp.getGlobals()[slot];
+            }
+            var ref = blob.findLocal(decl);
+            var slot = ref.slot();
+            return switch (ref.loc()) {
+            case LOCAL -> f -> f.locals[slot];
+            case UPVALUE -> f -> f.closure.upvalues()[slot];
+            /* Only found in upvalue maps.  */
+            case SELF -> throw new IllegalStateException();
+            };
+        }
+        case FunctionCall call -> {
+            var node = compileCall(call);
+            return f -> node.call(f).result;
+        }
+        case VectorExpr vector -> {
+            var elements = vector.getElements()
+                .stream()
+                .map(this::compileValue)
+                .toArray(RefNode[]::new);
+            return f -> {
+                var values = new ArrayList<Value>(elements.length);
+                for (var element : elements)
+                    values.add(element.eval(f));
+                return new Value.Vector(values);
+            };
+        }
+        default -> throw new IllegalStateException();
+        }
+    }
+
+    /** Translate an expression of any type into a node producing a {@link
+        Value}, boxing numbers.
+
+        @param expr Expression to translate.
+        @return A node evaluating {@code expr}.  */
+    private RefNode compileValue(Expr expr) {
+        if (!isNumber(expr.getResultType()))
+            return compileRef(expr);
+        var node = compileNum(expr);
+        return f -> new Value.Number(node.eval(f));
+    }
+
+    /** Translate a call.  The callee is evaluated first, and then the
+        arguments, in order, right into the frame of the callee.
+
+        @param call Call to translate.
+        @return A node performing {@code call}.  */
+    private CallNode compileCall(FunctionCall call) {
+        var callee = compileRef(call.getFunction());
+        var argExprs = call.getArguments();
+        var args = new ArgNode[argExprs.size()];
+        for (int i = 0; i < args.length; i++) {
+            var slot = i;
+            var arg = argExprs.get(i);
+            if (isNumber(arg.getResultType())) {
+                var node = compileNum(arg);
+                args[i] = (caller, frame) ->
+                    frame.numLocals[slot] = node.eval(caller);
+            } else {
+                var node = compileRef(arg);
+                args[i] = (caller, frame) ->
+                    frame.locals[slot] = node.eval(caller);
+            }
+        }
+
+        return f -> {
+            var closure = (Value.Closure) callee.eval(f);
+            var fn = closure.function();
+            var frame = new Frame(closure, fn.getLocalCount());
+            for (var arg : args)
+                arg.bind(f, frame);
+            fn.getTreeCode().exec(frame);
+            return frame;
+        };
+    }
+}
@@ -0,0 +1,156 @@
+package rs.raf.calculator.vm;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import rs.raf.calculator.Calculator;
+
+/** Compiles a whole program ahead of time into a standalone, runnable JAR,
+    so that running it skips the frontend, the compiler and the {@link VM}
+    entirely.
+
+    <p> Each function in the function table is translated by the {@link
+    JitCompiler}, exactly as it would be once hot, and the toplevel code is
+    translated into the {@code main} method of a program class, which also
+    holds the globals, as static fields, and sets up the function table.  The
+    JAR also contains the runtime classes generated code refers to.  */
+public final class AotCompiler {
+    /** Internal name of the program class.  */
+    private static final String PROGRAM_CLASS = "rs/raf/calculator/vm/Program";
+    /** Packages whose classes generated code may (indirectly) load.  */
+    private static final String[] RUNTIME_PACKAGES = {
+        "rs/raf/calculator/vm/",
+        "rs/raf/calculator/ast/",
+    };
+
+    /** Thrown if the program contains something we cannot translate.  */
+    @SuppressWarnings("serial")
+    public static final class AotException extends Exception {
+        /** @param message What we cannot translate.
+            @param cause Why.  */
+        AotException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    private AotCompiler() {}
+
+    /** Compile the program consisting of the functions in the function table
+        of {@code c} and the toplevel code {@code toplevel} into a JAR.
+
+        @param c Context the program was compiled in, by the {@link
+                 rs.raf.calculator.compiler.Compiler}.
+        @param toplevel Toplevel code of the program.
+        @param jar Path of the JAR to write.
+        @throws AotException If some code cannot be translated.
+        @throws IOException If writing the JAR fails.  */
+    public static void compile(Calculator c, Blob toplevel, Path jar)
+        throws AotException, IOException
+    {
+        /* Compile any lazy functions, which may add the functions nested in
+           them to the table, too.  */
+        for (int i = 0; i < c.getFunctionCount(); i++)
+            c.getFunction(i).ensureCompiled();
+
+        var functionClasses = new String[c.getFunctionCount()];
+        var classFiles = new byte[functionClasses.length][];
+        for (int i = 0; i < functionClasses.length; i++) {
+            var fn = c.getFunction(i);
+            functionClasses[i] = "rs/raf/calculator/vm/Aot$%s$%d"
+                .formatted(fn.getFuncDecl().getName(), i);
+            try {
+                classFiles[i] = JitCompiler.translateAot(c, fn,
+                                                         functionClasses[i],
+                                                         PROGRAM_CLASS);
+            } catch (JitCompiler.UnsupportedException e) {
+                throw new AotException("cannot compile function '%s'"
+                                       .formatted(fn.getFuncDecl().getName()),
+                                       e);
+            }
+        }
+        byte[] program;
+        try {
+            program = JitCompiler.translateProgram(c, toplevel, PROGRAM_CLASS,
+                                                   functionClasses);
+        } catch (JitCompiler.UnsupportedException e) {
+            throw new AotException("cannot compile toplevel code", e);
+        }
+
+        var manifest = new Manifest();
+        var attributes = manifest.getMainAttributes();
+        attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        attributes.put(Attributes.Name.MAIN_CLASS,
+                       PROGRAM_CLASS.replace('/', '.'));
+        try (var out = new JarOutputStream(Files.newOutputStream(jar),
+                                           manifest)) {
+            copyRuntime(out);
+            for (int i = 0; i < functionClasses.length; i++)
+                writeEntry(out, functionClasses[i] + ".class", classFiles[i]);
+            writeEntry(out, PROGRAM_CLASS + ".class", program);
+        }
+    }
+
+    /** Copy the classes in {@link #RUNTIME_PACKAGES} from wherever this class
+        was loaded from, either a directory or a JAR, into {@code out}.  */
+    private static void copyRuntime(JarOutputStream out) throws IOException {
+        Path source;
+        try {
+            source = Path.of(AotCompiler.class.getProtectionDomain()
+                             .getCodeSource().getLocation().toURI());
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+
+        if (Files.isDirectory(source)) {
+            for (var pkg : RUNTIME_PACKAGES) {
+                var dir = source.resolve(pkg);
+                if (!Files.isDirectory(dir))
+                    continue;
+                try (var files = Files.list(dir)) {
+                    for (var file : (Iterable<Path>) files::iterator)
+                        if (file.toString().endsWith(".class"))
+                            writeEntry(out, pkg + file.getFileName(),
+                                       Files.readAllBytes(file));
+                }
+            }
+            return;
+        }
+
+        try (var jar = new JarFile(source.toFile())) {
+            for (var entry : (Iterable<JarEntry>) jar.stream()::iterator) {
+                if (!isRuntimeClass(entry.getName()))
+                    continue;
+                try (var in = jar.getInputStream(entry)) {
+                    writeEntry(out, entry.getName(), in.readAllBytes());
+                }
+            }
+        }
+    }
+
+    /** @return Whether JAR entry {@code name} is a class in one of the
+                {@link #RUNTIME_PACKAGES}, and not in a subpackage.  */
+    private static boolean isRuntimeClass(String name) {
+        if (!name.endsWith(".class"))
+            return false;
+        for (var pkg : RUNTIME_PACKAGES)
+            if (name.startsWith(pkg)
+                && name.indexOf('/', pkg.length()) < 0)
+                return true;
+        return false;
+    }
+
+    /** Write a JAR entry named {@code name} holding {@code bytes}.  */
+    private static void writeEntry(JarOutputStream out, String name,
+                                   byte[] bytes) throws IOException {
+        out.putNextEntry(new JarEntry(name));
+        out.write(bytes);
+        out.closeEntry();
+    }
+}
@@ -0,0 +1,52 @@
+package rs.raf.calculator.vm;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/** Runtime of a program compiled ahead of time by the {@link AotCompiler}.
+    Every function is compiled, so call sites always link straight to the
+    {@code invoke} method of the callee, and nothing is counted.  Globals are
+    static fields of the program class, which generated code accesses
+    directly.  */
+final class AotRuntime extends CompiledRuntime {
+    /** The function table.  Each function only has its entry set.  */
+    private final Function[] functions;
+
+    /** Called by the static initializer of the program class.
+
+        @param classes Classes of each function, in function table order.
+        @param descriptors Descriptors of the {@code invoke} methods of
+                           each of those.  */
+    AotRuntime(Class<?>[] classes, String[] descriptors) {
+        var lookup = MethodHandles.lookup();
+        functions = new Function[classes.length];
+        try {
+            for (int i = 0; i < classes.length; i++) {
+                var type = MethodType.fromMethodDescriptorString
+                    (descriptors[i], AotRuntime.class.getClassLoader());
+                functions[i] = new Function();
+                functions[i].setEntry(lookup.findStatic(classes[i], "invoke",
+                                                        type));
+            }
+        } catch (ReflectiveOperationException e) {
+            /* The program class and the function classes come together.  */
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    MethodHandle entry(Value.Closure callee) {
+        return callee.function().getEntry();
+    }
+
+    @Override
+    boolean isLinkable(Function fn) {
+        return true;
+    }
+
+    @Override
+    Function function(int fnId) {
+        return functions[fnId];
+    }
+}
@@ -1,23 +1,160 @@
 package rs.raf.calculator.vm;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /** A bunch of code that the VM can execute.  May or may not be associated
     with a function, may or may not have locals.
 
-    @param code Code that will be executed for this blob.  Must terminate in
-           either a {@link Instruction.Code#RETURN <code>RETURN</code>}, {@link
-           Instruction.Code#RETURN_VOID <code>RETURN_VOID</code>} or {@link
-           Instruction.Code#FINISH_OUTER <code>FINISH_OUTER</code>}.
-    @param constantTable Table of constant values referenced by the {@link
-           Instruction.Code#PUSH_CONSTANT <code>PUSH_CONSTANT</code>}
-           instructions.  */
-public record Blob(List<Instruction> code,
-                   List<Double> constantTable)
-{
-    public Blob() {
-        this(new ArrayList<>(), new ArrayList<>());
+    <p> A blob has two forms.  While being built, its code is a list of {@link
+    Instruction}s, and its constant table is a list of distinct numbers.
+    Once the blob is complete, it is {@link #finish(ConstantPool) finished},
+    which packs the code into an {@code int[]} (see {@link
+    Instruction#packInto(int[], int)} for the encoding) and the constants
+    into a {@code double[]}, and into an array of their boxes from the
+    program's {@link ConstantPool}, and drops the building form.  Finishing
+    also allocates a {@link CallSite} for each call instruction.  Finished
+    blobs are then checked by the {@link Verifier}, which records, among
+    other things, how deep their operand stack gets.  The VM only executes
+    verified blobs.
+
+    <p> The code must terminate in either a {@link Instruction.Code#RETURN
+    <code>RETURN</code>}, {@link Instruction.Code#RETURN_VOID
+    <code>RETURN_VOID</code>} or {@link Instruction.Code#FINISH_OUTER
+    <code>FINISH_OUTER</code>}.  The constant table holds constant values
+    referenced by the {@link Instruction.Code#PUSH_CONSTANT
+    <code>PUSH_CONSTANT</code>} instructions.  */
+public final class Blob {
+    /** Code of this blob, while it is being built.  */
+    private List<Instruction> code = new ArrayList<>();
+    /** Constants of this blob, while it is being built.  */
+    private List<Double> constantTable = new ArrayList<>();
+    /** Indices of the numbers in {@link #constantTable}, while it is being
+        built.  */
+    private Map<Double, Integer> constantIndices = new HashMap<>();
+    /** Packed code of this blob, once finished.  */
+    private int[] packedCode;
+    /** Constants of this blob, once finished.  */
+    private double[] packedConstants;
+    /** Boxes of {@link #packedConstants}, once finished.  */
+    private Value.Number[] boxedConstants;
+    /** Inline caches of the call instructions of this blob, once finished,
+        indexed by the IP of the call.  {@code null} for other IPs.  */
+    private CallSite[] callSites;
+    /** Maximum depth of the operand stack, once verified, or {@code -1}.  */
+    private int maxStack = -1;
+    /** Depth of the operand stack before each IP, once verified.  {@code -1}
+        for IPs that do not start a reachable instruction.  */
+    private int[] stackDepths;
+    /** Events reported by the {@link Instruction.Code#PROBE
+        <code>PROBE</code>} instructions of this blob, if it is an
+        instrumented copy of another, or {@code null}.  See {@link
+        Instrumenter}.  */
+    private Probe[] probes;
+
+    /** @return Code of this unfinished blob.  */
+    public List<Instruction> code() {
+        assert !isFinished();
+        return code;
+    }
+
+    /** @return Constant table of this unfinished blob.  */
+    public List<Double> constantTable() {
+        assert !isFinished();
+        return constantTable;
+    }
+
+    /** Add {@code number} to the constant table of this unfinished blob,
+        unless it is there already.
+
+        @return Index of {@code number} in the constant table.  */
+    public int addConstant(double number) {
+        return constantIndices.computeIfAbsent(number, n -> {
+                constantTable().add(n);
+                return constantTable.size() - 1;
+            });
+    }
+
+    /** @return Packed code of this finished blob.  */
+    public int[] packedCode() {
+        assert isFinished();
+        return packedCode;
+    }
+
+    /** @return Constant table of this finished blob.  */
+    public double[] packedConstants() {
+        assert isFinished();
+        return packedConstants;
+    }
+
+    /** @return Boxes of the constants of this finished blob.  */
+    public Value.Number[] boxedConstants() {
+        assert isFinished();
+        return boxedConstants;
+    }
+
+    /** @return Inline caches of this finished blob, indexed by IP.  */
+    CallSite[] callSites() {
+        assert isFinished();
+        return callSites;
+    }
+
+    /** @return Events reported by the probes of this blob, or {@code null}
+                if it is not instrumented.  */
+    Probe[] probes() {
+        return probes;
+    }
+
+    /** @param probes Events reported by the probes of this blob.  */
+    void setProbes(Probe[] probes) {
+        this.probes = probes;
+    }
+
+    /** @return Maximum depth of the operand stack of this verified blob.  */
+    public int maxStack() {
+        assert isVerified();
+        return maxStack;
+    }
+
+    /** @return Depth of the operand stack before each IP of this verified
+                blob.  */
+    public int[] stackDepths() {
+        assert isVerified();
+        return stackDepths;
+    }
+
+    /** Count the instructions of this verified blob as executed {@code
+        times} times, by adding to the count of their opcode, by ordinal, in
+        {@code counts}.  As code has no control flow, each run of a blob
+        executes every instruction the {@link Verifier} reached exactly
+        once.  */
+    void countOpcodes(long[] counts, long times) {
+        assert isVerified();
+        if (times == 0)
+            return;
+        for (int ip = 0; ip < packedCode.length; ip++)
+            if (stackDepths[ip] >= 0)
+                counts[Instruction.opcode(packedCode[ip]).ordinal()] += times;
+    }
+
+    /** @return Whether the {@link Verifier} accepted this blob.  */
+    public boolean isVerified() {
+        return maxStack >= 0;
+    }
+
+    /** Record the results of verifying this blob.  See the corresponding
+        fields.  */
+    void setVerification(int maxStack, int[] stackDepths) {
+        assert isFinished();
+        this.stackDepths = stackDepths;
+        this.maxStack = maxStack;
+    }
+
+    /** @return Whether {@link #finish(ConstantPool)} was already called.  */
+    public boolean isFinished() {
+        return packedCode != null;
     }
 
     /** @param instruction Instruction to append to this blob.
@@ -28,4 +165,38 @@ public record Blob(List<Instruction> code,
         code().add(instruction);
         return newInsnIp;
     }
+
+    /** Pack the code and constants of this blob, making it executable.  No
+        more instructions may be added afterwards.
+
+        @param pool Pool of the program, to box the constants in.  */
+    public void finish(ConstantPool pool) {
+        assert !isFinished();
+        var packed = new int[code.stream()
+                             .mapToInt(i -> i.getOpcode().length)
+                             .sum()];
+        var sites = new CallSite[packed.length];
+        var ip = 0;
+        for (var insn : code) {
+            switch (insn.getOpcode()) {
+            case FUNCTION_CALL, GET_GLOBAL_CALL, TAIL_CALL ->
+                sites[ip] = new CallSite();
+            default -> {}
+            }
+            ip = insn.packInto(packed, ip);
+        }
+
+        packedConstants = constantTable.stream()
+            .mapToDouble(Double::doubleValue)
+            .toArray();
+        boxedConstants = constantTable.stream()
+            .map(pool::box)
+            .toArray(Value.Number[]::new);
+        callSites = sites;
+        packedCode = packed;
+        /* Nothing needs the unpacked form anymore.  */
+        code = null;
+        constantTable = null;
+        constantIndices = null;
+    }
 }
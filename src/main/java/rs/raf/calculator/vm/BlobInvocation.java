@@ -1,30 +1,54 @@
 package rs.raf.calculator.vm;
 
-import java.util.ArrayList;
-import java.util.List;
-
 import lombok.*;
 
-/** Activation record of a blob. Contains the operand stack while executing
-    this blob, the blob itself, as well as upvalues and locals (if
-    applicable), as well as the IP to return to after executing.   */
+/** Activation record of a blob. Contains the blob itself, its upvalues (if
+    applicable), where in the value stack of the {@link VM} its locals are,
+    as well as the IP to return to after executing.
+
+    <p> Invocations are pooled by the VM: each object describes whichever
+    invocation is currently that many calls deep, and is re-{@link #enter}ed
+    by each new one.
+
+    <p> When executing {@link rs.raf.calculator.Calculator#unboxed
+    unboxed}, the upvalues are split into two parallel tables: one holding
+    {@code double}s, for values the type checker proved to be numbers, and
+    one holding references, for all other values.  Only the table matching
+    the static type of a slot holds a meaningful value.  */
 @Data
-@RequiredArgsConstructor
+@NoArgsConstructor
 public class BlobInvocation {
-    /** Stack of operands while executing this blob.  */
-    private final List<Value> operandStack = new ArrayList<>();
     /** The blob being executed.  */
-    private final Blob blob;
+    private Blob blob;
     /** The upvalue table.  Direct copy from the closure.  Immutable.  **/
-    private final Value[] upvalues;
-    /** The local value table.  */
-    private final Value[] locals;
+    private Value[] upvalues;
+    /** The numeric upvalue table, when unboxed.  Direct copy from the
+        closure.  Immutable.  */
+    private double[] numUpvalues;
+    /** Index in the value stack of the first local.  Operands are pushed
+        right after the last one.  */
+    private int base;
     /** The IP to return to.  */
-    private final int prevIp;
+    private int prevIp;
+    /** Index in the value stack to place the return value into.  */
+    private int resultSlot;
+
+    /** Start executing a new invocation in this frame.
 
-    /** Construct a blob invocation for the toplevel blob.  It has no locals,
-        nor upvalues (duh - there's no up).  */
-    public BlobInvocation(Blob blob) {
-        this(blob, null, null, -1);
+        @param blob The blob to execute.
+        @param upvalues The upvalue table.
+        @param numUpvalues The numeric upvalue table, when unboxed.
+        @param base Index in the value stack of the first local.
+        @param prevIp The IP to return to.
+        @param resultSlot Index in the value stack to place the return value
+                          into.  */
+    public void enter(Blob blob, Value[] upvalues, double[] numUpvalues,
+                      int base, int prevIp, int resultSlot) {
+        this.blob = blob;
+        this.upvalues = upvalues;
+        this.numUpvalues = numUpvalues;
+        this.base = base;
+        this.prevIp = prevIp;
+        this.resultSlot = resultSlot;
     }
 }
@@ -0,0 +1,118 @@
+package rs.raf.calculator.vm;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/** Monomorphic inline cache of a call instruction in a {@link Blob}.
+
+    <p> Most call sites only ever call one function, usually through a closure
+    fetched from a global, but sometimes through closures built anew on each
+    call of the function around them.  The cache remembers the function last
+    called from its site, and what calling it requires, so that, as long as
+    the site keeps calling closures of the same function, the VM can compare
+    the function by identity, take the upvalues of the closure, and proceed
+    to set up the invocation without inspecting anything else.  When a
+    different function shows up, the cache is simply refilled from it.  */
+final class CallSite {
+    /** Closure last called from this site, or {@code null} if none yet.  */
+    Value.Closure closure;
+    /** Function of {@link #closure}, or {@code null} if none is cached.  */
+    Function function;
+    /** Code of {@link #closure}.  */
+    Blob blob;
+    /** Number of locals calling {@link #closure} requires.  */
+    int localCount;
+    /** Number of stack slots an invocation of {@link #closure} requires:
+        its locals, and its deepest operand stack.  */
+    int frameSize;
+    /** Upvalues of {@link #closure}.  */
+    Value[] upvalues;
+    /** Numeric upvalues of {@link #closure}, when unboxed.  */
+    double[] numUpvalues;
+
+    /** Number of calls that found {@link #function} already cached.  */
+    long hits;
+    /** Number of calls that had to refill the cache, including the first
+        one.  */
+    long misses;
+    /** Number of calls from this site before {@link #function} was
+        cached.  */
+    private long filledAt;
+    /** Number of calls to each function previously cached here, other than
+        the one cached now, or {@code null} if there were none.  */
+    private Map<Function, Long> previousTargets;
+
+    /** Remember {@code callee} as the closure called from this site, and
+        count a miss.
+
+        @param callee Closure being called.  */
+    void fill(Value.Closure callee) {
+        forget();
+        misses++;
+        /* This is the first call of the function, if it is lazy.  */
+        callee.function().ensureCompiled();
+        closure = callee;
+        function = callee.function();
+        blob = callee.code();
+        localCount = callee.localCount();
+        frameSize = localCount + blob.maxStack();
+        upvalues = callee.upvalues();
+        numUpvalues = callee.numUpvalues();
+    }
+
+    /** Switch to {@code callee}, another closure of {@link #function}, which
+        only differs from {@link #closure} in its upvalues.
+
+        @param callee Closure being called.  */
+    void rebind(Value.Closure callee) {
+        closure = callee;
+        upvalues = callee.upvalues();
+        numUpvalues = callee.numUpvalues();
+    }
+
+    /** Forget the cached function, so that the next call refills the cache,
+        but keep counting calls as before.  */
+    void invalidate() {
+        forget();
+        closure = null;
+    }
+
+    /** Move the calls of the cached function, if any, into {@link
+        #previousTargets}, and stop caching it.  */
+    private void forget() {
+        if (function != null)
+            countTarget(previousTargets(), function, hits + misses - filledAt);
+        filledAt = hits + misses;
+        function = null;
+    }
+
+    /** @return Whether this site called more than one function.  */
+    boolean isPolymorphic() {
+        return targets().size() > 1;
+    }
+
+    /** @return The number of calls from this site to each function, so far.
+                Only counts calls the VM made, not those made by compiled
+                code.  */
+    Map<Function, Long> targets() {
+        var targets = new IdentityHashMap<Function, Long>();
+        if (previousTargets != null)
+            targets.putAll(previousTargets);
+        if (function != null)
+            countTarget(targets, function, hits + misses - filledAt);
+        return targets;
+    }
+
+    /** @return {@link #previousTargets}, created if necessary.  */
+    private Map<Function, Long> previousTargets() {
+        if (previousTargets == null)
+            previousTargets = new IdentityHashMap<>();
+        return previousTargets;
+    }
+
+    /** Add {@code calls} calls of {@code fn} to {@code targets}.  */
+    private static void countTarget(Map<Function, Long> targets, Function fn,
+                                    long calls) {
+        targets.merge(fn, calls, Long::sum);
+    }
+}
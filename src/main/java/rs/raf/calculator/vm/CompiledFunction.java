@@ -0,0 +1,32 @@
+package rs.raf.calculator.vm;
+
+/** A {@link Function} the {@link Jit} compiled to JVM bytecode.  Implemented
+    by generated classes, and called by the {@link VM} in place of
+    interpreting the function.
+
+    <p> Each generated class also has a static {@code invoke} method taking
+    the closure, followed by the arguments, and returning the result, where
+    numbers are passed as {@code double}s, and everything else as {@link
+    Value}s.  That is what these bridges, as well as other compiled code,
+    call.  */
+public interface CompiledFunction {
+    /** Call a closure of this function, as the boxed VM would.
+
+        @param self Closure being called.
+        @param args Arguments to the call.
+        @return The result of the call, or {@code null} if the function is
+                {@code void}.  */
+    Value call(Value.Closure self, Value[] args);
+
+    /** Call a closure of this function, as the unboxed VM would.  Arguments
+        and the result are in the parallel operand stack tables of the
+        caller, in the table matching their type.
+
+        @param self Closure being called.
+        @param nums Numeric operand stack of the caller.
+        @param refs Reference operand stack of the caller.
+        @param argBase Index of the first argument.
+        @param dst Index to store the result into.  */
+    void call(Value.Closure self, double[] nums, Value[] refs,
+              int argBase, int dst);
+}
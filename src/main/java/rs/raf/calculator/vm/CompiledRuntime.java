@@ -0,0 +1,152 @@
+package rs.raf.calculator.vm;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/** What code generated by the {@link JitCompiler} calls back into.  Each
+    generated class holds one in its static {@code JIT} field.  The {@link
+    Jit} implements it in terms of the {@link VM} running the program, and
+    {@link AotRuntime} in terms of a program compiled ahead of time.
+
+    <p> Compiled code calls closures through an {@code invokedynamic}
+    instruction per call site, linked by {@link
+    #bootstrapCall(MethodHandles.Lookup, String, MethodType)} to a {@link
+    CompiledCallSite}.  A site starts out going through {@link
+    #entry(Value.Closure)} on each call.  Once that leads to compiled code,
+    the site is linked straight to it, guarded by a check that the next
+    callee is a closure of the same function, so that the JVM can inline the
+    callee into the caller.  Calls of other functions go through {@link
+    #entry(Value.Closure)} again, and relink the site, up to {@link
+    #MAX_RELINKS} times.  */
+abstract class CompiledRuntime {
+    /** Number of times a call site is relinked to another callee, before it
+        is left going through {@link #entry(Value.Closure)}.  */
+    private static final int MAX_RELINKS = 8;
+
+    /** Find the code to run for a call to {@code callee}, counting the call,
+        and polling for cancellation, if applicable.  Only called on the
+        slow path of call sites.
+
+        @param callee Closure being called.
+        @return A handle calling {@code callee}.  Its type is that of the
+                {@code invoke} method of compiled code.  */
+    abstract MethodHandle entry(Value.Closure callee);
+
+    /** @return Whether the handle {@link #entry(Value.Closure)} returned for
+                closures of {@code fn} may be called without going through
+                it again, as it leads straight to compiled code.  */
+    abstract boolean isLinkable(Function fn);
+
+    /** @return {@code target}, guarded by whatever this runtime requires of
+                linked call sites, such that {@code fallback} is called
+                instead once that no longer holds.  */
+    MethodHandle guard(MethodHandle target, MethodHandle fallback) {
+        return target;
+    }
+
+    /** @return Function table entry {@code fnId}.  */
+    abstract Function function(int fnId);
+
+    /** @return {@code number}, boxed.  */
+    static Value box(double number) {
+        return new Value.Number(number);
+    }
+
+    /** @return The number in {@code value}, which must be a number.  */
+    static double unbox(Value value) {
+        return ((Value.Number) value).number();
+    }
+
+    /** @return A vector of {@code elements}.  */
+    static Value vector(Value[] elements) {
+        return new Value.Vector(new ArrayList<>(Arrays.asList(elements)));
+    }
+
+    /** @return Whether {@code callee} is a closure of {@code fn}.  */
+    private static boolean isClosureOf(Function fn, Value.Closure callee) {
+        return callee.function() == fn;
+    }
+
+    /** Handles used to build {@link CompiledCallSite}s.  */
+    private static final MethodHandle RELINK, IS_CLOSURE_OF;
+    static {
+        var lookup = MethodHandles.lookup();
+        try {
+            RELINK = lookup.findVirtual
+                (CompiledCallSite.class, "relink",
+                 MethodType.methodType(MethodHandle.class,
+                                       Value.Closure.class));
+            IS_CLOSURE_OF = lookup.findStatic
+                (CompiledRuntime.class, "isClosureOf",
+                 MethodType.methodType(boolean.class, Function.class,
+                                       Value.Closure.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /** A call site of compiled code.  Its type is that of the {@code invoke}
+        method of its callees.  */
+    final class CompiledCallSite extends MutableCallSite {
+        /** Calls {@link #relink(Value.Closure)}, and then what it
+            returns.  */
+        private final MethodHandle slowPath;
+        /** Number of times this site was linked to a callee.  */
+        private int relinks = 0;
+
+        CompiledCallSite(MethodType type) {
+            super(type);
+            slowPath = MethodHandles.foldArguments
+                (MethodHandles.exactInvoker(type), RELINK.bindTo(this));
+            setTarget(slowPath);
+        }
+
+        /** Find the code to run for a call to {@code callee}, and link this
+            site to it, if possible.
+
+            @return A handle calling {@code callee}.  */
+        private MethodHandle relink(Value.Closure callee) {
+            var entry = entry(callee);
+            var fn = callee.function();
+            if (isLinkable(fn) && relinks < MAX_RELINKS) {
+                relinks++;
+                var test = IS_CLOSURE_OF.bindTo(fn);
+                setTarget(guard(MethodHandles.guardWithTest(test, entry,
+                                                            slowPath),
+                                slowPath));
+            }
+            return entry;
+        }
+    }
+
+    /** Bootstrap method of the call sites of compiled code.
+
+        @param lookup Lookup of the class of the calling code, which holds
+                      the runtime to link with in its {@code JIT} field.
+        @param name Ignored.
+        @param type Type of the call site.
+        @return A new, unlinked, call site.
+        @throws Throwable If the runtime cannot be found.  */
+    static java.lang.invoke.CallSite
+        bootstrapCall(MethodHandles.Lookup lookup, String name,
+                      MethodType type)
+        throws Throwable
+    {
+        return runtimeOf(lookup).new CompiledCallSite(type);
+    }
+
+    /** @return The runtime held by the class of {@code lookup}.  */
+    static CompiledRuntime runtimeOf(MethodHandles.Lookup lookup)
+        throws Throwable
+    {
+        var owner = lookup.lookupClass();
+        var field = owner.getDeclaredField("JIT");
+        return (CompiledRuntime) lookup
+            .findStaticGetter(owner, "JIT", field.getType())
+            .invoke();
+    }
+}
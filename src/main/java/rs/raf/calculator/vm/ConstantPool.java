@@ -0,0 +1,37 @@
+package rs.raf.calculator.vm;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/** Boxes of the numbers in the constant tables of blobs.
+
+    <p> Each blob keeps its constants both as {@code double}s, for unboxed
+    arithmetic, and as {@link Value.Number}s, which instructions pushing
+    boxed constants push as they are, rather than boxing them anew every
+    time.  A blob holds each number only once, so it never boxes one twice.
+
+    <p> As values are immutable, and never compared by identity, blobs using
+    the same number could also share a single box.  A shared pool hands out
+    those, at the cost of keeping every box it ever handed out for as long
+    as the program runs, even those of blobs long gone, so that it grows
+    with the program, rather than with the code alive at any one time.
+    {@link rs.raf.calculator.Calculator#shareConstants Sharing} thus suits
+    whole programs, but not streamed ones, and is only done on request.  */
+public final class ConstantPool {
+    /** Boxes handed out so far, by number, or {@code null} if boxes are not
+        shared.  {@link Double#equals(Object)} tells zero and negative zero
+        apart, so each gets its own box.  */
+    private final Map<Double, Value.Number> boxes;
+
+    /** @param shared Whether blobs share boxes of the same number.  */
+    public ConstantPool(boolean shared) {
+        boxes = shared ? new HashMap<>() : null;
+    }
+
+    /** @return A box of {@code number}.  */
+    public Value.Number box(double number) {
+        if (boxes == null)
+            return new Value.Number(number);
+        return boxes.computeIfAbsent(number, Value.Number::new);
+    }
+}
@@ -0,0 +1,43 @@
+package rs.raf.calculator.vm;
+
+/** Receives events from a {@link VM} it is {@link VM#attach attached} to,
+    for tracing, debugging or profiling.  Events are delivered on the thread
+    running the VM, synchronously, so a listener can also stop execution
+    there, for instance to implement a breakpoint.
+
+    <p> In all events, {@code fn} is the function whose code is executing, or
+    {@code null} for toplevel code, and {@code ip} is an IP in its original,
+    uninstrumented code, as printed in assembly dumps.  */
+public interface ExecutionListener {
+    /** Kinds of events.  Only the code needed to report the kinds a listener
+        is attached for is instrumented.  */
+    enum Event {
+        /** {@link #functionEntered(Function)}.  */
+        ENTRY,
+        /** {@link #functionExited(Function)}.  */
+        EXIT,
+        /** {@link #beforeInstruction(Function, int, Instruction.Code)}.  */
+        INSTRUCTION,
+        /** {@link #valueCreated(Function, int, Value)}.  */
+        VALUE,
+    }
+
+    /** Called once an invocation of {@code fn} starts, before its first
+        instruction.  */
+    default void functionEntered(Function fn) {}
+
+    /** Called right before an invocation of {@code fn} returns, or is
+        replaced by a tail call.  */
+    default void functionExited(Function fn) {}
+
+    /** Called before the instruction at {@code ip}, of opcode {@code op}, is
+        executed.  */
+    default void beforeInstruction(Function fn, int ip, Instruction.Code op) {}
+
+    /** Called after the instruction at {@code ip} allocated {@code value}.
+        Those are the instructions building vectors and closures, and, as
+        numbers are boxed then, the instructions producing numbers when
+        executing boxed, or {@link Instruction.Code#BOX_NUMBER
+        <code>BOX_NUMBER</code>} when executing unboxed.  */
+    default void valueCreated(Function fn, int ip, Value value) {}
+}
@@ -1,7 +1,10 @@
 package rs.raf.calculator.vm;
 
+import java.lang.invoke.MethodHandle;
+
 import lombok.Data;
 import rs.raf.calculator.ast.FunctionDeclaration;
+import rs.raf.calculator.ast.Type;
 
 /** A VM function.  A function is effectively a blueprint for a closure: it
     has information on how to construct a {@link Value.Closure}.
@@ -14,6 +17,12 @@ import rs.raf.calculator.ast.FunctionDeclaration;
 public class Function {
     /** Code to place in the closure.  */
     private Blob code;
+    /** Code to place in the closure, when compiled for the {@link
+        RegisterVM}.  */
+    private RegisterBlob registerCode;
+    /** Body of the function, when compiled for the {@link
+        TreeInterpreter}.  */
+    private TreeInterpreter.StmtNode treeCode;
     /** Given {@code upvalueMap[i] = x}, upvalue in slot {@code i} will be
         loaded with upvalue in slot {@code x.slot()} of the upvalue table of
         the currently executing function, if {@code x.loc()} is {@code
@@ -38,8 +47,67 @@ public class Function {
         does mean that it is appropriate to copy values in order to implement
         upvalues.  */
     private UpvalueMapEntry[] upvalueMap;
-    /** Number of local variables in this function.  */
+    /** Static types of the values in each upvalue slot.  Parallel to {@link
+        #upvalueMap}.  */
+    private Type[] upvalueTypes;
+    /** Number of local variables in this function.  For the {@link
+        RegisterVM}, this is the number of registers instead.  */
     private int localCount = -1;
     /** Function declaration this function is derived from.  */
     private FunctionDeclaration funcDecl;
+    /** Compiles the body of this function, if it was declared {@link
+        rs.raf.calculator.Calculator#lazy lazily}, and not compiled yet.
+        Until then, only the upvalue map and types are set.  */
+    private Runnable pendingBody;
+    /** Whether the {@link rs.raf.calculator.Calculator#profile profile} says
+        this function is called often.  Hot functions are optimized, and
+        compiled as early as possible.  */
+    private boolean hot = false;
+    /** Instrumented copy of {@link #code}, executed instead of it while the
+        VM reports events about this function, or {@code null}.  See {@link
+        VM#attach(ExecutionListener, java.util.Set,
+        java.util.function.Predicate)}.  */
+    private Blob instrumentedCode;
+
+    /* Tiered execution.  See {@link Jit}.  */
+    /** Number of times this function was called so far.  */
+    private long invocationCount = 0;
+    /** Number of those calls the VM interpreted {@link #code}, or its
+        instrumented copy, for, rather than running compiled code.  */
+    private long interpretedCount = 0;
+    /** Compiled code of this function, once it got hot enough, or {@code
+        null} while it is interpreted.  */
+    private CompiledFunction compiled;
+    /** Whether the JIT tried compiling this function, and could not.  */
+    private boolean notCompilable = false;
+    /** Handle through which compiled code calls closures of this function.
+        See {@link Jit#entry(Value.Closure)}.  Built lazily.  */
+    private MethodHandle entry;
+
+    /** Compile the body of this function, if that is still pending.  Must be
+        called before anything besides the upvalues is looked at.  */
+    public void ensureCompiled() {
+        if (pendingBody == null)
+            return;
+        pendingBody.run();
+        pendingBody = null;
+    }
+
+    /** @return The code to execute when calling this function: {@link
+                #instrumentedCode}, if set, and {@link #code} otherwise.  */
+    public Blob executableCode() {
+        return instrumentedCode != null ? instrumentedCode : code;
+    }
+
+    /** Count a call to this function.
+
+        @return The number of calls, including this one.  */
+    public long countInvocation() {
+        return ++invocationCount;
+    }
+
+    /** Count a call to this function that is interpreted.  */
+    public void countInterpretation() {
+        interpretedCount++;
+    }
 }
@@ -8,7 +8,13 @@ import lombok.Data;
     instance, if we say {@code ( l r -- l*r )}, then the opreation will take
     two stack elements {@code l} and {@code r}, such that {@code l} is under
     {@code r}, remove them from the stack, and leave their product instead of
-    them.  */
+    them.
+
+    <p>In {@link Blob#finish(ConstantPool) finished} blobs, instructions are
+    packed into {@code int}s.  The low {@link #OPCODE_BITS} bits of the first
+    word of an instruction hold the ordinal of its opcode, and the remaining
+    bits hold its first argument, if any.  The second argument, if any, is
+    held in the following word.  */
 @Data
 public final class Instruction {
 
@@ -54,6 +60,14 @@ public final class Instruction {
             the caller.  A synthetic, unusable value will be placed on the
             callers operand stack.  */
         RETURN_VOID,
+        /** {@code ( f x₁ x₂ … xₙ -- )}.
+
+            Given {@code TAIL_CALL n}, calls {@code f} like {@code
+            FUNCTION_CALL n} would, and returns its result, like {@code
+            RETURN} would.  The current invocation is reused for the call,
+            rather than suspended, so that recursion through tail calls runs
+            in constant space.  */
+        TAIL_CALL(1),
         /** {@code ( -- f )}.
 
             Given {@code BUILD_CLOSURE n}, {@code f} will be a closure
@@ -101,6 +115,16 @@ public final class Instruction {
             currnet upvalue table in slot {@code n}.  */
         GET_UPVALUE(1),
 
+        // Unboxed execution.
+        /** {@code ( n -- v )}.
+
+            Box the number {@code n} into a value.  Only emitted when executing
+            {@link rs.raf.calculator.Calculator#unboxed unboxed}, where
+            numbers are kept out of values, before a number is used where an
+            arbitrary value is expected, such as in a vector or when
+            printing.  */
+        BOX_NUMBER,
+
         // Others
         /** {@code ( x -- )}.
 
@@ -111,10 +135,65 @@ public final class Instruction {
             Terminates executing the current blob, returning control to the
             caller of {@link VM#run(Blob)}.  */
         FINISH_OUTER,
+
+        // Instrumentation.
+        /** {@code ( -- )}.
+
+            Given {@code PROBE n}, reports probe {@code n} of the current blob
+            to the {@link ExecutionListener} attached to the VM.  Never
+            emitted by the compiler, but only into instrumented copies of
+            blobs.  See {@link Instrumenter}.  */
+        PROBE(1),
+
+        // Superinstructions.  These are never emitted by the compiler
+        // directly, but rather fused from sequences of other instructions by
+        // the peephole optimizer.
+        /** {@code ( -- a+b )}.
+
+            Given {@code ADD_LOCAL_LOCAL x y}, {@code a} and {@code b} are the
+            values of local slots {@code x} and {@code y}.  Fused from {@code
+            GET_LOCAL x; GET_LOCAL y; ADD}.  */
+        ADD_LOCAL_LOCAL(2, 3),
+        /** {@code ( -- a-b )}.  Like {@link #ADD_LOCAL_LOCAL}, but
+            subtracts.  */
+        SUB_LOCAL_LOCAL(2, 3),
+        /** {@code ( -- a*b )}.  Like {@link #ADD_LOCAL_LOCAL}, but
+            multiplies.  */
+        MUL_LOCAL_LOCAL(2, 3),
+        /** {@code ( n -- n+c )}.
+
+            Given {@code ADD_CONST k}, {@code c} is the constant in slot {@code
+            k} of the current blob constant table.  Fused from {@code
+            PUSH_CONSTANT k; ADD}.  */
+        ADD_CONST(1, 2),
+        /** {@code ( n -- n-c )}.  Like {@link #ADD_CONST}, but subtracts.  */
+        SUB_CONST(1, 2),
+        /** {@code ( n -- n*c )}.  Like {@link #ADD_CONST}, but multiplies.  */
+        MUL_CONST(1, 2),
+        /** {@code ( n -- n/c )}.  Like {@link #ADD_CONST}, but divides.  */
+        DIV_CONST(1, 2),
+        /** {@code ( x₁ x₂ … xₙ -- r )}.
+
+            Given {@code GET_GLOBAL_CALL g n}, calls the closure in global slot
+            {@code g} with the top {@code n} operands as arguments.  Fused from
+            a {@code GET_GLOBAL g} that pushes the callee of a {@code
+            FUNCTION_CALL n}, and that call.  */
+        GET_GLOBAL_CALL(2, 2),
+        /** {@code ( -- )}.
+
+            Given {@code BUILD_CLOSURE_LOCAL n m}, builds a closure like {@code
+            BUILD_CLOSURE n} would, and stores it in local slot {@code m}.
+            Fused from {@code BUILD_CLOSURE n; SET_LOCAL m}.  */
+        BUILD_CLOSURE_LOCAL(2, 2),
         ;
 
         /** Number of arguments this instructions of this opcode take.  */
         public final int argCount;
+        /** Number of words instructions of this opcode take when packed.  */
+        public final int length;
+        /** Number of instructions an instruction of this opcode replaces.
+            Greater than one only for superinstructions.  */
+        public final int fuses;
 
         /** Construct an opcode which takes no values.  */
         Code() {
@@ -125,14 +204,46 @@ public final class Instruction {
                             take.  Note that this is different to the number
                             of operands an instruction takes.  */
         Code(int argCount) {
+            this(argCount, 1);
+        }
+
+        /** @param argCount Number of arguments instructions of this opcode
+                            take.
+            @param fuses Number of instructions an instruction of this opcode
+                         replaces.  */
+        Code(int argCount, int fuses) {
             this.argCount = argCount;
+            this.length = Math.max(1, argCount);
+            this.fuses = fuses;
         }
+
+        /** All opcodes, indexed by their ordinal.  */
+        private static final Code[] VALUES = values();
+    }
+
+    /** Number of low bits of a packed instruction word holding the opcode.  */
+    public static final int OPCODE_BITS = 8;
+    /** Mask extracting the opcode from a packed instruction word.  */
+    private static final int OPCODE_MASK = (1 << OPCODE_BITS) - 1;
+
+    /** @param word First word of a packed instruction.
+        @return The opcode of that instruction.  */
+    public static Code opcode(int word) {
+        return Code.VALUES[word & OPCODE_MASK];
+    }
+
+    /** @param word First word of a packed instruction.
+        @return The first argument of that instruction.  */
+    public static int arg1(int word) {
+        return word >> OPCODE_BITS;
     }
 
     /** Opcode of this instruction.  */
     private final Code opcode;
     /** Argument for this instruction, if applicable.  */
     private int arg1 = -1;
+    /** Second argument for this instruction, if applicable.  */
+    private int arg2 = -1;
 
     /** Construct a zero-argument instruction.
 
@@ -152,17 +263,92 @@ public final class Instruction {
         this.arg1 = arg1;
     }
 
+    /** Construct a two-argument instruction.
+
+        @param opcode Opcode of this instruction.
+        @param arg1 First argument to this instruction.
+        @param arg2 Second argument to this instruction.  */
+    public Instruction(Code opcode, int arg1, int arg2) {
+        assert opcode.argCount == 2;
+        this.opcode = opcode;
+        this.arg1 = arg1;
+        this.arg2 = arg2;
+    }
+
+    /** @return Number of operands this instruction pops off the stack.  */
+    public int pops() {
+        return switch (opcode) {
+        case ADD, SUBTRACT, MULTIPLY, DIVIDE, RAISE, VECTOR_ACCESS -> 2;
+        case VECTOR_CONSTRUCT -> arg1;
+        case FUNCTION_CALL, TAIL_CALL -> arg1 + 1;
+        case GET_GLOBAL_CALL -> arg2;
+        case RETURN, POP, SET_LOCAL, SET_GLOBAL, PRINT, BOX_NUMBER,
+            ADD_CONST, SUB_CONST, MUL_CONST, DIV_CONST -> 1;
+        case RETURN_VOID, BUILD_CLOSURE, PUSH_CONSTANT, GET_LOCAL,
+            GET_GLOBAL, GET_UPVALUE, FINISH_OUTER, ADD_LOCAL_LOCAL,
+            SUB_LOCAL_LOCAL, MUL_LOCAL_LOCAL, BUILD_CLOSURE_LOCAL,
+            PROBE -> 0;
+        };
+    }
+
+    /** @return Number of operands this instruction pushes onto the stack.
+                Void calls count as pushing an (unusable) operand.  */
+    public int pushes() {
+        return switch (opcode) {
+        case RETURN, RETURN_VOID, TAIL_CALL, POP, SET_LOCAL, SET_GLOBAL,
+            PRINT, FINISH_OUTER, BUILD_CLOSURE_LOCAL, PROBE -> 0;
+        default -> 1;
+        };
+    }
+
     /** @param arg1 New argument to this instruction.  */
     public void setArg1(int arg1) {
         assert opcode.argCount >= 1;
         this.arg1 = arg1;
     }
 
+    /** @param arg2 New second argument to this instruction.  */
+    public void setArg2(int arg2) {
+        assert opcode.argCount >= 2;
+        this.arg2 = arg2;
+    }
+
+    /** Pack this instruction into {@code code}, at {@code ip}.
+
+        @param code Packed code to write into.
+        @param ip Index of the first word to write.
+        @return Index right past the written instruction.  */
+    public int packInto(int[] code, int ip) {
+        /* The argument must survive the round trip through the upper bits of
+           the word.  */
+        if (arg1(arg1 << OPCODE_BITS) != arg1)
+            throw new IllegalStateException("argument out of range: " + this);
+        code[ip] = opcode.ordinal() | arg1 << OPCODE_BITS;
+        if (opcode.argCount >= 2)
+            code[ip + 1] = arg2;
+        return ip + opcode.length;
+    }
+
+    /** Unpack the instruction at {@code ip} in packed code {@code code}.
+
+        @param code Packed code to read from.
+        @param ip Index of the first word of the instruction.
+        @return The instruction at {@code ip}.  */
+    public static Instruction unpack(int[] code, int ip) {
+        var opcode = opcode(code[ip]);
+        return switch (opcode.argCount) {
+        case 0 -> new Instruction(opcode);
+        case 1 -> new Instruction(opcode, arg1(code[ip]));
+        default -> new Instruction(opcode, arg1(code[ip]), code[ip + 1]);
+        };
+    }
+
     @Override
     public String toString() {
         var s = new StringBuilder();
         s.append(opcode);
         if (opcode.argCount >= 1) s.append(" ").append(arg1);
+        if (opcode.argCount >= 2) s.append(" ").append(arg2);
         return s.toString();
     }
 }
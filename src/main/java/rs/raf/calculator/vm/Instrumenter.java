@@ -0,0 +1,102 @@
+package rs.raf.calculator.vm;
+
+import java.util.ArrayList;
+import java.util.Set;
+
+import rs.raf.calculator.Calculator;
+import rs.raf.calculator.vm.ExecutionListener.Event;
+
+import static rs.raf.calculator.vm.Instruction.Code.*;
+
+/** Builds instrumented copies of blobs, for the {@link VM} to run instead of
+    the originals while an {@link ExecutionListener} is attached.
+
+    <p> The copy is the original code with a {@link Instruction.Code#PROBE
+    <code>PROBE</code>} instruction inserted wherever an event is to be
+    reported: at the start of a function, before each instruction, before
+    each instruction leaving a function, and after each instruction creating
+    a value.  Each probe refers to a {@link Probe} describing the event, and
+    the instruction it is about, in terms of the original code.  As the
+    original code is never touched, code that is not instrumented runs
+    exactly as it would if instrumentation did not exist.  */
+final class Instrumenter {
+    /** Returned by {@link #valueSlot(Instruction, boolean)} for instructions
+        that do not create values.  */
+    private static final int NO_VALUE = -2;
+
+    private Instrumenter() {}
+
+    /** Build an instrumented copy of {@code code}, reporting {@code events},
+        and verify it.
+
+        @param c Context {@code code} was compiled in.
+        @param fn Function {@code code} is the code of, or {@code null} for
+                  toplevel code.
+        @param code Verified blob to copy.
+        @param events Kinds of events to report.
+        @return The instrumented copy.  */
+    static Blob instrument(Calculator c, Function fn, Blob code,
+                           Set<Event> events) {
+        var copy = new Blob();
+        var probes = new ArrayList<Probe>();
+        for (var constant : code.packedConstants())
+            copy.constantTable().add(constant);
+
+        var packed = code.packedCode();
+        var depths = code.stackDepths();
+        if (fn != null && events.contains(Event.ENTRY))
+            addProbe(copy, probes, new Probe(Event.ENTRY, fn, 0,
+                                             Instruction.opcode(packed[0]),
+                                             -1));
+        /* Code is straight-line, so everything the verifier reached comes
+           first, and the rest is dead.  */
+        for (int ip = 0; ip < packed.length && depths[ip] >= 0; ) {
+            var insn = Instruction.unpack(packed, ip);
+            var op = insn.getOpcode();
+            if (events.contains(Event.INSTRUCTION))
+                addProbe(copy, probes, new Probe(Event.INSTRUCTION, fn, ip, op,
+                                                 -1));
+            if (fn != null && events.contains(Event.EXIT)
+                && (op == RETURN || op == RETURN_VOID || op == TAIL_CALL))
+                addProbe(copy, probes, new Probe(Event.EXIT, fn, ip, op, -1));
+            copy.addInsn(insn);
+            var slot = valueSlot(insn, c.isUnboxed());
+            if (events.contains(Event.VALUE) && slot != NO_VALUE)
+                addProbe(copy, probes, new Probe(Event.VALUE, fn, ip, op,
+                                                 slot));
+            ip += op.length;
+        }
+
+        copy.finish(c.getConstantPool());
+        copy.setProbes(probes.toArray(Probe[]::new));
+        if (fn == null)
+            Verifier.verify(c, copy);
+        else
+            Verifier.verify(c, fn, copy);
+        return copy;
+    }
+
+    /** Emit a {@code PROBE} reporting {@code probe} into {@code copy}.  */
+    private static void addProbe(Blob copy, ArrayList<Probe> probes,
+                                 Probe probe) {
+        copy.addInsn(new Instruction(PROBE, probes.size()));
+        probes.add(probe);
+    }
+
+    /** @return Where the value {@code insn} creates is once it executed: the
+                local slot it is in, {@code -1} for the top of the stack, or
+                {@link #NO_VALUE} if it creates none.  */
+    private static int valueSlot(Instruction insn, boolean unboxed) {
+        return switch (insn.getOpcode()) {
+        case VECTOR_CONSTRUCT, BUILD_CLOSURE -> -1;
+        case BUILD_CLOSURE_LOCAL -> insn.getArg2();
+        /* Numbers are boxed as soon as they are computed, unless executing
+           unboxed, where they are boxed explicitly.  */
+        case ADD, SUBTRACT, MULTIPLY, DIVIDE, RAISE, PUSH_CONSTANT,
+            ADD_LOCAL_LOCAL, SUB_LOCAL_LOCAL, MUL_LOCAL_LOCAL, ADD_CONST,
+            SUB_CONST, MUL_CONST, DIV_CONST -> unboxed ? NO_VALUE : -1;
+        case BOX_NUMBER -> unboxed ? -1 : NO_VALUE;
+        default -> NO_VALUE;
+        };
+    }
+}
@@ -0,0 +1,284 @@
+package rs.raf.calculator.vm;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.lang.invoke.SwitchPoint;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import rs.raf.calculator.Calculator;
+import rs.raf.calculator.ast.FunctionType;
+import rs.raf.calculator.ast.NumberType;
+import rs.raf.calculator.ast.VoidType;
+
+/** Tiered execution manager of a {@link VM}.  Functions start out
+    interpreted.  The VM counts calls to each of them, and, once a function
+    was called {@link Calculator#jitThreshold} times, the JIT translates its
+    blob into a JVM class (see {@link JitCompiler}), and defines it as a
+    hidden class.  From then on, calls to that function run the compiled
+    code, which the JVM may in turn compile to machine code.
+
+    <p> Compiled code has a static {@code invoke} method per function, which
+    takes and returns numbers as {@code double}s, according to the type of
+    the function.  Compiled code calls closures through call sites (see
+    {@link CompiledRuntime}), which go through {@link #entry(Value.Closure)}
+    for a handle of exactly that type, leading either to the compiled code
+    of the callee, or, while the callee is still interpreted, back into the
+    VM.  Once the callee is compiled, the site links straight to its code,
+    so calls between compiled functions are neither counted, nor polled
+    for cancellation.  The VM itself calls compiled code through the {@link
+    CompiledFunction} bridges.
+
+    <p> Rather than on each call, compiled code polls at the start of each
+    function, including when a self tail call jumps back there, through a
+    call site that does nothing until the JIT {@link #invalidate()
+    invalidates} it, as it does once execution is cancelled, or reaches its
+    deadline.  The same invalidation unlinks all call sites, so that they
+    look their callees up again, for when functions stop running their
+    compiled code.
+
+    <p> Only enabled if {@link Calculator#jit} is set.  */
+public class Jit extends CompiledRuntime {
+    /** Wider compilation (and execution) context.  */
+    private final Calculator c;
+    /** The VM whose functions we compile, and which runs interpreted
+        callees of compiled code.  */
+    private final VM vm;
+
+    /** Number of functions compiled so far, used to name their classes.  */
+    private int compiledCount = 0;
+
+    /** Guards the linked call sites and the polls of compiled code.  See
+        {@link #invalidate()}.  */
+    private volatile SwitchPoint valid = new SwitchPoint();
+    /** Pending {@link #invalidate()} at the deadline of the execution in
+        progress, or {@code null}.  */
+    private ScheduledFuture<?> watchdog;
+    /** Runs {@link #watchdog}s.  */
+    private static final ScheduledExecutorService WATCHDOGS =
+        Executors.newSingleThreadScheduledExecutor(task -> {
+                var thread = new Thread(task, "jit-watchdog");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /** @param context Context to compile in.
+        @param vm VM to call back into.  */
+    Jit(Calculator context, VM vm) {
+        this.c = context;
+        this.vm = vm;
+    }
+
+    /** Called by the VM after counting a call to {@code fn}.  Compiles
+        {@code fn} if it just got hot, or on its first call, if the profile
+        says it will.
+
+        @param fn Function being called.
+        @return The compiled code of {@code fn}, or {@code null} if it is to
+                be interpreted.  */
+    CompiledFunction compiledCode(Function fn) {
+        /* Instrumented functions must run their instrumented code.  */
+        if (fn.getCompiled() == null
+            && !fn.isNotCompilable()
+            && fn.getInstrumentedCode() == null
+            && (fn.isHot()
+                || fn.getInvocationCount() >= c.getJitThreshold()))
+            compile(fn);
+        return fn.getCompiled();
+    }
+
+    /** Compile {@code fn}, and install the result into it.  If that is not
+        possible, mark it as such, so that we do not try again.
+
+        @param fn Function to compile.  */
+    private void compile(Function fn) {
+        var name = "rs/raf/calculator/vm/Compiled$%s$%d"
+            .formatted(fn.getFuncDecl().getName(), compiledCount++);
+        try {
+            var classFile = JitCompiler.translate(c, fn, name);
+            var lookup = MethodHandles.lookup()
+                .defineHiddenClassWithClassData(classFile, this, true);
+            var type = (FunctionType) fn.getFuncDecl().getDeclaredType();
+            fn.setEntry(lookup.findStatic(lookup.lookupClass(), "invoke",
+                                          invokeType(type)));
+            fn.setCompiled((CompiledFunction) lookup
+                           .findConstructor(lookup.lookupClass(),
+                                            MethodType.methodType(void.class))
+                           .invoke());
+        } catch (JitCompiler.UnsupportedException e) {
+            fn.setNotCompilable(true);
+        } catch (Throwable e) {
+            /* Generating an invalid class is a bug.  */
+            throw new IllegalStateException("failed to compile "
+                                            + fn.getFuncDecl().getName(), e);
+        }
+    }
+
+    /** @return The JVM type of the {@code invoke} method of functions of
+                type {@code type}.  */
+    private static MethodType invokeType(FunctionType type) {
+        return MethodType.fromMethodDescriptorString
+            (JitCompiler.invokeDescriptor(type), Jit.class.getClassLoader());
+    }
+
+    /** Handles used to build {@link #trampoline(Function)}s.  */
+    private static final MethodHandle CALL_INTERPRETED, BOX, UNBOX;
+    static {
+        var lookup = MethodHandles.lookup();
+        try {
+            CALL_INTERPRETED = lookup.findVirtual
+                (VM.class, "callInterpreted",
+                 MethodType.methodType(Value.class, Value.Closure.class,
+                                       Value[].class));
+            BOX = lookup.findStatic(CompiledRuntime.class, "box",
+                                    MethodType.methodType(Value.class,
+                                                          double.class));
+            UNBOX = lookup.findStatic(CompiledRuntime.class, "unbox",
+                                      MethodType.methodType(double.class,
+                                                            Value.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /** Build a handle that calls {@code fn} in the interpreter, with the same
+        type as its compiled {@code invoke} method would have.
+
+        @param fn Function to build a handle for.
+        @return The new handle.  */
+    private MethodHandle trampoline(Function fn) {
+        var type = (FunctionType) fn.getFuncDecl().getDeclaredType();
+        var argTypes = type.getArgumentTypes();
+        var mh = CALL_INTERPRETED.bindTo(vm)
+            .asCollector(Value[].class, argTypes.size());
+        for (int i = 0; i < argTypes.size(); i++)
+            if (argTypes.get(i) instanceof NumberType)
+                mh = MethodHandles.filterArguments(mh, i + 1, BOX);
+        mh = switch (type.getReturnType()) {
+        case NumberType n -> MethodHandles.filterReturnValue(mh, UNBOX);
+        case VoidType v -> mh.asType(mh.type().changeReturnType(void.class));
+        default -> mh;
+        };
+        return mh.asType(invokeType(type));
+    }
+
+    /** Send all call sites and polls of compiled code down their slow
+        paths, until they are linked again.  Compiled code running at the
+        time polls for cancellation as soon as it next calls, or starts a
+        function.  May be called from any thread.  */
+    void invalidate() {
+        var old = valid;
+        valid = new SwitchPoint();
+        SwitchPoint.invalidateAll(new SwitchPoint[] { old });
+    }
+
+    /** {@link #invalidate()} at {@code deadline}, so that compiled code
+        polls for it, replacing any deadline set before.
+
+        @param deadline Deadline, as per {@link System#nanoTime()}.  */
+    void setDeadline(long deadline) {
+        clearDeadline();
+        watchdog = WATCHDOGS.schedule(this::invalidate,
+                                      deadline - System.nanoTime(),
+                                      TimeUnit.NANOSECONDS);
+    }
+
+    /** Forget the deadline set by {@link #setDeadline(long)}, if any.  */
+    void clearDeadline() {
+        if (watchdog != null)
+            watchdog.cancel(false);
+        watchdog = null;
+    }
+
+    /* Runtime support for compiled code.  */
+    /** Count a call to {@code callee}, like the VM would, and find the code
+        to run for it.  Leads back into the VM while {@code callee} is still
+        interpreted.  Also where call sites not linked to compiled code
+        {@link VM#poll() poll} for cancellation.  */
+    @Override
+    MethodHandle entry(Value.Closure callee) {
+        vm.poll();
+        var fn = callee.function();
+        fn.ensureCompiled();
+        fn.countInvocation();
+        compiledCode(fn);
+        var entry = fn.getEntry();
+        if (entry == null)
+            fn.setEntry(entry = trampoline(fn));
+        return entry;
+    }
+
+    @Override
+    boolean isLinkable(Function fn) {
+        return fn.getCompiled() != null;
+    }
+
+    @Override
+    MethodHandle guard(MethodHandle target, MethodHandle fallback) {
+        return valid.guardWithTest(target, fallback);
+    }
+
+    /** A poll of compiled code.  Does nothing while {@link #valid}.  */
+    private final class PollSite extends MutableCallSite {
+        /** Calls {@link #poll()}.  */
+        private final MethodHandle slowPath = POLL.bindTo(this);
+
+        PollSite() {
+            super(MethodType.methodType(void.class));
+            setTarget(slowPath);
+        }
+
+        /** Check for cancellation, and stop doing so until the next {@link
+            #invalidate()}.  */
+        private void poll() {
+            vm.checkCancelled();
+            setTarget(guard(MethodHandles.empty(type()), slowPath));
+        }
+    }
+
+    /** Handle used to build {@link PollSite}s.  */
+    private static final MethodHandle POLL;
+    static {
+        try {
+            POLL = MethodHandles.lookup().findVirtual
+                (PollSite.class, "poll", MethodType.methodType(void.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /** Bootstrap method of the polls of compiled code.
+
+        @param lookup Lookup of the class of the polling code, which holds
+                      the JIT in its {@code JIT} field.
+        @param name Ignored.
+        @param type Type of the call site, {@code ()V}.
+        @return A new poll.
+        @throws Throwable If the JIT cannot be found.  */
+    static java.lang.invoke.CallSite
+        bootstrapPoll(MethodHandles.Lookup lookup, String name,
+                      MethodType type)
+        throws Throwable
+    {
+        return ((Jit) runtimeOf(lookup)).new PollSite();
+    }
+
+    @Override
+    Function function(int fnId) {
+        return c.getFunction(fnId);
+    }
+
+    /** @return Value of global {@code slot}.  */
+    Value global(int slot) {
+        return vm.global(slot);
+    }
+
+    /** @return Value of numeric global {@code slot}, when unboxed.  */
+    double numGlobal(int slot) {
+        return vm.numGlobal(slot);
+    }
+}
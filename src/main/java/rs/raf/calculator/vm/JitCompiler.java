@@ -0,0 +1,939 @@
+package rs.raf.calculator.vm;
+
+import java.util.ArrayList;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import rs.raf.calculator.Calculator;
+import rs.raf.calculator.ast.FunctionType;
+import rs.raf.calculator.ast.NumberType;
+import rs.raf.calculator.ast.VoidType;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/** Translates the {@link Blob} of a {@link Function} into a JVM class
+    implementing {@link CompiledFunction}.  See {@link Jit}.
+
+    <p> As the language has no control flow, a blob is a straight line of
+    code, and the translation is a single pass over it.  The operand stack of
+    the VM becomes the JVM operand stack, and the local table becomes JVM
+    local variables.  While translating, the translator tracks the static
+    type of each operand and local, derived from the types the type checker
+    computed for function arguments, upvalues, globals and callees.  Numbers
+    are kept in {@code double}s, and boxed only where a {@link Value} is
+    required, regardless of whether the blob was compiled for unboxed
+    execution.
+
+    <p> The same translation serves the {@link AotCompiler}, which translates
+    every function of a program, and its toplevel code, ahead of time.  Then,
+    rather than from the class data, generated classes fetch their runtime
+    from the program class, and access globals as static fields of it.  */
+final class JitCompiler {
+    /** Thrown if the blob contains something we cannot translate.  */
+    @SuppressWarnings("serial")
+    static final class UnsupportedException extends Exception {
+        /** @param message What we cannot translate.  */
+        UnsupportedException(String message) {
+            super(message);
+        }
+    }
+
+    /** JVM representation of an operand or local.  */
+    private enum Kind {
+        /** A {@code double}.  */
+        NUM,
+        /** A {@link Value}.  */
+        REF,
+        /** Nothing.  The result of calling a {@code void} function.  */
+        VOID,
+    }
+
+    /** An operand or local, as the translator sees it.
+
+        @param type Static type of the value.
+        @param kind How the value is represented on the JVM.  */
+    private record Operand(rs.raf.calculator.ast.Type type, Kind kind) {}
+
+    /* Descriptors of classes generated code refers to.  */
+    private static final String VALUE = Type.getInternalName(Value.class);
+    private static final String VALUE_DESC = Type.getDescriptor(Value.class);
+    private static final String CLOSURE =
+        Type.getInternalName(Value.Closure.class);
+    private static final String CLOSURE_DESC =
+        Type.getDescriptor(Value.Closure.class);
+    private static final String JIT =
+        Type.getInternalName(CompiledRuntime.class);
+    private static final String JIT_DESC =
+        Type.getDescriptor(CompiledRuntime.class);
+    /** The runtime of code compiled just in time.  */
+    private static final String JUST_IN_TIME =
+        Type.getInternalName(Jit.class);
+    private static final String JUST_IN_TIME_DESC =
+        Type.getDescriptor(Jit.class);
+    private static final String FUNCTION_DESC =
+        Type.getDescriptor(Function.class);
+    /** Descriptor of bootstrap methods.  */
+    private static final String BOOTSTRAP_DESC =
+        "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;"
+        + "Ljava/lang/invoke/MethodType;)Ljava/lang/invoke/CallSite;";
+    /** Links call sites.  */
+    private static final Handle CALL_BOOTSTRAP =
+        new Handle(H_INVOKESTATIC, JIT, "bootstrapCall", BOOTSTRAP_DESC,
+                   false);
+    /** Links polls.  */
+    private static final Handle POLL_BOOTSTRAP =
+        new Handle(H_INVOKESTATIC, Type.getInternalName(Jit.class),
+                   "bootstrapPoll", BOOTSTRAP_DESC, false);
+
+    /** Wider compilation (and execution) context.  */
+    private final Calculator c;
+    /** Function being translated, or {@code null} when translating toplevel
+        code.  */
+    private final Function fn;
+    /** Internal name of the class being generated.  */
+    private final String className;
+    /** Type of the function being translated, or {@code null} when
+        translating toplevel code.  */
+    private final FunctionType fnType;
+    /** Internal name of the program class, when compiling ahead of time, or
+        {@code null} when compiling just in time.  */
+    private final String programClass;
+    /** Descriptor of the {@code JIT} field of the class being generated:
+        the {@link Jit}, when compiling just in time, and any {@link
+        CompiledRuntime}, when ahead of time.  */
+    private final String runtimeDesc;
+
+    /** Method being generated.  */
+    private MethodVisitor mv;
+    /** The simulated operand stack.  */
+    private final ArrayList<Operand> stack = new ArrayList<>();
+    /** Contents of each local slot, or {@code null} if not yet assigned.  */
+    private Operand[] locals;
+    /** JVM local variable holding each local slot.  */
+    private int[] localIndices;
+    /** First JVM local variable free for temporaries.  */
+    private int tempBase;
+    /** Start of the body of the {@code invoke} method, where self tail calls
+        jump to.  */
+    private Label start;
+
+    /** @param c Wider compilation context.
+        @param fn Function to translate, or {@code null} to translate toplevel
+                  code.
+        @param className Internal name of the class to generate.
+        @param programClass Internal name of the program class, when
+                            compiling ahead of time.  */
+    private JitCompiler(Calculator c, Function fn, String className,
+                        String programClass) {
+        this.c = c;
+        this.fn = fn;
+        this.className = className;
+        this.fnType = fn == null
+            ? null
+            : (FunctionType) fn.getFuncDecl().getDeclaredType();
+        this.programClass = programClass;
+        this.runtimeDesc = programClass == null ? JUST_IN_TIME_DESC : JIT_DESC;
+    }
+
+    /** Translate {@code fn} into a class named {@code className}.  The class
+        expects to be defined as a hidden class whose class data is the
+        {@link Jit} to call back into.
+
+        @param c Wider compilation context.
+        @param fn Function to translate.
+        @param className Internal name of the class to generate.
+        @return The class file.
+        @throws UnsupportedException If {@code fn} cannot be translated.  */
+    static byte[] translate(Calculator c, Function fn, String className)
+        throws UnsupportedException
+    {
+        return new JitCompiler(c, fn, className, null).translate();
+    }
+
+    /** Translate {@code fn} into a class named {@code className}, to be
+        loaded along with the program class {@code programClass}.  See {@link
+        AotCompiler}.
+
+        @param c Wider compilation context.
+        @param fn Function to translate.
+        @param className Internal name of the class to generate.
+        @param programClass Internal name of the program class.
+        @return The class file.
+        @throws UnsupportedException If {@code fn} cannot be translated.  */
+    static byte[] translateAot(Calculator c, Function fn, String className,
+                               String programClass)
+        throws UnsupportedException
+    {
+        return new JitCompiler(c, fn, className, programClass).translate();
+    }
+
+    /** Translate the toplevel code {@code toplevel} into a program class
+        named {@code programClass}.  Its {@code main} method runs {@code
+        toplevel}, and reports overflowing the JVM stack as a runtime error,
+        exiting with status 70, like the {@link VM} does.  Its static
+        initializer sets up an {@link AotRuntime} with the classes of each
+        function, in function table order.  It holds that runtime in its
+        {@code JIT} field, and each global in a static field.
+
+        @param c Wider compilation context.
+        @param toplevel Toplevel code to translate.
+        @param programClass Internal name of the class to generate.
+        @param functionClasses Internal names of the classes of each
+                               function.
+        @return The class file.
+        @throws UnsupportedException If {@code toplevel} cannot be
+                                     translated.  */
+    static byte[] translateProgram(Calculator c, Blob toplevel,
+                                   String programClass,
+                                   String[] functionClasses)
+        throws UnsupportedException
+    {
+        return new JitCompiler(c, null, programClass, programClass)
+            .translateProgram(toplevel, functionClasses);
+    }
+
+    /** @return Name of the static field of the program class holding global
+                {@code slot}.  */
+    private String globalField(int slot) {
+        return "%s$%d".formatted(c.getGlobalDeclaration(slot).getName(),
+                                 slot);
+    }
+
+    /** @return JVM kind of values of type {@code type}.  */
+    private static Kind kindOf(rs.raf.calculator.ast.Type type) {
+        return switch (type) {
+        case NumberType n -> Kind.NUM;
+        case VoidType v -> Kind.VOID;
+        default -> Kind.REF;
+        };
+    }
+
+    /** @return JVM descriptor of values of type {@code type}.  */
+    private static String descriptorOf(rs.raf.calculator.ast.Type type) {
+        return switch (kindOf(type)) {
+        case NUM -> "D";
+        case VOID -> "V";
+        case REF -> VALUE_DESC;
+        };
+    }
+
+    /** @return Descriptor of the {@code invoke} method of functions of
+                type {@code type}.  See {@link CompiledFunction}.  */
+    static String invokeDescriptor(FunctionType type) {
+        var desc = new StringBuilder("(").append(CLOSURE_DESC);
+        type.getArgumentTypes().forEach(t -> desc.append(descriptorOf(t)));
+        return desc.append(')')
+            .append(descriptorOf(type.getReturnType()))
+            .toString();
+    }
+
+    private byte[] translate() throws UnsupportedException {
+        var cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+        cw.visit(V21, ACC_FINAL | ACC_SUPER, className, null,
+                 "java/lang/Object",
+                 new String[] { Type.getInternalName(CompiledFunction.class) });
+        cw.visitField(ACC_STATIC | ACC_FINAL, "JIT", runtimeDesc, null, null);
+
+        mv = cw.visitMethod(ACC_STATIC, "<clinit>", "()V", null, null);
+        mv.visitCode();
+        if (programClass == null) {
+            /* Fetch the JIT from the class data.  */
+            mv.visitMethodInsn(INVOKESTATIC, "java/lang/invoke/MethodHandles",
+                               "lookup",
+                               "()Ljava/lang/invoke/MethodHandles$Lookup;",
+                               false);
+            mv.visitLdcInsn("_");
+            mv.visitLdcInsn(Type.getType(Jit.class));
+            mv.visitMethodInsn(INVOKESTATIC,
+                               "java/lang/invoke/MethodHandles",
+                               "classData",
+                               "(Ljava/lang/invoke/MethodHandles$Lookup;"
+                               + "Ljava/lang/String;Ljava/lang/Class;)"
+                               + "Ljava/lang/Object;",
+                               false);
+            mv.visitTypeInsn(CHECKCAST, JUST_IN_TIME);
+        } else {
+            /* Share the runtime of the program.  */
+            mv.visitFieldInsn(GETSTATIC, programClass, "JIT", JIT_DESC);
+        }
+        mv.visitFieldInsn(PUTSTATIC, className, "JIT", runtimeDesc);
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        mv = cw.visitMethod(0, "<init>", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V",
+                           false);
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        translateInvoke(cw);
+        translateBoxedBridge(cw);
+        translateUnboxedBridge(cw);
+
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    /** Generate the bridge implementing {@link
+        CompiledFunction#call(Value.Closure, Value[])}.  */
+    private void translateBoxedBridge(ClassWriter cw) {
+        mv = cw.visitMethod(ACC_PUBLIC, "call",
+                            "(" + CLOSURE_DESC + "[" + VALUE_DESC + ")"
+                            + VALUE_DESC,
+                            null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 1);
+        var argTypes = fnType.getArgumentTypes();
+        for (int i = 0; i < argTypes.size(); i++) {
+            mv.visitVarInsn(ALOAD, 2);
+            mv.visitLdcInsn(i);
+            mv.visitInsn(AALOAD);
+            if (kindOf(argTypes.get(i)) == Kind.NUM)
+                unbox();
+        }
+        mv.visitMethodInsn(INVOKESTATIC, className, "invoke",
+                           invokeDescriptor(fnType), false);
+        switch (kindOf(fnType.getReturnType())) {
+        case NUM -> box();
+        case VOID -> mv.visitInsn(ACONST_NULL);
+        case REF -> {}
+        }
+        mv.visitInsn(ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    /** Generate the bridge implementing {@link
+        CompiledFunction#call(Value.Closure, double[], Value[], int, int)}.  */
+    private void translateUnboxedBridge(ClassWriter cw) {
+        mv = cw.visitMethod(ACC_PUBLIC, "call",
+                            "(" + CLOSURE_DESC + "[D[" + VALUE_DESC + "II)V",
+                            null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 1);
+        var argTypes = fnType.getArgumentTypes();
+        for (int i = 0; i < argTypes.size(); i++) {
+            var num = kindOf(argTypes.get(i)) == Kind.NUM;
+            mv.visitVarInsn(ALOAD, num ? 2 : 3);
+            mv.visitVarInsn(ILOAD, 4);
+            mv.visitLdcInsn(i);
+            mv.visitInsn(IADD);
+            mv.visitInsn(num ? DALOAD : AALOAD);
+        }
+        mv.visitMethodInsn(INVOKESTATIC, className, "invoke",
+                           invokeDescriptor(fnType), false);
+        switch (kindOf(fnType.getReturnType())) {
+        case NUM -> {
+            mv.visitVarInsn(DSTORE, 6);
+            mv.visitVarInsn(ALOAD, 2);
+            mv.visitVarInsn(ILOAD, 5);
+            mv.visitVarInsn(DLOAD, 6);
+            mv.visitInsn(DASTORE);
+        }
+        case REF -> {
+            mv.visitVarInsn(ASTORE, 6);
+            mv.visitVarInsn(ALOAD, 3);
+            mv.visitVarInsn(ILOAD, 5);
+            mv.visitVarInsn(ALOAD, 6);
+            mv.visitInsn(AASTORE);
+        }
+        case VOID -> {}
+        }
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    /** Generate the {@code invoke} method, which holds the translated
+        blob.  */
+    private void translateInvoke(ClassWriter cw) throws UnsupportedException {
+        mv = cw.visitMethod(ACC_STATIC, "invoke", invokeDescriptor(fnType),
+                            null, null);
+        mv.visitCode();
+
+        /* Arguments are where the JVM puts them, right after the closure.
+           The other local slots get two JVM locals each, so that they can
+           hold either kind of value.  */
+        var argTypes = fnType.getArgumentTypes();
+        var localCount = Math.max(fn.getLocalCount(), argTypes.size());
+        locals = new Operand[localCount];
+        localIndices = new int[localCount];
+        var nextIndex = 1;
+        for (int i = 0; i < argTypes.size(); i++) {
+            var type = argTypes.get(i);
+            locals[i] = new Operand(type, kindOf(type));
+            localIndices[i] = nextIndex;
+            nextIndex += locals[i].kind() == Kind.NUM ? 2 : 1;
+        }
+        for (int i = argTypes.size(); i < localCount; i++) {
+            localIndices[i] = nextIndex;
+            nextIndex += 2;
+        }
+        tempBase = nextIndex;
+
+        start = new Label();
+        mv.visitLabel(start);
+        /* Compiled ahead of time, nothing is ever cancelled.  */
+        if (programClass == null)
+            mv.visitInvokeDynamicInsn("poll", "()V", POLL_BOOTSTRAP);
+        translateCode(fn.getCode());
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    /** Generate the program class.  See {@link #translateProgram(Calculator,
+        Blob, String, String[])}.  */
+    private byte[] translateProgram(Blob toplevel, String[] functionClasses)
+        throws UnsupportedException
+    {
+        var cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+        cw.visit(V21, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, className, null,
+                 "java/lang/Object", null);
+        cw.visitField(ACC_STATIC | ACC_FINAL, "JIT", JIT_DESC, null, null);
+        for (int slot = 0; slot < c.getGlobalCount(); slot++) {
+            var type = c.getGlobalDeclaration(slot).getDeclaredType();
+            cw.visitField(ACC_STATIC, globalField(slot), descriptorOf(type),
+                          null, null);
+        }
+
+        /* JIT = new AotRuntime(new Class[] { ... }, new String[] { ... });  */
+        mv = cw.visitMethod(ACC_STATIC, "<clinit>", "()V", null, null);
+        mv.visitCode();
+        var aotRuntime = Type.getInternalName(AotRuntime.class);
+        mv.visitTypeInsn(NEW, aotRuntime);
+        mv.visitInsn(DUP);
+        mv.visitLdcInsn(functionClasses.length);
+        mv.visitTypeInsn(ANEWARRAY, "java/lang/Class");
+        for (int i = 0; i < functionClasses.length; i++) {
+            mv.visitInsn(DUP);
+            mv.visitLdcInsn(i);
+            mv.visitLdcInsn(Type.getObjectType(functionClasses[i]));
+            mv.visitInsn(AASTORE);
+        }
+        mv.visitLdcInsn(functionClasses.length);
+        mv.visitTypeInsn(ANEWARRAY, "java/lang/String");
+        for (int i = 0; i < functionClasses.length; i++) {
+            var type = (FunctionType) c.getFunction(i).getFuncDecl()
+                .getDeclaredType();
+            mv.visitInsn(DUP);
+            mv.visitLdcInsn(i);
+            mv.visitLdcInsn(invokeDescriptor(type));
+            mv.visitInsn(AASTORE);
+        }
+        mv.visitMethodInsn(INVOKESPECIAL, aotRuntime, "<init>",
+                           "([Ljava/lang/Class;[Ljava/lang/String;)V", false);
+        mv.visitFieldInsn(PUTSTATIC, className, "JIT", JIT_DESC);
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        /* The toplevel has no locals, so only the argument array of main
+           precedes the temporaries.  */
+        mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, "main",
+                            "([Ljava/lang/String;)V", null, null);
+        mv.visitCode();
+        var body = new Label();
+        var bodyEnd = new Label();
+        var overflow = new Label();
+        mv.visitTryCatchBlock(body, bodyEnd, overflow,
+                              "java/lang/StackOverflowError");
+        mv.visitLabel(body);
+        locals = new Operand[0];
+        localIndices = new int[0];
+        tempBase = 1;
+        translateCode(toplevel);
+        mv.visitLabel(bodyEnd);
+
+        /* Deep recursion is a runtime error, reported like the VM does.  */
+        mv.visitLabel(overflow);
+        mv.visitInsn(POP);
+        mv.visitFieldInsn(GETSTATIC, "java/lang/System", "err",
+                          "Ljava/io/PrintStream;");
+        mv.visitLdcInsn("runtime error: stack overflow");
+        mv.visitMethodInsn(INVOKEVIRTUAL, "java/io/PrintStream", "println",
+                           "(Ljava/lang/String;)V", false);
+        mv.visitIntInsn(BIPUSH, 70);
+        mv.visitMethodInsn(INVOKESTATIC, "java/lang/System", "exit", "(I)V",
+                           false);
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    /** Translate the code of {@code blob} into the method being
+        generated.  */
+    private void translateCode(Blob blob) throws UnsupportedException {
+        var code = blob.packedCode();
+        var csts = blob.packedConstants();
+        for (int ip = 0; ip < code.length;) {
+            var op = Instruction.opcode(code[ip]);
+            var arg1 = Instruction.arg1(code[ip]);
+            var arg2 = op.argCount == 2 ? code[ip + 1] : -1;
+            ip += op.length;
+
+            switch (op) {
+            case ADD, SUBTRACT, MULTIPLY, DIVIDE, RAISE -> arithmetic(op);
+
+            case GET_LOCAL -> getLocal(arg1);
+            case SET_LOCAL -> setLocal(arg1);
+            case GET_UPVALUE -> getUpvalue(arg1);
+            case GET_GLOBAL -> getGlobal(arg1);
+            case PUSH_CONSTANT -> {
+                mv.visitLdcInsn(csts[arg1]);
+                push(c.getNumberType(), Kind.NUM);
+            }
+
+            case VECTOR_CONSTRUCT -> vectorConstruct(arg1);
+
+            case POP -> {
+                switch (pop().kind()) {
+                case NUM -> mv.visitInsn(POP2);
+                case REF -> mv.visitInsn(POP);
+                case VOID -> {}
+                }
+            }
+
+            /* Numbers are boxed lazily, when a value is required.  */
+            case BOX_NUMBER -> {}
+
+            case PRINT -> {
+                ensureRef();
+                pop();
+                mv.visitFieldInsn(GETSTATIC, "java/lang/System", "out",
+                                  "Ljava/io/PrintStream;");
+                mv.visitMethodInsn(INVOKEINTERFACE, VALUE, "print",
+                                   "(Ljava/io/PrintStream;)V", true);
+                mv.visitFieldInsn(GETSTATIC, "java/lang/System", "out",
+                                  "Ljava/io/PrintStream;");
+                mv.visitMethodInsn(INVOKEVIRTUAL, "java/io/PrintStream",
+                                   "println", "()V", false);
+            }
+
+            case FUNCTION_CALL -> call(arg1, -1, false);
+            case GET_GLOBAL_CALL -> call(arg2, arg1, false);
+
+            case BUILD_CLOSURE -> buildClosure(arg1);
+
+            /* The JVM has no tail calls, so, unless the function calls
+               itself, this is a call and a return.  Only self tail calls,
+               and interpreted tail calls, run in constant space.  */
+            case TAIL_CALL -> {
+                call(arg1, -1, true);
+                returnValue();
+                ip = code.length;
+            }
+            case RETURN -> {
+                returnValue();
+                /* Straight-line code, so the rest is dead.  */
+                ip = code.length;
+            }
+            case RETURN_VOID -> {
+                /* Falling off the end of a non-void function is undefined,
+                   so return whatever.  */
+                switch (kindOf(fnType.getReturnType())) {
+                case NUM -> {
+                    mv.visitInsn(DCONST_0);
+                    mv.visitInsn(DRETURN);
+                }
+                case REF -> {
+                    mv.visitInsn(ACONST_NULL);
+                    mv.visitInsn(ARETURN);
+                }
+                case VOID -> mv.visitInsn(RETURN);
+                }
+                ip = code.length;
+            }
+
+            /* Superinstructions are translated as what they replace.  */
+            case ADD_LOCAL_LOCAL, SUB_LOCAL_LOCAL, MUL_LOCAL_LOCAL -> {
+                getLocal(arg1);
+                getLocal(arg2);
+                arithmetic(switch (op) {
+                    case ADD_LOCAL_LOCAL -> Instruction.Code.ADD;
+                    case SUB_LOCAL_LOCAL -> Instruction.Code.SUBTRACT;
+                    default -> Instruction.Code.MULTIPLY;
+                    });
+            }
+            case ADD_CONST, SUB_CONST, MUL_CONST, DIV_CONST -> {
+                mv.visitLdcInsn(csts[arg1]);
+                push(c.getNumberType(), Kind.NUM);
+                arithmetic(switch (op) {
+                    case ADD_CONST -> Instruction.Code.ADD;
+                    case SUB_CONST -> Instruction.Code.SUBTRACT;
+                    case MUL_CONST -> Instruction.Code.MULTIPLY;
+                    default -> Instruction.Code.DIVIDE;
+                    });
+            }
+            case BUILD_CLOSURE_LOCAL -> {
+                buildClosure(arg1);
+                setLocal(arg2);
+            }
+
+            /* These only appear in toplevel code.  */
+            case SET_GLOBAL -> setGlobal(arg1);
+            case FINISH_OUTER -> {
+                mv.visitInsn(RETURN);
+                ip = code.length;
+            }
+
+            /* Never emitted.  */
+            case VECTOR_ACCESS ->
+                throw new UnsupportedException(op.name());
+            }
+        }
+    }
+
+    /** Push an operand onto the simulated stack.  The corresponding JVM value
+        must already be on the JVM stack.  */
+    private void push(rs.raf.calculator.ast.Type type, Kind kind) {
+        stack.add(new Operand(type, kind));
+    }
+
+    /** Pop an operand off the simulated stack.  Emits no code.  */
+    private Operand pop() {
+        return stack.removeLast();
+    }
+
+    /** Box the {@code double} on top of the JVM stack.  */
+    private void box() {
+        mv.visitMethodInsn(INVOKESTATIC, JIT, "box", "(D)" + VALUE_DESC,
+                           false);
+    }
+
+    /** Unbox the number {@link Value} on top of the JVM stack.  */
+    private void unbox() {
+        mv.visitMethodInsn(INVOKESTATIC, JIT, "unbox", "(" + VALUE_DESC + ")D",
+                           false);
+    }
+
+    /** Make sure the top operand is represented as a {@link Value}.  */
+    private void ensureRef() {
+        var top = stack.getLast();
+        if (top.kind() == Kind.NUM) {
+            box();
+            stack.set(stack.size() - 1, new Operand(top.type(), Kind.REF));
+        }
+    }
+
+    /** Make sure the top operand, which must be a number, is represented as
+        a {@code double}.  */
+    private void ensureNum() {
+        var top = stack.getLast();
+        if (top.kind() == Kind.REF) {
+            unbox();
+            stack.set(stack.size() - 1, new Operand(top.type(), Kind.NUM));
+        }
+    }
+
+    /** Make sure the top operand is represented as values of {@code type}
+        are passed around.  */
+    private void ensureKindOf(rs.raf.calculator.ast.Type type) {
+        if (kindOf(type) == Kind.NUM)
+            ensureNum();
+        else
+            ensureRef();
+    }
+
+    /** Emit a load of the JVM local at {@code index} holding an operand of
+        kind {@code kind}.  */
+    private void load(Kind kind, int index) {
+        mv.visitVarInsn(kind == Kind.NUM ? DLOAD : ALOAD, index);
+    }
+
+    /** Emit a store of the top operand, of kind {@code kind}, into the JVM
+        local at {@code index}.  */
+    private void store(Kind kind, int index) {
+        mv.visitVarInsn(kind == Kind.NUM ? DSTORE : ASTORE, index);
+    }
+
+    private void arithmetic(Instruction.Code op) {
+        /* The right-hand side is on top.  Unboxing it first is fine, but the
+           left-hand side is under it.  */
+        ensureNum();
+        if (stack.get(stack.size() - 2).kind() == Kind.REF) {
+            /* ( l r -- r l -- r ln -- ln r ) */
+            mv.visitInsn(DUP2_X1);
+            mv.visitInsn(POP2);
+            unbox();
+            mv.visitInsn(DUP2_X2);
+            mv.visitInsn(POP2);
+        }
+        pop();
+        pop();
+        switch (op) {
+        case ADD -> mv.visitInsn(DADD);
+        case SUBTRACT -> mv.visitInsn(DSUB);
+        case MULTIPLY -> mv.visitInsn(DMUL);
+        case DIVIDE -> mv.visitInsn(DDIV);
+        case RAISE -> mv.visitMethodInsn(INVOKESTATIC, "java/lang/Math", "pow",
+                                         "(DD)D", false);
+        default -> throw new IllegalArgumentException(op.name());
+        }
+        push(c.getNumberType(), Kind.NUM);
+    }
+
+    private void getLocal(int slot) throws UnsupportedException {
+        var local = locals[slot];
+        if (local == null)
+            throw new UnsupportedException("read of unassigned local " + slot);
+        load(local.kind(), localIndices[slot]);
+        stack.add(local);
+    }
+
+    private void setLocal(int slot) {
+        var value = pop();
+        store(value.kind(), localIndices[slot]);
+        locals[slot] = value;
+    }
+
+    private void getUpvalue(int slot) {
+        var type = fn.getUpvalueTypes()[slot];
+        var num = c.isUnboxed() && kindOf(type) == Kind.NUM;
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKEVIRTUAL, CLOSURE,
+                           num ? "numUpvalues" : "upvalues",
+                           num ? "()[D" : "()[" + VALUE_DESC, false);
+        mv.visitLdcInsn(slot);
+        mv.visitInsn(num ? DALOAD : AALOAD);
+        push(type, num ? Kind.NUM : Kind.REF);
+    }
+
+    private void getGlobal(int slot) {
+        var type = c.getGlobalDeclaration(slot).getDeclaredType();
+        if (programClass != null) {
+            /* Compiled ahead of time, so the global is a static field.  */
+            var kind = kindOf(type);
+            mv.visitFieldInsn(GETSTATIC, programClass, globalField(slot),
+                              descriptorOf(type));
+            push(type, kind);
+            return;
+        }
+        var num = c.isUnboxed() && kindOf(type) == Kind.NUM;
+        mv.visitFieldInsn(GETSTATIC, className, "JIT", runtimeDesc);
+        mv.visitLdcInsn(slot);
+        mv.visitMethodInsn(INVOKEVIRTUAL, JUST_IN_TIME,
+                           num ? "numGlobal" : "global",
+                           num ? "(I)D" : "(I)" + VALUE_DESC, false);
+        push(type, num ? Kind.NUM : Kind.REF);
+    }
+
+    private void setGlobal(int slot) throws UnsupportedException {
+        /* Only toplevel code, which only the AOT compiler translates, sets
+           globals.  */
+        if (programClass == null)
+            throw new UnsupportedException("SET_GLOBAL");
+        var type = c.getGlobalDeclaration(slot).getDeclaredType();
+        ensureKindOf(type);
+        pop();
+        mv.visitFieldInsn(PUTSTATIC, programClass, globalField(slot),
+                          descriptorOf(type));
+    }
+
+    private void vectorConstruct(int count) {
+        /* See the type checker.  */
+        var type = c.listOfType(count == 0
+                                ? c.getNumberType()
+                                : stack.get(stack.size() - count).type());
+
+        /* Move the elements into an array, last first, as that is the one on
+           top of the JVM stack.  */
+        var array = tempBase;
+        mv.visitLdcInsn(count);
+        mv.visitTypeInsn(ANEWARRAY, VALUE);
+        mv.visitVarInsn(ASTORE, array);
+        for (int i = count - 1; i >= 0; i--) {
+            ensureRef();
+            pop();
+            /* ( v -- v arr -- arr v -- arr i v ) */
+            mv.visitVarInsn(ALOAD, array);
+            mv.visitInsn(SWAP);
+            mv.visitLdcInsn(i);
+            mv.visitInsn(SWAP);
+            mv.visitInsn(AASTORE);
+        }
+        mv.visitVarInsn(ALOAD, array);
+        mv.visitMethodInsn(INVOKESTATIC, JIT, "vector",
+                           "([" + VALUE_DESC + ")" + VALUE_DESC, false);
+        push(type, Kind.REF);
+    }
+
+    /** Translate a call with {@code arity} arguments.
+
+        @param arity Number of arguments.
+        @param global Global slot holding the callee, or {@code -1} if the
+                      callee is on the stack, under the arguments.
+        @param tail Whether the call is a tail call, which, if it calls the
+                    function being translated, is made by jumping back to
+                    its start.  */
+    private void call(int arity, int global, boolean tail) {
+        /* Stash the arguments away, so that the callee can be placed under
+           them.  */
+        var argIndices = new int[arity];
+        var argKinds = new Kind[arity];
+        var next = tempBase;
+        FunctionType calleeType = null;
+        if (global >= 0)
+            calleeType = (FunctionType) c.getGlobalDeclaration(global)
+                .getDeclaredType();
+        else
+            calleeType = (FunctionType) stack.get(stack.size() - arity - 1)
+                .type();
+        for (int i = arity - 1; i >= 0; i--) {
+            ensureKindOf(calleeType.getArgumentTypes().get(i));
+            argKinds[i] = pop().kind();
+            argIndices[i] = next;
+            store(argKinds[i], next);
+            next += 2;
+        }
+
+        if (global >= 0)
+            getGlobal(global);
+        pop();
+        mv.visitTypeInsn(CHECKCAST, CLOSURE);
+        mv.visitVarInsn(ASTORE, next);
+        if (tail)
+            selfTailCall(next, argKinds, argIndices);
+        mv.visitVarInsn(ALOAD, next);
+        for (int i = 0; i < arity; i++)
+            load(argKinds[i], argIndices[i]);
+        mv.visitInvokeDynamicInsn("call", invokeDescriptor(calleeType),
+                                  CALL_BOOTSTRAP);
+        var returnType = calleeType.getReturnType();
+        push(returnType, kindOf(returnType));
+    }
+
+    /** If the callee of the tail call being translated is a closure of the
+        function being translated, make the call by replacing the closure and
+        arguments the function got with those of the call, and jumping back
+        to its start, like the VM reuses the frame.  Otherwise, fall through
+        to a regular call.
+
+        @param callee JVM local holding the callee.
+        @param argKinds Kinds of the arguments.
+        @param argIndices JVM locals holding the arguments.  */
+    private void selfTailCall(int callee, Kind[] argKinds, int[] argIndices) {
+        /* Nothing may be left on the JVM stack across the jump, and the
+           arguments must fit where those of the function are.  */
+        var argTypes = fnType.getArgumentTypes();
+        if (!stack.isEmpty() || argKinds.length != argTypes.size())
+            return;
+        for (int i = 0; i < argKinds.length; i++)
+            if (argKinds[i] != kindOf(argTypes.get(i)))
+                return;
+
+        var other = new Label();
+        mv.visitVarInsn(ALOAD, callee);
+        mv.visitMethodInsn(INVOKEVIRTUAL, CLOSURE, "function",
+                           "()" + FUNCTION_DESC, false);
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKEVIRTUAL, CLOSURE, "function",
+                           "()" + FUNCTION_DESC, false);
+        mv.visitJumpInsn(IF_ACMPNE, other);
+        mv.visitVarInsn(ALOAD, callee);
+        mv.visitVarInsn(ASTORE, 0);
+        for (int i = 0; i < argKinds.length; i++) {
+            load(argKinds[i], argIndices[i]);
+            store(argKinds[i], localIndices[i]);
+        }
+        mv.visitJumpInsn(GOTO, start);
+        mv.visitLabel(other);
+    }
+
+    private void buildClosure(int fnId) {
+        var callee = c.getFunction(fnId);
+        var um = callee.getUpvalueMap();
+        var unboxed = c.isUnboxed();
+        var refs = tempBase;
+        var nums = tempBase + 1;
+
+        mv.visitLdcInsn(um.length);
+        mv.visitTypeInsn(ANEWARRAY, VALUE);
+        mv.visitVarInsn(ASTORE, refs);
+        if (unboxed) {
+            mv.visitLdcInsn(um.length);
+            mv.visitIntInsn(NEWARRAY, T_DOUBLE);
+            mv.visitVarInsn(ASTORE, nums);
+        }
+
+        /* Populate the upvalues like the VM would.  Numbers go into the
+           numeric table when unboxed, and are boxed otherwise.  */
+        for (int u = 0; u < um.length; u++) {
+            /* Filled in once the closure exists.  */
+            if (um[u].loc() == UpvalueMapEntry.UpvalueLocation.SELF)
+                continue;
+            var num = unboxed && kindOf(callee.getUpvalueTypes()[u]) == Kind.NUM;
+            mv.visitVarInsn(ALOAD, num ? nums : refs);
+            mv.visitLdcInsn(u);
+            switch (um[u].loc()) {
+            case UPVALUE -> {
+                mv.visitVarInsn(ALOAD, 0);
+                mv.visitMethodInsn(INVOKEVIRTUAL, CLOSURE,
+                                   num ? "numUpvalues" : "upvalues",
+                                   num ? "()[D" : "()[" + VALUE_DESC,
+                                   false);
+                mv.visitLdcInsn(um[u].slot());
+                mv.visitInsn(num ? DALOAD : AALOAD);
+            }
+            case LOCAL -> {
+                var local = locals[um[u].slot()];
+                if (local == null) {
+                    /* A local not assigned yet.  The VM captures an empty
+                       slot, too.  */
+                    mv.visitInsn(num ? DCONST_0 : ACONST_NULL);
+                } else {
+                    load(local.kind(), localIndices[um[u].slot()]);
+                    if (num && local.kind() == Kind.REF)
+                        unbox();
+                    else if (!num && local.kind() == Kind.NUM)
+                        box();
+                }
+            }
+            case SELF -> throw new IllegalStateException();
+            }
+            mv.visitInsn(num ? DASTORE : AASTORE);
+        }
+
+        mv.visitTypeInsn(NEW, CLOSURE);
+        mv.visitInsn(DUP);
+        mv.visitFieldInsn(GETSTATIC, className, "JIT", runtimeDesc);
+        mv.visitLdcInsn(fnId);
+        mv.visitMethodInsn(INVOKEVIRTUAL, JIT, "function",
+                           "(I)" + FUNCTION_DESC, false);
+        mv.visitVarInsn(ALOAD, refs);
+        if (unboxed)
+            mv.visitVarInsn(ALOAD, nums);
+        else
+            mv.visitInsn(ACONST_NULL);
+        mv.visitMethodInsn(INVOKESPECIAL, CLOSURE, "<init>",
+                           "(" + FUNCTION_DESC + "[" + VALUE_DESC + "[D)V",
+                           false);
+        /* A function referring to itself captures the new closure.  */
+        for (int u = 0; u < um.length; u++) {
+            if (um[u].loc() != UpvalueMapEntry.UpvalueLocation.SELF)
+                continue;
+            mv.visitInsn(DUP);
+            mv.visitVarInsn(ALOAD, refs);
+            mv.visitInsn(SWAP);
+            mv.visitLdcInsn(u);
+            mv.visitInsn(SWAP);
+            mv.visitInsn(AASTORE);
+        }
+        push(callee.getFuncDecl().getDeclaredType(), Kind.REF);
+    }
+
+    private void returnValue() {
+        ensureKindOf(fnType.getReturnType());
+        mv.visitInsn(pop().kind() == Kind.NUM ? DRETURN : ARETURN);
+    }
+}
@@ -0,0 +1,15 @@
+package rs.raf.calculator.vm;
+
+/** What a {@link Instruction.Code#PROBE <code>PROBE</code>} instruction in
+    an instrumented blob reports.  See {@link Instrumenter}.
+
+    @param event Kind of event to report.
+    @param function Function the blob is the code of, or {@code null} for
+                    toplevel code.
+    @param ip IP of the probed instruction, in the original code.
+    @param op Opcode of the probed instruction.
+    @param slot For {@link ExecutionListener.Event#VALUE} events, the local
+                slot the created value is in, or {@code -1} if it is on the
+                top of the stack.  */
+record Probe(ExecutionListener.Event event, Function function, int ip,
+             Instruction.Code op, int slot) {}
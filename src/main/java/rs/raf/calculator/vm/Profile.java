@@ -0,0 +1,241 @@
+package rs.raf.calculator.vm;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import rs.raf.calculator.Calculator;
+import rs.raf.calculator.ast.FunctionDeclaration;
+
+import static rs.raf.calculator.vm.Instruction.Code.*;
+
+/** Execution profile of a program, recorded by running it on the {@link
+    VM}, and saved next to it, so that later compilations of the same program
+    can be guided by how it actually behaved.
+
+    <p> The profile holds the number of calls of each function, which decides
+    which functions are hot, the number of calls from each call site in a
+    function to each function, which guides inlining, the number of times
+    each opcode was executed, and the number of vectors of each size built
+    by {@link Instruction.Code#VECTOR_CONSTRUCT <code>VECTOR_CONSTRUCT</code>}.
+    Functions are identified by their name and the position of their
+    declaration, which stays the same between runs of an unmodified program,
+    and call sites by their order within the code of their function.
+
+    <p> Only the call counts guide compilation.  The opcode and vector size
+    counts are kept as a report of what the program did.  Code has no
+    control flow, so there is no hot and cold code within a function to lay
+    out apart, and the peephole optimizer fuses every pattern it knows
+    anyway.
+
+    <p> Recording costs little while the program runs: the VM, {@link
+    VM#setRecordingStatistics(boolean) recording statistics}, counts calls of
+    each function, and of those, the ones it interprets, and the inline
+    caches count the calls from each site anyway.  As
+    code has no control flow, each interpreted invocation of a blob runs
+    every instruction the {@link Verifier} reached, exactly once, and so the
+    opcode and vector size counts follow from the number of interpreted calls
+    of each function.
+
+    <p> The profile is saved as text, one fact per line:
+
+    <pre>
+    function fib@1:0 17710
+    site fib@1:0 0 fib@1:0=8855
+    opcode ADD 17710
+    vector 3 12
+    </pre>  */
+public final class Profile {
+    /** First line of a saved profile.  */
+    private static final String HEADER = "# calculator profile";
+
+    /** Number of calls of each function, by {@link #key}.  */
+    private final Map<String, Long> calls = new LinkedHashMap<>();
+    /** For each function, by {@link #key}, the number of calls from each of
+        its call sites, in order, to each function, by {@link #key}.  */
+    private final Map<String, List<Map<String, Long>>> callTargets
+        = new LinkedHashMap<>();
+    /** Number of times each opcode was executed, by ordinal.  */
+    private final long[] opcodes = new long[Instruction.Code.values().length];
+    /** Number of vectors built, by size.  */
+    private final Map<Integer, Long> vectorSizes = new TreeMap<>();
+
+    /** Record the profile of the program executed so far in context {@code
+        c}, on the stack VM, which ran {@code toplevel} once, recording
+        statistics all along.
+
+        @param c Context the program was compiled and run in.
+        @param toplevel Toplevel code of the program.
+        @return The recorded profile.  */
+    public static Profile record(Calculator c, Blob toplevel) {
+        var profile = new Profile();
+        profile.countBlob(toplevel, 1);
+        for (int i = 0; i < c.getFunctionCount(); i++) {
+            var fn = c.getFunction(i);
+            var key = key(fn.getFuncDecl());
+            profile.calls.put(key, fn.getInvocationCount());
+            /* Not compiled, and so never called, if lazy.  */
+            if (fn.getCode() == null)
+                continue;
+            profile.countBlob(fn.getCode(), fn.getInterpretedCount());
+
+            var sites = new ArrayList<Map<String, Long>>();
+            for (var site : fn.getCode().callSites()) {
+                if (site == null)
+                    continue;
+                var targets = new LinkedHashMap<String, Long>();
+                site.targets().forEach((target, n) -> targets
+                                       .put(key(target.getFuncDecl()), n));
+                sites.add(targets);
+            }
+            profile.callTargets.put(key, sites);
+        }
+        return profile;
+    }
+
+    /** Count the instructions in {@code blob} as executed {@code times}
+        times.  */
+    private void countBlob(Blob blob, long times) {
+        if (times == 0)
+            return;
+        var code = blob.packedCode();
+        var depths = blob.stackDepths();
+        for (int ip = 0; ip < code.length; ip++) {
+            /* Only instructions the verifier reached run.  */
+            if (depths[ip] < 0)
+                continue;
+            var op = Instruction.opcode(code[ip]);
+            opcodes[op.ordinal()] += times;
+            if (op == VECTOR_CONSTRUCT)
+                vectorSizes.merge(Instruction.arg1(code[ip]), times,
+                                  Long::sum);
+        }
+    }
+
+    /** @return The key identifying function {@code decl} in profiles.  */
+    public static String key(FunctionDeclaration decl) {
+        var start = decl.getLocation().start();
+        return "%s@%d:%d".formatted(decl.getName(), start.line(),
+                                    start.column());
+    }
+
+    /** @return The number of recorded calls of function {@code decl}.  */
+    public long calls(FunctionDeclaration decl) {
+        return calls.getOrDefault(key(decl), 0L);
+    }
+
+    /** @return Whether function {@code decl} was called at least {@code
+                threshold} times.  */
+    public boolean isHot(FunctionDeclaration decl, long threshold) {
+        return calls(decl) >= threshold;
+    }
+
+    /** @return The number of recorded calls from any call site of function
+                {@code caller} of function {@code callee}.  */
+    public long calls(FunctionDeclaration caller, FunctionDeclaration callee) {
+        var sites = callTargets.get(key(caller));
+        if (sites == null)
+            return 0;
+        var target = key(callee);
+        return sites.stream()
+            .mapToLong(targets -> targets.getOrDefault(target, 0L))
+            .sum();
+    }
+
+    /** @return The number of recorded calls from call site {@code site},
+                counting in order, of function {@code decl}, to each
+                function, by {@link #key}.  Empty if there are none.  */
+    public Map<String, Long> callTargets(FunctionDeclaration decl, int site) {
+        var sites = callTargets.get(key(decl));
+        return sites == null || site >= sites.size()
+            ? Map.of()
+            : sites.get(site);
+    }
+
+    /** @return The number of times {@code op} was executed.  */
+    public long opcodeCount(Instruction.Code op) {
+        return opcodes[op.ordinal()];
+    }
+
+    /** @return The number of vectors built, by size.  */
+    public Map<Integer, Long> vectorSizes() {
+        return vectorSizes;
+    }
+
+    /** Save this profile into {@code path}.
+
+        @throws IOException If writing fails.  */
+    public void save(Path path) throws IOException {
+        var lines = new ArrayList<String>();
+        lines.add(HEADER);
+        calls.forEach((fn, n) -> lines.add("function %s %d".formatted(fn, n)));
+        callTargets.forEach((fn, sites) -> {
+            for (int i = 0; i < sites.size(); i++) {
+                var line = new StringBuilder("site %s %d".formatted(fn, i));
+                sites.get(i).forEach((target, n) -> line.append(' ')
+                                     .append(target).append('=').append(n));
+                lines.add(line.toString());
+            }
+        });
+        for (var op : Instruction.Code.values())
+            if (opcodes[op.ordinal()] != 0)
+                lines.add("opcode %s %d".formatted(op, opcodes[op.ordinal()]));
+        vectorSizes.forEach((size, n) -> lines.add("vector %d %d"
+                                                   .formatted(size, n)));
+        Files.write(path, lines);
+    }
+
+    /** Load a profile saved by {@link #save(Path)}.
+
+        @param path File to load.
+        @return The loaded profile.
+        @throws IOException If reading fails, or the file is not a
+                            profile.  */
+    public static Profile load(Path path) throws IOException {
+        var lines = Files.readAllLines(path);
+        if (lines.isEmpty() || !lines.getFirst().equals(HEADER))
+            throw new IOException("not a profile");
+        var profile = new Profile();
+        for (int i = 1; i < lines.size(); i++) {
+            var words = lines.get(i).split(" ");
+            try {
+                profile.parse(words);
+            } catch (RuntimeException e) {
+                throw new IOException("line %d: malformed".formatted(i + 1), e);
+            }
+        }
+        return profile;
+    }
+
+    /** Add the fact on a line, split into {@code words}, to this profile.
+
+        @throws RuntimeException If the line is malformed.  */
+    private void parse(String[] words) {
+        switch (words[0]) {
+        case "function" -> calls.put(words[1], Long.parseLong(words[2]));
+        case "site" -> {
+            var sites = callTargets.computeIfAbsent(words[1],
+                                                    k -> new ArrayList<>());
+            if (Integer.parseInt(words[2]) != sites.size())
+                throw new IllegalArgumentException("call sites out of order");
+            var targets = new LinkedHashMap<String, Long>();
+            for (int i = 3; i < words.length; i++) {
+                var eq = words[i].lastIndexOf('=');
+                targets.put(words[i].substring(0, eq),
+                            Long.parseLong(words[i].substring(eq + 1)));
+            }
+            sites.add(targets);
+        }
+        case "opcode" -> opcodes[Instruction.Code.valueOf(words[1]).ordinal()]
+            = Long.parseLong(words[2]);
+        case "vector" -> vectorSizes.put(Integer.parseInt(words[1]),
+                                         Long.parseLong(words[2]));
+        default -> throw new IllegalArgumentException(words[0]);
+        }
+    }
+}
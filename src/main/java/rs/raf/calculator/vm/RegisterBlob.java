@@ -0,0 +1,120 @@
+package rs.raf.calculator.vm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** A bunch of code that the {@link RegisterVM} can execute.  The register
+    machine counterpart of {@link Blob}, with the same two forms: a building
+    form, and a packed, {@link #finish(int, ConstantPool) finished} form.
+
+    <p> Besides code and constants, a register blob knows how many registers
+    executing it requires.  */
+public final class RegisterBlob {
+    /** Code of this blob, while it is being built.  */
+    private List<RegisterInstruction> code = new ArrayList<>();
+    /** Constants of this blob, while it is being built.  */
+    private List<Double> constantTable = new ArrayList<>();
+    /** Indices of the numbers in {@link #constantTable}, while it is being
+        built.  */
+    private Map<Double, Integer> constantIndices = new HashMap<>();
+    /** Packed code of this blob, once finished.  */
+    private int[] packedCode;
+    /** Constants of this blob, once finished.  */
+    private double[] packedConstants;
+    /** Boxes of {@link #packedConstants}, once finished.  */
+    private Value.Number[] boxedConstants;
+    /** Number of registers this blob requires, once finished.  */
+    private int registerCount = -1;
+
+    /** @return Code of this unfinished blob.  */
+    public List<RegisterInstruction> code() {
+        assert !isFinished();
+        return code;
+    }
+
+    /** @return Constant table of this unfinished blob.  */
+    public List<Double> constantTable() {
+        assert !isFinished();
+        return constantTable;
+    }
+
+    /** Add {@code number} to the constant table of this unfinished blob,
+        unless it is there already.
+
+        @return Index of {@code number} in the constant table.  */
+    public int addConstant(double number) {
+        return constantIndices.computeIfAbsent(number, n -> {
+                constantTable().add(n);
+                return constantTable.size() - 1;
+            });
+    }
+
+    /** @return Packed code of this finished blob.  */
+    public int[] packedCode() {
+        assert isFinished();
+        return packedCode;
+    }
+
+    /** @return Constant table of this finished blob.  */
+    public double[] packedConstants() {
+        assert isFinished();
+        return packedConstants;
+    }
+
+    /** @return Boxes of the constants of this finished blob.  */
+    public Value.Number[] boxedConstants() {
+        assert isFinished();
+        return boxedConstants;
+    }
+
+    /** @return Number of registers this finished blob requires.  */
+    public int registerCount() {
+        assert isFinished();
+        return registerCount;
+    }
+
+    /** @return Whether {@link #finish(int, ConstantPool)} was already
+                called.  */
+    public boolean isFinished() {
+        return packedCode != null;
+    }
+
+    /** @param instruction Instruction to append to this blob.
+
+        @return IP of the new instruction.  */
+    public int addInsn(RegisterInstruction instruction) {
+        var newInsnIp = code().size();
+        code().add(instruction);
+        return newInsnIp;
+    }
+
+    /** Pack the code and constants of this blob, making it executable.  No
+        more instructions may be added afterwards.
+
+        @param registerCount Number of registers this blob requires.
+        @param pool Pool of the program, to box the constants in.  */
+    public void finish(int registerCount, ConstantPool pool) {
+        assert !isFinished();
+        var packed = new int[code.stream()
+                             .mapToInt(i -> i.getOpcode().length)
+                             .sum()];
+        var ip = 0;
+        for (var insn : code)
+            ip = insn.packInto(packed, ip);
+
+        packedConstants = constantTable.stream()
+            .mapToDouble(Double::doubleValue)
+            .toArray();
+        boxedConstants = constantTable.stream()
+            .map(pool::box)
+            .toArray(Value.Number[]::new);
+        packedCode = packed;
+        this.registerCount = registerCount;
+        /* Nothing needs the unpacked form anymore.  */
+        code = null;
+        constantTable = null;
+        constantIndices = null;
+    }
+}
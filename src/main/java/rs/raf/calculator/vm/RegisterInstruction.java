@@ -0,0 +1,155 @@
+package rs.raf.calculator.vm;
+
+import java.util.Arrays;
+import java.util.stream.Collectors;
+
+import lombok.Data;
+
+/** Instruction of the {@link RegisterVM}.  See {@link
+    RegisterVM#run(RegisterBlob)} for implementations.
+
+    <p>Unlike {@link Instruction}s, register instructions do not operate on an
+    operand stack, but rather name the registers they read and write
+    directly.  Registers are the slots of the current register table.  The
+    first few registers of a function are its local variables, numbered the
+    same as the local slots of the stack VM, and the rest hold temporaries.
+    Documentation of the operations uses {@code r[x]} for register {@code x},
+    {@code g[x]} for global slot {@code x}, {@code u[x]} for upvalue slot
+    {@code x}, and {@code c[x]} for constant {@code x}, with {@code a}, {@code
+    b}, {@code c} and {@code d} being the arguments of the instruction, in
+    order.
+
+    <p>Packed the same way as {@link Instruction}s: the first word holds the
+    opcode and the first argument, and each further argument takes a word of
+    its own.  */
+@Data
+public final class RegisterInstruction {
+    public enum Code {
+        // Arithmetic Operations
+        /** {@code r[a] = r[b] + r[c]}.  */
+        ADD(3),
+        /** {@code r[a] = r[b] - r[c]}.  */
+        SUBTRACT(3),
+        /** {@code r[a] = r[b] * r[c]}.  */
+        MULTIPLY(3),
+        /** {@code r[a] = r[b] / r[c]}.  */
+        DIVIDE(3),
+        /** {@code r[a] = r[b] ^ r[c]}.  */
+        RAISE(3),
+
+        // Data movement
+        /** {@code r[a] = c[b]}.  */
+        LOAD_CONSTANT(2),
+        /** {@code r[a] = r[b]}.  */
+        MOVE(2),
+        /** {@code r[a] = g[b]}.  */
+        GET_GLOBAL(2),
+        /** {@code g[a] = r[b]}.  */
+        SET_GLOBAL(2),
+        /** {@code r[a] = u[b]}.  */
+        GET_UPVALUE(2),
+
+        // Vectors
+        /** {@code r[a] = <r[b], r[b+1], …, r[b+c-1]>}.  */
+        VECTOR_CONSTRUCT(3),
+
+        // Function and Return
+        /** {@code r[a] = r[b](r[c], r[c+1], …, r[c+d-1])}.  */
+        FUNCTION_CALL(4),
+        /** Return {@code r[a]} from the function, and resume execution of the
+            caller.  */
+        RETURN(1),
+        /** Return no value from the function and resume execution of the
+            caller.  A synthetic, unusable value will be placed in the result
+            register of the caller.  */
+        RETURN_VOID(0),
+        /** {@code r[a]} becomes a closure populated as the function table
+            entry {@code b} commands.  */
+        BUILD_CLOSURE(2),
+
+        // Others
+        /** Prints {@code r[a]} to the output stream.  */
+        PRINT(1),
+        /** Terminates executing the current blob, returning control to the
+            caller of {@link RegisterVM#run(RegisterBlob)}.  */
+        FINISH_OUTER(0),
+        ;
+
+        /** Number of arguments instructions of this opcode take.  */
+        public final int argCount;
+        /** Number of words instructions of this opcode take when packed.  */
+        public final int length;
+
+        /** @param argCount Number of arguments instructions of this opcode
+                            take.  */
+        Code(int argCount) {
+            this.argCount = argCount;
+            this.length = Math.max(1, argCount);
+        }
+
+        /** All opcodes, indexed by their ordinal.  */
+        private static final Code[] VALUES = values();
+    }
+
+    /** @param word First word of a packed instruction.
+        @return The opcode of that instruction.  */
+    public static Code opcode(int word) {
+        return Code.VALUES[word & ((1 << Instruction.OPCODE_BITS) - 1)];
+    }
+
+    /** @param word First word of a packed instruction.
+        @return The first argument of that instruction.  */
+    public static int arg1(int word) {
+        return Instruction.arg1(word);
+    }
+
+    /** Opcode of this instruction.  */
+    private final Code opcode;
+    /** Arguments of this instruction.  */
+    private final int[] args;
+
+    /** @param opcode Opcode of this instruction.
+        @param args Arguments of this instruction.  */
+    public RegisterInstruction(Code opcode, int... args) {
+        assert opcode.argCount == args.length;
+        this.opcode = opcode;
+        this.args = args;
+    }
+
+    /** Pack this instruction into {@code code}, at {@code ip}.
+
+        @param code Packed code to write into.
+        @param ip Index of the first word to write.
+        @return Index right past the written instruction.  */
+    public int packInto(int[] code, int ip) {
+        var arg1 = args.length == 0 ? 0 : args[0];
+        if (arg1(arg1 << Instruction.OPCODE_BITS) != arg1)
+            throw new IllegalStateException("argument out of range: " + this);
+        code[ip] = opcode.ordinal() | arg1 << Instruction.OPCODE_BITS;
+        for (int i = 1; i < args.length; i++)
+            code[ip + i] = args[i];
+        return ip + opcode.length;
+    }
+
+    /** Unpack the instruction at {@code ip} in packed code {@code code}.
+
+        @param code Packed code to read from.
+        @param ip Index of the first word of the instruction.
+        @return The instruction at {@code ip}.  */
+    public static RegisterInstruction unpack(int[] code, int ip) {
+        var opcode = opcode(code[ip]);
+        var args = new int[opcode.argCount];
+        if (args.length > 0)
+            args[0] = arg1(code[ip]);
+        for (int i = 1; i < args.length; i++)
+            args[i] = code[ip + i];
+        return new RegisterInstruction(opcode, args);
+    }
+
+    @Override
+    public String toString() {
+        return opcode + Arrays.stream(args)
+            .mapToObj(a -> " " + a)
+            .collect(Collectors.joining());
+    }
+}
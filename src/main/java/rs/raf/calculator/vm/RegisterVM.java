@@ -0,0 +1,174 @@
+package rs.raf.calculator.vm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import rs.raf.calculator.Calculator;
+
+import static rs.raf.calculator.vm.RegisterInstruction.Code.*;
+
+/** A register machine for executing {@link RegisterBlob}s.  An alternative
+    to the stack-based {@link VM}: instead of pushing and popping operands,
+    each instruction reads and writes the registers it names directly.  */
+public class RegisterVM {
+    /** Wider compilation (and execution) context.  */
+    private final Calculator c;
+
+    /** @param context Context to interpret in.  */
+    public RegisterVM(Calculator context) {
+        this.c = context;
+    }
+
+    /** Table of global values.  */
+    private final ArrayList<Value> globals = new ArrayList<>();
+
+    /** Activation record of a register blob.
+
+        @param blob The blob being executed.
+        @param registers The register table.
+        @param upvalues The upvalue table.  Direct copy from the closure.
+        @param prevIp The IP to return to.
+        @param resultRegister Register of the caller that receives the return
+               value.  */
+    private record Frame(RegisterBlob blob,
+                         Value[] registers,
+                         Value[] upvalues,
+                         int prevIp,
+                         int resultRegister) {}
+
+    /** Execute a single blob, concluding when it reaches {@link
+        RegisterInstruction.Code#FINISH_OUTER <code>FINISH_OUTER</code>}.
+
+        <p> Also grows the global table, as needed.
+
+        @param blob Code to execute.  */
+    public void run(RegisterBlob blob) {
+        /* Invocations suspended by a call.  The current one is in 'frame'.  */
+        var callstack = new ArrayList<Frame>();
+
+        /* Grow the global table.  */
+        while (globals.size() < c.getGlobalCount())
+            globals.add(null);
+
+        /* Prepare the outer invocation.  */
+        var frame = new Frame(blob, new Value[blob.registerCount()],
+                              null, -1, -1);
+        var ip = 0;
+
+        /* Information related to the currently-executing function.  Reloaded
+           whenever the current invocation changes.  */
+        var code = blob.packedCode();
+        var csts = blob.boxedConstants();
+        var regs = frame.registers();
+        var upvals = frame.upvalues();
+
+        /* VM main loop.  */
+        for (;;) {
+            /* Fetch the current instruction.  Arguments past the first are
+               at code[at + 1] and onwards.  */
+            var at = ip;
+            var op = RegisterInstruction.opcode(code[at]);
+            var a = RegisterInstruction.arg1(code[at]);
+            ip += op.length;
+
+            /* ... and interpret it.  */
+            switch (op) {
+            case ADD -> regs[a] = new Value.Number
+                (number(regs[code[at + 1]]) + number(regs[code[at + 2]]));
+            case SUBTRACT -> regs[a] = new Value.Number
+                (number(regs[code[at + 1]]) - number(regs[code[at + 2]]));
+            case MULTIPLY -> regs[a] = new Value.Number
+                (number(regs[code[at + 1]]) * number(regs[code[at + 2]]));
+            case DIVIDE -> regs[a] = new Value.Number
+                (number(regs[code[at + 1]]) / number(regs[code[at + 2]]));
+            case RAISE -> regs[a] = new Value.Number
+                (Math.pow(number(regs[code[at + 1]]),
+                          number(regs[code[at + 2]])));
+
+            case LOAD_CONSTANT ->
+                regs[a] = csts[code[at + 1]];
+            case MOVE -> regs[a] = regs[code[at + 1]];
+            case GET_GLOBAL -> regs[a] = globals.get(code[at + 1]);
+            case SET_GLOBAL -> globals.set(a, regs[code[at + 1]]);
+            case GET_UPVALUE -> regs[a] = upvals[code[at + 1]];
+
+            case VECTOR_CONSTRUCT -> {
+                var base = code[at + 1];
+                var cnt = code[at + 2];
+                regs[a] = new Value.Vector
+                    (new ArrayList<>(Arrays.asList(regs)
+                                     .subList(base, base + cnt)));
+            }
+
+            case PRINT -> {
+                regs[a].print(System.out);
+                System.out.println();
+            }
+
+            case FINISH_OUTER -> {
+                /* This must be called from the toplevel.  */
+                assert callstack.isEmpty();
+                assert ip == code.length;
+                return;
+            }
+
+            /* Return from a function.  */
+            case RETURN, RETURN_VOID -> {
+                /* As in the stack VM, a void result is never read.  */
+                var retval = op == RETURN_VOID ? null : regs[a];
+                var caller = callstack.removeLast();
+                caller.registers()[frame.resultRegister()] = retval;
+                ip = frame.prevIp();
+                frame = caller;
+                code = frame.blob().packedCode();
+                csts = frame.blob().boxedConstants();
+                regs = frame.registers();
+                upvals = frame.upvalues();
+            }
+
+            /* Call a closure.  */
+            case FUNCTION_CALL -> {
+                var closure = (Value.Closure) regs[code[at + 1]];
+                var argBase = code[at + 2];
+                var aty = code[at + 3];
+                var callee = closure.function().getRegisterCode();
+
+                /* Allocate the register table of the callee, and place the
+                   arguments into its first few registers, which are where the
+                   arguments are declared.  */
+                var newRegs = new Value[callee.registerCount()];
+                System.arraycopy(regs, argBase, newRegs, 0, aty);
+
+                callstack.add(frame);
+                frame = new Frame(callee, newRegs, closure.upvalues(), ip, a);
+                ip = 0;
+                code = callee.packedCode();
+                csts = callee.boxedConstants();
+                regs = newRegs;
+                upvals = frame.upvalues();
+            }
+
+            /* Collect upvalues and build a closure!  */
+            case BUILD_CLOSURE -> {
+                var fn = c.getFunction(code[at + 1]);
+                var um = fn.getUpvalueMap();
+                var newUpvalues = new Value[um.length];
+                var closure = new Value.Closure(fn, newUpvalues);
+                for (int u = 0; u < newUpvalues.length; u++)
+                    /* Locals are the first few registers.  */
+                    newUpvalues[u] = switch (um[u].loc()) {
+                        case UPVALUE -> upvals[um[u].slot()];
+                        case LOCAL -> regs[um[u].slot()];
+                        case SELF -> closure;
+                        };
+                regs[a] = closure;
+            }
+            }
+        }
+    }
+
+    /** @return The number in {@code value}, which must be a number.  */
+    private static double number(Value value) {
+        return ((Value.Number) value).number();
+    }
+}
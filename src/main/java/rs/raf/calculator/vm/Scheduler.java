@@ -0,0 +1,140 @@
+package rs.raf.calculator.vm;
+
+import java.util.ArrayList;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/** Runs many programs concurrently over a small, fixed pool of carrier
+    threads, like green threads.
+
+    <p> Each program runs on a {@link VM} of its own, in a {@link
+    rs.raf.calculator.Calculator} of its own.  Carriers take programs off a
+    single run queue, {@link VM#resume(long) resume} each for one quantum of
+    calls and returns, and put it back at the end of the queue unless it
+    finished.  Every program hence gets the same share of the carriers, in
+    turn, no matter how long any of them runs, so a program is never held up
+    by more than one quantum of each program ahead of it.
+
+    <p> Programs are only suspended by the interpreter.  With the {@link
+    rs.raf.calculator.Calculator#jit JIT} enabled, a program holds on to its
+    carrier while running compiled code.  */
+public final class Scheduler implements AutoCloseable {
+    /** A program being run.
+
+        @param vm VM running the program.
+        @param done Completed once the program finishes.  */
+    private record Task(VM vm, CompletableFuture<Void> done) {}
+
+    /** What the future of a program that had a runtime error is completed
+        with.  The error itself is reported by the calculator of the
+        program, as always.  */
+    @SuppressWarnings("serial")
+    public static final class RuntimeErrorException extends RuntimeException {
+        RuntimeErrorException() {
+            super("runtime error");
+        }
+    }
+
+    /** Number of calls and returns each program runs for in its turn.  */
+    private final long quantum;
+    /** Programs waiting for their turn, in order.  */
+    private final BlockingQueue<Task> runQueue = new LinkedBlockingQueue<>();
+    /** The carrier threads.  */
+    private final ArrayList<Thread> carriers = new ArrayList<>();
+
+    /** Start a scheduler.
+
+        @param carrierCount Number of carrier threads to run programs on.
+        @param quantum Number of calls and returns each program runs for in
+                       its turn.  */
+    public Scheduler(int carrierCount, long quantum) {
+        if (carrierCount <= 0 || quantum <= 0)
+            throw new IllegalArgumentException("carrier count and quantum "
+                                               + "must be positive");
+        this.quantum = quantum;
+        var factory = Thread.ofPlatform().daemon().name("carrier-", 0)
+            .factory();
+        for (int i = 0; i < carrierCount; i++) {
+            var carrier = factory.newThread(this::carry);
+            carriers.add(carrier);
+            carrier.start();
+        }
+    }
+
+    /** Run {@code blob} on {@code vm}, which must not be running anything
+        else, once its turn comes.  Neither may be used until the program
+        finishes.  Clears the runtime error flag of the calculator of {@code
+        vm}, so that only errors of this program are seen.
+
+        @param vm VM to run the program on.
+        @param blob Toplevel code of the program, compiled in the context of
+                    {@code vm}.
+        @return A future completed once the program finishes, exceptionally
+                with a {@link RuntimeErrorException} if it had a runtime
+                error, such as being cancelled.  */
+    public CompletableFuture<Void> submit(VM vm, Blob blob) {
+        vm.context().setHadRuntimeError(false);
+        vm.start(blob);
+        var task = new Task(vm, new CompletableFuture<>());
+        runQueue.add(task);
+        return task.done();
+    }
+
+    /** Body of each carrier.  Runs programs in turn until interrupted.  A
+        program throwing anything completes its future with that, and the
+        carrier keeps going.  */
+    private void carry() {
+        try {
+            for (;;) {
+                var task = runQueue.take();
+                boolean finished;
+                try {
+                    finished = task.vm().resume(quantum);
+                } catch (Throwable e) {
+                    /* Whatever went wrong, even running out of memory, ends
+                       this program only.  Drop what it holds, so that the
+                       carrier can go on with the others.  */
+                    task.vm().release();
+                    task.done().completeExceptionally(e);
+                    continue;
+                }
+                if (!finished)
+                    runQueue.add(task);
+                else if (task.vm().context().hadRuntimeError())
+                    task.done().completeExceptionally
+                        (new RuntimeErrorException());
+                else
+                    task.done().complete(null);
+            }
+        } catch (InterruptedException e) {
+            /* Closed.  */
+        }
+    }
+
+    /** Stop the carriers, once they are done with the current turn, and
+        cancel all programs that did not finish.  Waits for the carriers
+        even if interrupted, as they might otherwise put a program back on
+        the run queue once it was emptied, and only then interrupts the
+        calling thread again.  */
+    @Override
+    public void close() {
+        for (var carrier : carriers)
+            carrier.interrupt();
+        var interrupted = false;
+        for (var carrier : carriers) {
+            for (;;) {
+                try {
+                    carrier.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        for (Task task; (task = runQueue.poll()) != null; )
+            task.done().cancel(false);
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+}
@@ -0,0 +1,34 @@
+package rs.raf.calculator.vm;
+
+import rs.raf.calculator.ast.FunctionType;
+import rs.raf.calculator.ast.ListType;
+import rs.raf.calculator.ast.NumberType;
+import rs.raf.calculator.ast.Type;
+import rs.raf.calculator.ast.VoidType;
+
+/** What kind of value a local or operand slot holds at some point of a
+    {@link Blob}, as tracked by the {@link Verifier}.  */
+public enum SlotKind {
+    /** A number.  */
+    NUMBER,
+    /** A vector.  */
+    VECTOR,
+    /** A closure.  */
+    CLOSURE,
+    /** The unusable result of calling a {@code void} function.  */
+    VOID,
+    /** Not known, such as a local that was not yet assigned.  */
+    UNKNOWN;
+
+    /** @return The kind of values of static type {@code type}, which may be
+                {@code null} if not known.  */
+    public static SlotKind of(Type type) {
+        return switch (type) {
+        case NumberType n -> NUMBER;
+        case ListType l -> VECTOR;
+        case FunctionType f -> CLOSURE;
+        case VoidType v -> VOID;
+        case null, default -> UNKNOWN;
+        };
+    }
+}
@@ -0,0 +1,51 @@
+package rs.raf.calculator.vm;
+
+import java.io.PrintStream;
+
+/** An {@link ExecutionListener} printing every event it gets, indented by
+    call depth.  */
+public class Tracer implements ExecutionListener {
+    /** Stream to print into.  */
+    private final PrintStream out;
+    /** Current call depth.  */
+    private int depth = 0;
+
+    /** @param out Stream to print into.  */
+    public Tracer(PrintStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void functionEntered(Function fn) {
+        line("-> %s", name(fn));
+        depth++;
+    }
+
+    @Override
+    public void functionExited(Function fn) {
+        depth--;
+        line("<- %s", name(fn));
+    }
+
+    @Override
+    public void beforeInstruction(Function fn, int ip, Instruction.Code op) {
+        line("%s %04x %s", name(fn), ip, op);
+    }
+
+    @Override
+    public void valueCreated(Function fn, int ip, Value value) {
+        out.printf("%s%s %04x = ", "  ".repeat(depth), name(fn), ip);
+        value.print(out);
+        out.println();
+    }
+
+    /** Print an indented line.  */
+    private void line(String format, Object... args) {
+        out.printf("%s%s\n", "  ".repeat(depth), format.formatted(args));
+    }
+
+    /** @return A name for the code of {@code fn}.  */
+    private static String name(Function fn) {
+        return fn == null ? "<toplevel>" : fn.getFuncDecl().getName();
+    }
+}
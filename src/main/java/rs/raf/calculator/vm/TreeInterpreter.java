@@ -0,0 +1,99 @@
+package rs.raf.calculator.vm;
+
+import java.util.Arrays;
+
+import lombok.Getter;
+import rs.raf.calculator.Calculator;
+
+/** Executes programs compiled into trees of nodes by the {@link
+    rs.raf.calculator.compiler.TreeCompiler}.  An alternative to the {@link
+    VM}: rather than dispatching on instructions in a loop, each node
+    evaluates itself directly, calling its child nodes, with everything it
+    needs to know, such as local slots, resolved ahead of time.
+
+    <p> Numbers are kept unboxed: expressions of number type compile to
+    {@link NumNode}s, and all others to {@link RefNode}s.  Likewise, frames,
+    upvalues and globals each have a {@code double} table and a reference
+    table, indexed in parallel, only one of which holds a meaningful value for
+    each slot, as in the unboxed {@link VM}.  */
+public class TreeInterpreter {
+    /** Wider compilation (and execution) context.  */
+    private final Calculator c;
+
+    /** @param context Context to interpret in.  */
+    public TreeInterpreter(Calculator context) {
+        this.c = context;
+    }
+
+    /** An expression of number type.  */
+    @FunctionalInterface
+    public interface NumNode {
+        /** @param frame Frame to evaluate in.
+            @return Value of this expression.  */
+        double eval(Frame frame);
+    }
+
+    /** An expression of any other type.  */
+    @FunctionalInterface
+    public interface RefNode {
+        /** @param frame Frame to evaluate in.
+            @return Value of this expression.  */
+        Value eval(Frame frame);
+    }
+
+    /** A statement.  */
+    @FunctionalInterface
+    public interface StmtNode {
+        /** @param frame Frame to execute in.
+            @return Whether this statement returned from the function.  */
+        boolean exec(Frame frame);
+    }
+
+    /** Activation record of a function, or of the toplevel.  */
+    public static final class Frame {
+        /** Closure being executed, or {@code null} at the toplevel.  Holds
+            the upvalues.  */
+        public final Value.Closure closure;
+        /** The local value table.  */
+        public final Value[] locals;
+        /** The numeric local value table.  */
+        public final double[] numLocals;
+        /** Value returned by a {@code return} statement, if not a number.  */
+        public Value result;
+        /** Value returned by a {@code return} statement, if a number.  */
+        public double numResult;
+
+        /** @param closure Closure being executed.
+            @param localCount Number of local slots required.  */
+        public Frame(Value.Closure closure, int localCount) {
+            this.closure = closure;
+            this.locals = new Value[localCount];
+            this.numLocals = new double[localCount];
+        }
+    }
+
+    /** Table of global values.  */
+    @Getter
+    private Value[] globals = new Value[0];
+    /** Table of global numbers.  Parallel to {@link #globals}.  */
+    @Getter
+    private double[] numGlobals = new double[0];
+
+    /** Execute toplevel code.  Also grows the global table, as needed.
+        Nodes call each other, and functions, on the JVM stack, so
+        recursion too deep for it is reported as a runtime error, like the
+        {@link VM} does.
+
+        @param toplevel Code to execute.  */
+    public void run(StmtNode toplevel) {
+        if (globals.length < c.getGlobalCount()) {
+            globals = Arrays.copyOf(globals, c.getGlobalCount());
+            numGlobals = Arrays.copyOf(numGlobals, c.getGlobalCount());
+        }
+        try {
+            toplevel.exec(new Frame(null, 0));
+        } catch (StackOverflowError e) {
+            c.runtimeError("stack overflow");
+        }
+    }
+}
@@ -34,14 +34,21 @@ package rs.raf.calculator.vm;
     represented by {@code UpvalueMapEntry(UPVALUE, 0)} and {@code
     UpvalueMapEntry(LOCAL, 1)}.
 
+    <p>
+    A function referring to itself by name, where that name is not global,
+    captures its own closure, represented by {@code UpvalueMapEntry(SELF,
+    0)}, as the variable holding it is not assigned yet when the closure is
+    built.
+
     @param loc Which table is the upvalue in?
     @param slot Which slot in that table is it in?  */
 public record UpvalueMapEntry(UpvalueLocation loc,
                               int slot) {
     /** Where is this upvalue loaded from?  The closure context upvalue table
-        or the closure context local table?  */
+        or the closure context local table?  Or is it the closure being built
+        itself?  */
     public enum UpvalueLocation {
-        UPVALUE, LOCAL;
+        UPVALUE, LOCAL, SELF;
     }
 
     /** Return a brief human-readable string describing this upvalue
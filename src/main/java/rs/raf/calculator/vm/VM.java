@@ -1,228 +1,1315 @@
 package rs.raf.calculator.vm;
 
+import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.function.Predicate;
 import rs.raf.calculator.Calculator;
+import rs.raf.calculator.ast.NumberType;
 import static rs.raf.calculator.vm.Instruction.Code.*;
 
-/** A VM for executing various {@link Blob}s.  */
-public class VM {
+/** A VM for executing various {@link Blob}s.
+
+    <p> All invocations share a single value stack.  Each invocation owns a
+    window of it, starting at its base: the first few slots of the window are
+    its locals, and its operands are pushed right above them.  A call leaves
+    the arguments on the operand stack of the caller, which is exactly where
+    the first locals of the callee go, so the window of the callee starts at
+    the first argument, and arguments are never copied.  The metadata of each
+    invocation lives in a {@link BlobInvocation} in a pool of frames, which
+    are reused as calls come and go.
+
+    <p> All blobs the VM executes are {@link Verifier verified}, so the size
+    of the window of each invocation is known as soon as it starts.  The
+    stack is grown then, if needed, rather than checked on each push.  */
+public final class VM {
     /** Wider compilation (and execution) context.  */
     private Calculator c;
 
+    /** Tiered execution manager.  Only used if {@link Calculator#jit} is
+        set.  */
+    private final Jit jit;
+
     /** @param context Context to interpret in.  */
     public VM(Calculator context) {
         this.c = context;
+        this.jit = new Jit(context, this);
+    }
+
+    /** @return Context this VM interprets in.  */
+    Calculator context() {
+        return c;
     }
 
     /** Table of global values.  */
     private ArrayList<Value> globals = new ArrayList<>();
+    /** Table of global numbers, when executing unboxed.  Parallel to {@link
+        #globals}.  */
+    private double[] numGlobals = new double[0];
+
+    /** Initial size of {@link #stack}.  */
+    private static final int INITIAL_STACK_SIZE = 256;
+    /** Initial size of {@link #frames}.  */
+    private static final int INITIAL_FRAME_COUNT = 32;
+
+    /** The value stack, holding the locals and operands of all
+        invocations.  */
+    private Value[] stack = new Value[INITIAL_STACK_SIZE];
+    /** The numeric value stack, when executing unboxed.  Parallel to {@link
+        #stack}.  */
+    private double[] numStack = new double[INITIAL_STACK_SIZE];
+    /** Pool of invocation frames.  Frame {@code i} describes the invocation
+        {@code i} calls deep.  */
+    private BlobInvocation[] frames = newFrames(0, INITIAL_FRAME_COUNT);
+
+    /** Stack depth at the time the interpreter last called out of the VM,
+        into compiled code.  Code that calls back into the VM while that is
+        going on uses the stack above it.  */
+    private int stackTop = 0;
+    /** Index of the current frame at the time the interpreter last called
+        out of the VM.  See {@link #stackTop}.  */
+    private int frameTop = -1;
+
+    /* Cancellation.  See {@link #cancel()}.  */
+    /** Number of calls and returns between checks for cancellation.  */
+    private static final long POLL_INTERVAL = 1024;
+    /** Thrown out of the interpreter, and any compiled code it runs, to stop
+        a cancelled execution.  */
+    @SuppressWarnings("serial")
+    private static final class Cancelled extends RuntimeException {
+        /** @param message Why execution was stopped.  */
+        Cancelled(String message) {
+            /* Only ever caught by the VM, so no stack trace is needed.  */
+            super(message, null, false, false);
+        }
+    }
+    /** Whether the execution in progress was cancelled.  */
+    private volatile boolean cancelled = false;
+    /** Time after which the execution in progress is cancelled, as per
+        {@link System#nanoTime()}, if {@link #hasDeadline}.  */
+    private long deadline;
+    /** Whether there is a {@link #deadline}.  */
+    private boolean hasDeadline = false;
+    /** Calls until compiled code next {@link #poll() polls}.  */
+    private long compiledFuel = POLL_INTERVAL;
+
+    /* Suspended execution.  See {@link #resume(long)}.  */
+    /** Calls and returns left in the quantum, beyond the current fuel of
+        the interpreter.  */
+    private long quantumLeft;
+    /** Instruction to resume execution at, or {@code -1} if there is nothing
+        to resume.  */
+    private int suspendedIp = -1;
+    /** Stack depth to resume execution with.  */
+    private int suspendedSp;
+    /** Index of the frame to resume execution in.  */
+    private int suspendedFp;
+
+    /* Instrumentation.  See {@link #attach(ExecutionListener, Set,
+       Predicate)}.  */
+    /** The attached listener, or {@code null}.  */
+    private ExecutionListener listener;
+    /** Kinds of events reported to {@link #listener}.  */
+    private Set<ExecutionListener.Event> events;
+    /** Which functions to report events about to {@link #listener}.  */
+    private Predicate<Function> filter;
+
+    /** Whether to record what statistics and profiles are derived from.
+        See {@link #setRecordingStatistics(boolean)}.  */
+    private boolean recordingStatistics = false;
+    /** Number of times each opcode was executed by toplevel code, indexed
+        by ordinal, while {@link #recordingStatistics}.  Those executed by
+        functions follow from how many times each was interpreted.  See
+        {@link #printFusionStats(PrintStream)}.  */
+    private final long[] toplevelCounts =
+        new long[Instruction.Code.values().length];
+    /** Toplevel blobs started while {@link #recordingStatistics}, as
+        executed, for the statistics of their call sites.  See {@link
+        #printCallSiteStats(PrintStream)}.  */
+    private final ArrayList<Blob> toplevels = new ArrayList<>();
+
+    /** @return An array of {@code count} frames, the first {@code from} of
+                which are {@code null}.  */
+    private static BlobInvocation[] newFrames(int from, int count) {
+        var frames = new BlobInvocation[count];
+        for (int i = from; i < count; i++)
+            frames[i] = new BlobInvocation();
+        return frames;
+    }
+
+    /** Make sure the value stack has at least {@code size} slots.  Invalidates
+        any copies of {@link #stack} and {@link #numStack}.
+
+        @param size Required size.  */
+    private void ensureStack(int size) {
+        if (size <= stack.length)
+            return;
+        var newSize = Math.max(size, stack.length * 2);
+        stack = Arrays.copyOf(stack, newSize);
+        numStack = Arrays.copyOf(numStack, newSize);
+    }
+
+    /** Make sure frame {@code fp} exists in the pool.  Invalidates any copies
+        of {@link #frames}.
+
+        @param fp Index of the required frame.  */
+    private void ensureFrame(int fp) {
+        if (fp < frames.length)
+            return;
+        var grown = newFrames(frames.length, frames.length * 2);
+        System.arraycopy(frames, 0, grown, 0, frames.length);
+        frames = grown;
+    }
+
+    /** Start or stop recording what {@link #printFusionStats(PrintStream)
+        statistics} and {@link Profile#record(Calculator, Blob) profiles} are
+        derived from: the instructions of each toplevel blob started, and, of
+        each function, the number of calls, and how many of them were
+        interpreted.  Toplevel blobs are also kept, so that {@link
+        #printCallSiteStats(PrintStream)} can report their call sites.  Off by
+        default, as it costs time on every call, and holds on to all
+        toplevel code.  Only what runs while recording is counted.
+
+        @param recording Whether to record.  */
+    public void setRecordingStatistics(boolean recording) {
+        recordingStatistics = recording;
+    }
 
     /** Execute a single blob, concluding when it reaches {@link
         Instruction.Code#FINISH_OUTER <code>FINISH_OUTER</code>}.
 
-        <p> Also grows the global table, as needed.
-
         @param blob Code to execute.  */
     public void run(Blob blob) {
-        /* VM state.  */
-        var ip = 0;
-        var callstack = new ArrayList<BlobInvocation>();
+        start(blob);
+        resume(Long.MAX_VALUE);
+    }
+
+    /** Prepare to execute a single blob, without executing any of it yet.
+        Execute it using {@link #resume(long)}.
+
+        <p> Also grows the global table, as needed.
 
+        @param blob Code to execute.  */
+    public void start(Blob blob) {
         /* Grow the global table.  If the global count has increased, the code
            we are about to run will reference new slots.  */
         while (globals.size() < c.getGlobalCount())
             globals.add(null);
+        if (numGlobals.length < globals.size())
+            numGlobals = Arrays.copyOf(numGlobals, globals.size());
+
+        /* Code from elsewhere than the compiler might not have been verified
+           yet.  */
+        if (!blob.isVerified())
+            Verifier.verify(c, blob);
+        if (recordingStatistics)
+            blob.countOpcodes(toplevelCounts, 1);
+        if (listener != null)
+            blob = Instrumenter.instrument(c, null, blob, events);
+        if (recordingStatistics)
+            toplevels.add(blob);
+        ensureStack(blob.maxStack());
+
+        /* Prepare the outer invocation.  It has no locals, nor upvalues
+           (duh - there's no up).  */
+        frames[0].enter(blob, null, null, 0, -1, -1);
+        suspend(0, 0, 0);
+    }
+
+    /** Continue executing the blob passed to {@link #start(Blob)}, until it
+        finishes, or until it made {@code quantum} calls and returns, at which
+        point it is suspended again.  If the execution is {@link #cancel()
+        cancelled}, or overflows the JVM stack, that is reported as a runtime
+        error, and it counts as finished.
+
+        <p> Only the interpreter suspends itself, so interpreted code called
+        from compiled code, and compiled code itself, always runs to
+        completion.  Execution may be resumed on a different thread than it
+        was suspended on, as long as the two are synchronized.
+
+        @param quantum Number of calls and returns to execute, at most.
+        @return Whether the blob finished.
+        @throws IllegalArgumentException If {@code quantum} is not
+                                         positive.
+        @throws IllegalStateException If there is nothing to resume.  */
+    public boolean resume(long quantum) {
+        if (quantum <= 0)
+            throw new IllegalArgumentException("quantum must be positive");
+        if (suspendedIp < 0)
+            throw new IllegalStateException("no execution to resume");
+        var ip = suspendedIp;
+        /* If execution fails, there is nothing left to resume.  */
+        suspendedIp = -1;
+        quantumLeft = quantum;
+        try {
+            if (c.isUnboxed())
+                interpretUnboxed(0, suspendedFp, suspendedSp, ip, refuel(0));
+            else
+                interpret(0, suspendedFp, suspendedSp, ip, refuel(0));
+        } catch (Cancelled e) {
+            c.runtimeError("%s", e.getMessage());
+            release();
+            return true;
+        } catch (StackOverflowError e) {
+            /* Compiled code recurses on the JVM stack, so deep recursion in
+               it ends here, rather than at a deadline.  */
+            c.runtimeError("stack overflow");
+            release();
+            return true;
+        }
+        return suspendedIp < 0;
+    }
+
+    /** Cancel the execution in progress, or the next one, as soon as it
+        next calls or returns.  It is then reported as a runtime error, and
+        all of its state is released.  May be called from any thread.  */
+    public void cancel() {
+        cancelled = true;
+        if (c.isJit())
+            jit.invalidate();
+    }
+
+    /** Cancel executions still in progress at {@code deadline}, like {@link
+        #cancel()}.
+
+        @param deadline Deadline, as per {@link System#nanoTime()}.  */
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+        hasDeadline = true;
+        /* Compiled code only polls when told to.  */
+        if (c.isJit())
+            jit.setDeadline(deadline);
+    }
+
+    /** Remove the deadline set by {@link #setDeadline(long)}, if any.  */
+    public void clearDeadline() {
+        hasDeadline = false;
+        jit.clearDeadline();
+    }
+
+    /** Start reporting events to {@code listener}, replacing any listener
+        attached before.
+
+        <p> Functions are instrumented by building a copy of their code with
+        {@link Instruction.Code#PROBE <code>PROBE</code>}s inserted where
+        events are reported (see {@link Instrumenter}), and executing that
+        instead, so that code that is not instrumented runs exactly as fast
+        as before.  This takes effect on the next call of each function, and
+        on the next toplevel blob.  Instrumented functions are not compiled by
+        the JIT, and any compiled code they have is dropped.
+
+        <p> Must be called on the thread running this VM, while it is not
+        running anything, while it is suspended, or from a listener.
+
+        @param listener Listener to report events to.
+        @param events Kinds of events to report.
+        @param filter Which functions to report events about.  Toplevel code
+                      is always reported about.  */
+    public void attach(ExecutionListener listener,
+                       Set<ExecutionListener.Event> events,
+                       Predicate<Function> filter) {
+        detach();
+        this.listener = listener;
+        this.events = events.isEmpty()
+            ? EnumSet.noneOf(ExecutionListener.Event.class)
+            : EnumSet.copyOf(events);
+        this.filter = filter;
+        for (int i = 0; i < c.getFunctionCount(); i++)
+            /* Lazy functions are instrumented on their first call.  */
+            if (c.getFunction(i).getCode() != null)
+                instrument(c.getFunction(i));
+        invalidateCallSites();
+    }
+
+    /** Report all events about all functions to {@code listener}.  See
+        {@link #attach(ExecutionListener, Set, Predicate)}.
 
-        /* Prepare the outer invocation.  */
-        callstack.add(new BlobInvocation(blob));
+        @param listener Listener to report events to.  */
+    public void attach(ExecutionListener listener) {
+        attach(listener, EnumSet.allOf(ExecutionListener.Event.class),
+               fn -> true);
+    }
+
+    /** Stop reporting events, if a listener is attached.  Functions go back
+        to executing their original code on their next call.  Like {@link
+        #attach(ExecutionListener, Set, Predicate)}, must be called on the
+        thread running this VM.  */
+    public void detach() {
+        if (listener == null)
+            return;
+        /* Invocations still in instrumented code keep running it, but report
+           nothing.  */
+        invalidateCallSites();
+        listener = null;
+        for (int i = 0; i < c.getFunctionCount(); i++)
+            c.getFunction(i).setInstrumentedCode(null);
+    }
+
+    /** @return Whether a listener is attached.  */
+    public boolean isAttached() {
+        return listener != null;
+    }
+
+    /** Switch {@code fn} to instrumented code, if it should be, and is not
+        already.  */
+    private void instrument(Function fn) {
+        if (fn.getInstrumentedCode() != null || !filter.test(fn))
+            return;
+        fn.ensureCompiled();
+        fn.setCompiled(null);
+        fn.setEntry(null);
+        fn.setInstrumentedCode(Instrumenter.instrument(c, fn, fn.getCode(),
+                                                       events));
+    }
+
+    /** Empty the inline caches of every blob that may be running, or be
+        called, so that each call site looks up the code of its callee
+        again.  */
+    private void invalidateCallSites() {
+        for (int i = 0; i < c.getFunctionCount(); i++) {
+            var fn = c.getFunction(i);
+            invalidateCallSites(fn.getCode());
+            invalidateCallSites(fn.getInstrumentedCode());
+        }
+        /* Including toplevel code.  */
+        for (var frame : frames)
+            invalidateCallSites(frame.getBlob());
+        /* And those of compiled code.  */
+        if (c.isJit())
+            jit.invalidate();
+    }
+
+    /** Empty the inline caches of {@code blob}, if any.  */
+    private static void invalidateCallSites(Blob blob) {
+        if (blob == null)
+            return;
+        for (var site : blob.callSites())
+            if (site != null)
+                site.invalidate();
+    }
+
+    /** Called whenever the fuel of the interpreter runs out.  Checks for
+        cancellation, and hands out more fuel, out of the quantum, if the
+        interpreter can be suspended at all.
+
+        @param entryFp Frame whose return ends the current interpretation.
+        @return The fuel to continue with, or {@code 0} if the interpreter is
+                to suspend itself.
+        @throws Cancelled If execution was cancelled.  */
+    private long refuel(int entryFp) {
+        checkCancelled();
+        /* Interpretation that does not start at the toplevel is nested in
+           compiled code, so cannot be suspended.  */
+        if (entryFp != 0)
+            return POLL_INTERVAL;
+        var fuel = Math.min(POLL_INTERVAL, quantumLeft);
+        quantumLeft -= fuel;
+        return fuel;
+    }
+
+    /** Called by compiled code on each call not linked to compiled code,
+        since it does not run out of fuel.  Checks for cancellation every
+        {@link #POLL_INTERVAL} calls.
+
+        @throws Cancelled If execution was cancelled.  */
+    void poll() {
+        if (--compiledFuel == 0) {
+            compiledFuel = POLL_INTERVAL;
+            checkCancelled();
+        }
+    }
+
+    /** @throws Cancelled If execution was cancelled, or is past its
+                         deadline.  */
+    void checkCancelled() {
+        if (cancelled)
+            throw new Cancelled("execution cancelled");
+        if (hasDeadline && System.nanoTime() - deadline >= 0)
+            throw new Cancelled("execution past its deadline");
+    }
+
+    /** Drop everything a cancelled or failed execution left on the stack
+        and in the frames, and shrink them back, so that a runaway execution
+        does not hold on to memory.  Globals are kept, as they outlive
+        executions.  */
+    void release() {
+        stack = new Value[INITIAL_STACK_SIZE];
+        numStack = new double[INITIAL_STACK_SIZE];
+        frames = newFrames(0, INITIAL_FRAME_COUNT);
+        stackTop = 0;
+        frameTop = -1;
+        cancelled = false;
+        clearDeadline();
+    }
+
+    /** Save the state of the interpreter, so that it can be {@link
+        #resume(long) resumed} later.  The rest of it is in the frames and on
+        the stack.
+
+        @param ip Instruction to resume at.
+        @param sp Stack depth to resume with.
+        @param fp Index of the frame to resume in.  */
+    private void suspend(int ip, int sp, int fp) {
+        suspendedIp = ip;
+        suspendedSp = sp;
+        suspendedFp = fp;
+    }
+
+    /** Call {@code closure} from outside of the VM, such as from compiled
+        code, and interpret it until it returns.
+
+        @param closure Closure to call.
+        @param args Arguments to the call.  Numbers are boxed.
+        @return The result of the call, boxed, or {@code null} if {@code
+                closure} is {@code void}.  */
+    Value callInterpreted(Value.Closure closure, Value[] args) {
+        var fn = closure.function();
+        fn.ensureCompiled();
+        if (recordingStatistics)
+            fn.countInterpretation();
+        if (listener != null)
+            instrument(fn);
+        var code = fn.executableCode();
+        /* The call comes from compiled code the interpreter called, so use
+           the stack above what the interpreter was using.  */
+        var savedStackTop = stackTop;
+        var savedFrameTop = frameTop;
+        var base = stackTop;
+        var fp = frameTop + 1;
+
+        /* The result is placed at the base, even if the window is empty.  */
+        ensureStack(base + Math.max(1, fn.getLocalCount()
+                                    + code.maxStack()));
+        ensureFrame(fp);
+        System.arraycopy(args, 0, stack, base, args.length);
+        Arrays.fill(stack, base + args.length, base + fn.getLocalCount(),
+                    null);
+        if (c.isUnboxed())
+            for (int i = 0; i < args.length; i++)
+                if (args[i] instanceof Value.Number n)
+                    numStack[base + i] = n.number();
+
+        /* The caller is outside of the VM.  It has nowhere to return to, and
+           receives the result in the first slot of the window.  */
+        frames[fp].enter(code, closure.upvalues(),
+                         closure.numUpvalues(), base, -1, base);
+        Value result;
+        if (c.isUnboxed()) {
+            interpretUnboxed(fp, fp, base + fn.getLocalCount(), 0,
+                             POLL_INTERVAL);
+            /* The result is in the half of the stack matching its type.  */
+            result = switch (fn.getFuncDecl().getReturnType()) {
+            case NumberType n -> new Value.Number(numStack[base]);
+            default -> stack[base];
+            };
+        } else {
+            interpret(fp, fp, base + fn.getLocalCount(), 0, POLL_INTERVAL);
+            result = stack[base];
+        }
+
+        stackTop = savedStackTop;
+        frameTop = savedFrameTop;
+        return result;
+    }
+
+    /** @return Value of global {@code slot}.  */
+    Value global(int slot) {
+        return globals.get(slot);
+    }
+
+    /** @return Value of numeric global {@code slot}, when unboxed.  */
+    double numGlobal(int slot) {
+        return numGlobals[slot];
+    }
+
+    /** Interpret boxed code, starting from instruction {@code ip} of frame
+        {@code fp}, until the toplevel blob finishes, until frame {@code
+        entryFp} returns, or until it is suspended.
+
+        <p> Fuel is spent on each call and return between interpreted
+        invocations, that is, at the only points where execution can stay
+        within the interpreter indefinitely, as code has no control flow.
+        When it runs out, the interpreter {@link #refuel(int) checks} for
+        cancellation, and {@link #suspend(int, int, int) suspends} itself
+        there if its quantum is spent.
+
+        @param entryFp Index of the frame whose return ends interpretation.
+        @param fp Index of the frame to start executing in.
+        @param sp Stack depth to start executing with.
+        @param ip Instruction to start executing at.
+        @param fuel Calls and returns to execute before refueling.  */
+    private void interpret(int entryFp, int fp, int sp, int ip, long fuel) {
+
+        /* Information related to the currently-executing function.  Most
+           instructions will use these.  Reloaded whenever the current
+           invocation changes.  */
+        var frame = frames[fp];
+        var stack = this.stack;
+        var code = frame.getBlob().packedCode();
+        var sites = frame.getBlob().callSites();
+        var csts = frame.getBlob().packedConstants();
+        var boxes = frame.getBlob().boxedConstants();
+        var upvals = frame.getUpvalues();
+        var bp = frame.getBase();
 
         /* VM main loop.  */
         for (;;) {
-            /* Extract information related to the currently-executing function.
-               Most instructions will use these.  */
-            var frame = callstack.getLast();
-            var stack = frame.getOperandStack();
-            var code = frame.getBlob().code();
-            var csts = frame.getBlob().constantTable();
-            var upvals = frame.getUpvalues();
-            var locals = frame.getLocals();
-
             /* Fetch the current instruction.  */
-            var insn = code.get(ip++);
-            var op = insn.getOpcode();
+            var word = code[ip];
+            var op = Instruction.opcode(word);
+            var arg1 = Instruction.arg1(word);
+            ip += op.length;
             /* ... and interpret it.  */
             switch (op) {
             case ADD, DIVIDE, MULTIPLY, RAISE, SUBTRACT -> {
                 /* Pop right-hand side (top of the stack).  */
-                var rhs = ((Value.Number) stack.getLast()).number();
-                stack.removeLast();
-                /* Pop left-hand side (right under the top).  */
-                var lhs = ((Value.Number) stack.getLast()).number();
-                stack.removeLast();
-
-                /* Compute the result, and push it back on the stack.  */
-                stack.add(new Value.Number
-                          (switch(op) {
-                          case ADD -> lhs + rhs;
-                          case SUBTRACT -> lhs - rhs;
-                          case MULTIPLY -> lhs * rhs;
-                          case DIVIDE -> lhs / rhs;
-                          case RAISE -> Math.pow(lhs, rhs);
-                          default ->
-                              /* Impossible, save for a bug.  */
-                              throw new IllegalArgumentException(op.name());
-                          }));
+                var rhs = number(stack[--sp]);
+                /* Left-hand side is right under the top.  */
+                var lhs = number(stack[sp - 1]);
+
+                /* Compute the result, and replace the left-hand side with
+                   it.  */
+                stack[sp - 1] = new Value.Number
+                    (switch(op) {
+                    case ADD -> lhs + rhs;
+                    case SUBTRACT -> lhs - rhs;
+                    case MULTIPLY -> lhs * rhs;
+                    case DIVIDE -> lhs / rhs;
+                    case RAISE -> Math.pow(lhs, rhs);
+                    default ->
+                        /* Impossible, save for a bug.  */
+                        throw new IllegalArgumentException(op.name());
+                    });
             }
 
             /* Get and push a global.  */
             case GET_GLOBAL ->
-                stack.add(globals.get(insn.getArg1()));
+                stack[sp++] = globals.get(arg1);
             /* Get and push a local.  */
             case GET_LOCAL ->
-                stack.add(locals[insn.getArg1()]);
+                stack[sp++] = stack[bp + arg1];
             /* Get and push an upvalue.  */
             case GET_UPVALUE ->
-                stack.add(upvals[insn.getArg1()]);
+                stack[sp++] = upvals[arg1];
             /* Pop and save a global.  */
-            case SET_GLOBAL -> {
-                globals.set(insn.getArg1(), stack.getLast());
-                stack.removeLast();
-            }
+            case SET_GLOBAL ->
+                globals.set(arg1, stack[--sp]);
             /* Pop and save a local.  */
-            case SET_LOCAL -> {
-                locals[insn.getArg1()] = stack.getLast();
-                stack.removeLast();
-            }
+            case SET_LOCAL ->
+                stack[bp + arg1] = stack[--sp];
             /* No analog for upvalues - as all values are immutable, and those
                are initialized in BUILD_CLOSURE, there's never a need to modify
                the upvalue table.  */
 
             /* Create a vector of values.  */
             case VECTOR_CONSTRUCT -> {
-                var cnt = /* Count.  */ insn.getArg1();
-                var elements = new ArrayList<>(stack.subList(stack.size() - cnt,
-                                                             stack.size()));
-                for (int i = 0; i < cnt; i++)
-                    stack.removeLast();
-                stack.add(new Value.Vector(elements));
+                var cnt = /* Count.  */ arg1;
+                var elements = new ArrayList<>(Arrays.asList(stack)
+                                               .subList(sp - cnt, sp));
+                sp -= cnt;
+                stack[sp++] = new Value.Vector(elements);
             }
 
             /* Extract a vector element.  */
             case VECTOR_ACCESS -> {
                 /* Unused.  */
-                var rhs = ((Value.Vector) stack.getLast()).elements();
-                stack.removeLast();
-                var lhs = ((Value.Number) stack.getLast()).number();
-                stack.removeLast();
-                stack.add(rhs.get((int) lhs));
+                var rhs = ((Value.Vector) stack[--sp]).elements();
+                var lhs = number(stack[sp - 1]);
+                stack[sp - 1] = rhs.get((int) lhs);
             }
 
             /* Get and push a constant.  */
             case PUSH_CONSTANT ->
-                stack.add(new Value.Number(csts.get(insn.getArg1())));
+                stack[sp++] = boxes[arg1];
 
-            case POP -> stack.removeLast();
+            /* Numbers are always boxed here.  */
+            case BOX_NUMBER -> {}
+
+            case POP -> sp--;
 
 
             /* Terminate this VM run (but not the program - we have a
                REPL).  */
             case FINISH_OUTER -> {
                 /* This must be called from the toplevel.  */
-                assert callstack.size() == 1;
-                /* We must've just read the last instruction (ip is
-                   post-incremented before the 'switch' we're in, so ip == size
-                   in that case).  */
-                assert ip == code.size();
+                assert fp == 0;
+                /* We must've just read the last instruction (ip is advanced
+                   past the instruction before the 'switch' we're in, so ip ==
+                   length in that case).  */
+                assert ip == code.length;
                 return;
             }
             /* Print the top of the stack.  */
             case PRINT -> {
-                var val = stack.getLast();
-                stack.removeLast();
+                var val = stack[--sp];
                 val.print(System.out);
                 System.out.println();
             }
 
             /* Return from a function.  */
-            case RETURN, RETURN_VOID -> {
+            case RETURN, RETURN_VOID, TAIL_CALL -> {
+                final Value retval;
+                if (op == TAIL_CALL) {
+                    final var aty = arg1;
+                    final var argBase = sp - aty;
+                    final var site = resolve(sites[ip - op.length],
+                                             stack[argBase - 1]);
+                    final var compiled = countCall(site.function);
+                    if (compiled == null) {
+                        /* Replace the current invocation with one of the
+                           callee, by moving the arguments to the start of
+                           our window.  */
+                        final var localCount = site.localCount;
+                        ensureStack(bp + site.frameSize);
+                        stack = this.stack;
+                        System.arraycopy(stack, argBase, stack, bp, aty);
+                        Arrays.fill(stack, bp + aty, bp + localCount, null);
+                        frame.enter(site.blob, site.upvalues,
+                                    site.numUpvalues, bp,
+                                    frame.getPrevIp(), frame.getResultSlot());
+                        code = frame.getBlob().packedCode();
+                        sites = frame.getBlob().callSites();
+                        csts = frame.getBlob().packedConstants();
+                        boxes = frame.getBlob().boxedConstants();
+                        upvals = frame.getUpvalues();
+                        sp = bp + localCount;
+                        ip = 0;
+                        if (--fuel == 0
+                            && (fuel = refuel(entryFp)) == 0) {
+                            suspend(ip, sp, fp);
+                            return;
+                        }
+                        break;
+                    }
+                    /* Compiled code has its own frames, so just return what
+                       it returns.  */
+                    stackTop = sp;
+                    frameTop = fp;
+                    retval = compiled.call(site.closure,
+                                           Arrays.copyOfRange(stack, argBase,
+                                                              sp));
+                    stack = this.stack;
+                } else {
+                    /* In case this is a void function, we don't have anything
+                       to return.  But, after each ExprStmt there's a POP.  A
+                       void function call is necessarily nested in a ExprStmt
+                       due to it being type-checked.  With these facts, we can
+                       safely insert a Java null in place of a return value,
+                       or really any arbitrary value, as it will never
+                       actually be read.  */
+                    retval = op == RETURN_VOID ? null : stack[sp - 1];
+                }
+
+                /* Place the result where the caller expects it.  */
+                final var dst = frame.getResultSlot();
+                stack[dst] = retval;
+                /* Return to outside of the VM, if that is where we were
+                   called from.  */
+                if (fp == entryFp)
+                    return;
+                /* Restore old IP, and resume the previous invocation, with
+                   the result as its top operand.  */
+                ip = frame.getPrevIp();
+                frame = frames[--fp];
+                code = frame.getBlob().packedCode();
+                sites = frame.getBlob().callSites();
+                csts = frame.getBlob().packedConstants();
+                boxes = frame.getBlob().boxedConstants();
+                upvals = frame.getUpvalues();
+                bp = frame.getBase();
+                sp = dst + 1;
+                if (--fuel == 0 && (fuel = refuel(entryFp)) == 0) {
+                    suspend(ip, sp, fp);
+                    return;
+                }
+            }
+
+            /* Call a closure.  */
+            case FUNCTION_CALL, GET_GLOBAL_CALL -> {
+                /* GET_GLOBAL_CALL takes the closure from a global, rather
+                   than from under the arguments.  */
+                final var viaGlobal = op == GET_GLOBAL_CALL;
+                /* Arity.  The second argument of GET_GLOBAL_CALL is in the
+                   word right before the next instruction.  */
+                final var aty = viaGlobal ? code[ip - 1] : arg1;
+                /* The arguments are on the top of the stack.  */
+                final var argBase = sp - aty;
+                /* The closure is the thing right under them.  Look it up in
+                   the inline cache of this call, which usually already
+                   knows everything about it.  */
+                final var site = resolve(sites[ip - op.length],
+                                         viaGlobal
+                                         ? globals.get(arg1)
+                                         : stack[argBase - 1]);
+                /* The result replaces the closure and the arguments.  */
+                final var dst = viaGlobal ? argBase : argBase - 1;
+
+                /* Run compiled code, if the callee has some.  */
+                final var compiled = countCall(site.function);
+                if (compiled != null) {
+                    stackTop = sp;
+                    frameTop = fp;
+                    final var result =
+                        compiled.call(site.closure,
+                                      Arrays.copyOfRange(stack, argBase, sp));
+                    stack = this.stack;
+                    stack[dst] = result;
+                    sp = dst + 1;
+                    break;
+                }
+
+                /* The arguments become the first locals of the callee.  Make
+                   room for the rest, and for its operands, and clear the
+                   locals, so that they never hold stale operands.  */
+                final var localCount = site.localCount;
+                ensureStack(argBase + site.frameSize);
+                stack = this.stack;
+                Arrays.fill(stack, argBase + aty, argBase + localCount, null);
+
+                /* Set up a frame for the new invocation, and switch to it.
+                   Note that the 'ip' is advanced before this 'switch' is
+                   executed, so 'ip' will refer to the next instruction.  */
+                ensureFrame(++fp);
+                frame = frames[fp];
+                frame.enter(site.blob,
+                            /* As they will never be modified, we can reuse
+                               the same upvalue table here as we found in the
+                               closure.  */
+                            site.upvalues, null,
+                            argBase, ip, dst);
+                code = frame.getBlob().packedCode();
+                sites = frame.getBlob().callSites();
+                csts = frame.getBlob().packedConstants();
+                boxes = frame.getBlob().boxedConstants();
+                upvals = frame.getUpvalues();
+                bp = argBase;
+                sp = bp + localCount;
+                ip = 0;
+                if (--fuel == 0 && (fuel = refuel(entryFp)) == 0) {
+                    suspend(ip, sp, fp);
+                    return;
+                }
+            }
+
+            /* Collect upvalues and build a closure!  */
+            case BUILD_CLOSURE ->
+                stack[sp++] = buildClosure(arg1, upvals, null, bp);
+
+            /* Report an event.  Only found in instrumented code.  */
+            case PROBE -> probe(frame, arg1, stack, sp);
+
+            /* Superinstructions.  See the peephole optimizer.  */
+            case ADD_LOCAL_LOCAL, SUB_LOCAL_LOCAL, MUL_LOCAL_LOCAL -> {
+                var lhs = number(stack[bp + arg1]);
+                /* The second argument is right before the next
+                   instruction.  */
+                var rhs = number(stack[bp + code[ip - 1]]);
+                stack[sp++] = new Value.Number(switch (op) {
+                    case ADD_LOCAL_LOCAL -> lhs + rhs;
+                    case SUB_LOCAL_LOCAL -> lhs - rhs;
+                    default -> lhs * rhs;
+                    });
+            }
+            case ADD_CONST, SUB_CONST, MUL_CONST, DIV_CONST -> {
+                var lhs = number(stack[sp - 1]);
+                var rhs = csts[arg1];
+                stack[sp - 1] = new Value.Number(switch (op) {
+                    case ADD_CONST -> lhs + rhs;
+                    case SUB_CONST -> lhs - rhs;
+                    case MUL_CONST -> lhs * rhs;
+                    default -> lhs / rhs;
+                    });
+            }
+            case BUILD_CLOSURE_LOCAL -> {
+                stack[bp + code[ip - 1]] =
+                    buildClosure(arg1, upvals, null, bp);
+            }
+            }
+        }
+    }
+
+    /** Report the event of probe {@code index} of the blob of {@code frame}
+        to the attached listener, if still attached.
+
+        @param frame Current invocation.
+        @param index Index of the probe.
+        @param stack Value stack, holding values that were created.
+        @param sp Current stack depth.  */
+    private void probe(BlobInvocation frame, int index, Value[] stack,
+                       int sp) {
+        if (listener == null)
+            return;
+        var probe = frame.getBlob().probes()[index];
+        var fn = probe.function();
+        switch (probe.event()) {
+        case ENTRY -> listener.functionEntered(fn);
+        case EXIT -> listener.functionExited(fn);
+        case INSTRUCTION -> listener.beforeInstruction(fn, probe.ip(),
+                                                       probe.op());
+        case VALUE -> listener.valueCreated(fn, probe.ip(),
+                                            probe.slot() < 0
+                                            ? stack[sp - 1]
+                                            : stack[frame.getBase()
+                                                    + probe.slot()]);
+        }
+    }
+
+    /** Look {@code callee} up in the inline cache of a call site, refilling
+        it if it holds a different function.
+
+        @param site Inline cache of the call.
+        @param callee Closure being called.
+        @return {@code site}, describing {@code callee}.  */
+    private CallSite resolve(CallSite site, Value callee) {
+        final var closure = (Value.Closure) callee;
+        if (closure.function() == site.function) {
+            site.hits++;
+            /* Closures built anew on each call of their parent share the
+               function, and only differ in their upvalues.  */
+            if (closure != site.closure)
+                site.rebind(closure);
+        } else {
+            /* A function declared or compiled after instrumentation was
+               attached is first called through a miss.  */
+            if (listener != null)
+                instrument(closure.function());
+            site.fill(closure);
+        }
+        return site;
+    }
+
+    /** Count a call to {@code fn}, if the JIT or {@link
+        #recordingStatistics} needs it, and, if the JIT is enabled, find its
+        compiled code.  If there is none, and recording statistics, also
+        count the call as interpreted.
+
+        @param fn Function being called.
+        @return Compiled code to run instead of interpreting {@code fn}, or
+                {@code null}.  */
+    private CompiledFunction countCall(Function fn) {
+        if (c.isJit() || recordingStatistics)
+            fn.countInvocation();
+        var compiled = c.isJit() ? jit.compiledCode(fn) : null;
+        if (compiled == null && recordingStatistics)
+            fn.countInterpretation();
+        return compiled;
+    }
+
+    /** @return The number in {@code value}, which must be a number.  */
+    private static double number(Value value) {
+        return ((Value.Number) value).number();
+    }
+
+    /** Collect upvalues and build a closure of function {@code fnId}.  The
+        numeric tables are only present when executing unboxed.
+
+        @param fnId Function table slot of the function to build a closure of.
+        @param upvals Upvalue table of the current invocation.
+        @param numUpvals Numeric upvalue table of the current invocation.
+        @param bp Base of the window of the current invocation, where its
+                  locals are.
+        @return The new closure.  */
+    private Value.Closure buildClosure(int fnId,
+                                       Value[] upvals, double[] numUpvals,
+                                       int bp) {
+        var fn = c.getFunction(fnId);
+        var um = fn.getUpvalueMap();
+        var unboxed = c.isUnboxed();
+        /* Allocate the upvalue tables.  */
+        var newUpvalues = new Value[um.length];
+        var newNumUpvalues = unboxed ? new double[um.length] : null;
+        var closure = new Value.Closure(fn, newUpvalues, newNumUpvalues);
+        for (int u = 0; u < newUpvalues.length; u++) {
+            /* Set upvalue u based on the specification in upvalueMap[u].
+               Fetch the correct table - if loc is UPVALUE, then this is the
+               current upvalue table, if LOCAL, the current locals window,
+               and if SELF, the upvalue is the new closure.  */
+            var slot = um[u].slot();
+            switch (um[u].loc()) {
+            case UPVALUE -> {
+                newUpvalues[u] = upvals[slot];
+                /* When unboxed, also copy the numeric half, as we do not
+                   know which one is meaningful.  */
+                if (unboxed)
+                    newNumUpvalues[u] = numUpvals[slot];
+            }
+            case LOCAL -> {
+                newUpvalues[u] = stack[bp + slot];
+                if (unboxed)
+                    newNumUpvalues[u] = numStack[bp + slot];
+            }
+            case SELF -> newUpvalues[u] = closure;
+            }
+        }
+        return closure;
+    }
+
+    /** Print how often each superinstruction was executed, and how many
+        dispatches that saved, since this VM was created.
+
+        <p> Nothing is counted while executing.  Rather, as code has no
+        control flow, each run of a blob executes each of its instructions
+        once, so the counts follow from the instructions in the code of each
+        function, and the number of times it was interpreted.  Calls running
+        compiled code dispatch nothing, and are left out.  Runs cut short by
+        errors count as whole.  Only what ran while {@link
+        #setRecordingStatistics(boolean) recording statistics} is counted.
+
+        @param out Stream to print into.  */
+    public void printFusionStats(PrintStream out) {
+        var counts = toplevelCounts.clone();
+        for (int i = 0; i < c.getFunctionCount(); i++) {
+            var fn = c.getFunction(i);
+            /* Not compiled, and so never called, if lazy.  */
+            if (fn.getCode() != null)
+                fn.getCode().countOpcodes(counts, fn.getInterpretedCount());
+        }
+
+        out.println("Superinstructions:");
+        var saved = 0L;
+        for (var op : Instruction.Code.values()) {
+            var count = counts[op.ordinal()];
+            if (op.fuses <= 1 || count == 0)
+                continue;
+            out.printf("  %-20s %12d executions, %12d dispatches saved\n",
+                       op, count, count * (op.fuses - 1));
+            saved += count * (op.fuses - 1);
+        }
+        out.printf("  %-20s %12s             %12d dispatches saved\n",
+                   "total", "", saved);
+    }
+
+    /** Print the hit rate of the inline cache of each call site that was
+        executed since this VM was created, in functions, and in toplevel
+        blobs started while {@link #setRecordingStatistics(boolean) recording
+        statistics}.
+
+        @param out Stream to print into.  */
+    public void printCallSiteStats(PrintStream out) {
+        out.println("Call sites:");
+        for (int fnId = 0; fnId < c.getFunctionCount(); fnId++) {
+            var fn = c.getFunction(fnId);
+            if (fn.getCode() != null)
+                printCallSiteStats(out, "FN%x '%s'"
+                                   .formatted(fnId,
+                                              fn.getFuncDecl().getName()),
+                                   fn.getCode());
+        }
+        for (int i = 0; i < toplevels.size(); i++)
+            printCallSiteStats(out, "toplevel %d".formatted(i),
+                               toplevels.get(i));
+    }
+
+    /** Print the hit rate of the inline cache of each executed call site in
+        {@code blob}, labelled {@code label}, into {@code out}.  */
+    private static void printCallSiteStats(PrintStream out, String label,
+                                           Blob blob) {
+        var sites = blob.callSites();
+        for (int ip = 0; ip < sites.length; ip++) {
+            var site = sites[ip];
+            if (site == null || site.misses == 0)
+                continue;
+            var calls = site.hits + site.misses;
+            out.printf("  %-20s %4x: %12d calls, %6.2f%% hits%s\n",
+                       label, ip, calls, 100.0 * site.hits / calls,
+                       site.isPolymorphic() ? ", polymorphic" : "");
+        }
+    }
+
+    /** Like {@link #interpret(int, int, int, int, long)}, but keeps numbers
+        unboxed.
+
+        <p> The value stack, upvalues and globals are each split into a {@code
+        double} table and a reference table, indexed in parallel.  The
+        compiler guarantees, based on the types the type checker computed,
+        that numbers are only ever read from the {@code double} tables, and
+        that everything else is only ever read from the reference tables.
+        Instructions that merely move values around copy both.  Numbers are
+        boxed only when they escape into a value, via {@link
+        Instruction.Code#BOX_NUMBER <code>BOX_NUMBER</code>}.
+
+        @param entryFp Index of the frame whose return ends interpretation.
+        @param fp Index of the frame to start executing in.
+        @param sp Stack depth to start executing with.
+        @param ip Instruction to start executing at.
+        @param fuel Calls and returns to execute before refueling.  */
+    private void interpretUnboxed(int entryFp, int fp, int sp, int ip,
+                                  long fuel) {
+        /* Information related to the currently-executing function.  Reloaded
+           whenever the current invocation changes.  */
+        var frame = frames[fp];
+        var nums = this.numStack;
+        var refs = this.stack;
+        var code = frame.getBlob().packedCode();
+        var sites = frame.getBlob().callSites();
+        var csts = frame.getBlob().packedConstants();
+        var upvals = frame.getUpvalues();
+        var numUpvals = frame.getNumUpvalues();
+        var bp = frame.getBase();
+
+        /* VM main loop.  */
+        for (;;) {
+            /* Fetch the current instruction.  */
+            var word = code[ip];
+            var op = Instruction.opcode(word);
+            var arg1 = Instruction.arg1(word);
+            ip += op.length;
+            /* ... and interpret it.  */
+            switch (op) {
+            /* Both operands are numbers, so compute in place.  */
+            case ADD -> { sp--; nums[sp - 1] += nums[sp]; }
+            case SUBTRACT -> { sp--; nums[sp - 1] -= nums[sp]; }
+            case MULTIPLY -> { sp--; nums[sp - 1] *= nums[sp]; }
+            case DIVIDE -> { sp--; nums[sp - 1] /= nums[sp]; }
+            case RAISE -> {
+                sp--;
+                nums[sp - 1] = Math.pow(nums[sp - 1], nums[sp]);
+            }
+
+            /* Get and push a global.  */
+            case GET_GLOBAL -> {
+                nums[sp] = numGlobals[arg1];
+                refs[sp++] = globals.get(arg1);
+            }
+            /* Get and push a local.  */
+            case GET_LOCAL -> {
+                nums[sp] = nums[bp + arg1];
+                refs[sp++] = refs[bp + arg1];
+            }
+            /* Get and push an upvalue.  */
+            case GET_UPVALUE -> {
+                nums[sp] = numUpvals[arg1];
+                refs[sp++] = upvals[arg1];
+            }
+            /* Pop and save a global.  */
+            case SET_GLOBAL -> {
+                sp--;
+                numGlobals[arg1] = nums[sp];
+                globals.set(arg1, refs[sp]);
+            }
+            /* Pop and save a local.  */
+            case SET_LOCAL -> {
+                sp--;
+                nums[bp + arg1] = nums[sp];
+                refs[bp + arg1] = refs[sp];
+            }
+
+            /* Create a vector of values.  Numeric elements were boxed by
+               BOX_NUMBER already.  */
+            case VECTOR_CONSTRUCT -> {
+                var cnt = /* Count.  */ arg1;
+                var elements = new ArrayList<>(Arrays.asList(refs)
+                                               .subList(sp - cnt, sp));
+                sp -= cnt;
+                refs[sp++] = new Value.Vector(elements);
+            }
+
+            /* Extract a vector element.  */
+            case VECTOR_ACCESS -> {
+                /* Unused.  */
+                var rhs = ((Value.Vector) refs[--sp]).elements();
+                var lhs = nums[--sp];
+                var elt = rhs.get((int) lhs);
+                /* Vectors hold boxed values, so unbox numbers.  */
+                if (elt instanceof Value.Number n)
+                    nums[sp] = n.number();
+                refs[sp++] = elt;
+            }
+
+            /* Get and push a constant.  */
+            case PUSH_CONSTANT ->
+                nums[sp++] = csts[arg1];
+
+            case POP -> sp--;
+
+            case BOX_NUMBER ->
+                refs[sp - 1] = new Value.Number(nums[sp - 1]);
+
+            /* Terminate this VM run.  */
+            case FINISH_OUTER -> {
+                assert fp == 0;
+                assert ip == code.length;
+                return;
+            }
+            /* Print the top of the stack.  Numbers were boxed by BOX_NUMBER
+               already.  */
+            case PRINT -> {
+                refs[--sp].print(System.out);
+                System.out.println();
+            }
+
+            /* Return from a function.  */
+            case RETURN, RETURN_VOID, TAIL_CALL -> {
+                if (op == TAIL_CALL) {
+                    final var aty = arg1;
+                    final var argBase = sp - aty;
+                    final var site = resolve(sites[ip - op.length],
+                                             refs[argBase - 1]);
+                    final var compiled = countCall(site.function);
+                    if (compiled == null) {
+                        /* Replace the current invocation with one of the
+                           callee.  See the boxed implementation.  */
+                        final var localCount = site.localCount;
+                        ensureStack(bp + site.frameSize);
+                        nums = this.numStack;
+                        refs = this.stack;
+                        System.arraycopy(refs, argBase, refs, bp, aty);
+                        System.arraycopy(nums, argBase, nums, bp, aty);
+                        Arrays.fill(refs, bp + aty, bp + localCount, null);
+                        frame.enter(site.blob, site.upvalues,
+                                    site.numUpvalues, bp,
+                                    frame.getPrevIp(), frame.getResultSlot());
+                        code = frame.getBlob().packedCode();
+                        sites = frame.getBlob().callSites();
+                        csts = frame.getBlob().packedConstants();
+                        upvals = frame.getUpvalues();
+                        numUpvals = frame.getNumUpvalues();
+                        sp = bp + localCount;
+                        ip = 0;
+                        if (--fuel == 0
+                            && (fuel = refuel(entryFp)) == 0) {
+                            suspend(ip, sp, fp);
+                            return;
+                        }
+                        break;
+                    }
+                    /* Leave the result on the top of the stack, and return
+                       it.  */
+                    stackTop = sp;
+                    frameTop = fp;
+                    compiled.call(site.closure, nums, refs, argBase,
+                                  argBase - 1);
+                    if (refs != this.stack) {
+                        /* The stack grew while running compiled code, after
+                           it got the old one.  */
+                        this.numStack[argBase - 1] = nums[argBase - 1];
+                        this.stack[argBase - 1] = refs[argBase - 1];
+                        nums = this.numStack;
+                        refs = this.stack;
+                    }
+                    sp = argBase;
+                }
+                /* See the boxed implementation regarding void returns.  */
                 final var retVoid = op == RETURN_VOID;
-                /* In case this is a void function, we don't have anything to
-                   return.  But, after each ExprStmt there's a POP.  A void
-                   function call is necessarily nested in a ExprStmt due to it
-                   being type-checked.  With these facts, we can safely insert
-                   a Java null in place of a return value, or really any
-                   arbitrary value, as it will never actually be read.  */
-                final var retval = retVoid ? null : stack.getLast();
-                /* Restore old IP.  */
-                ip = callstack.getLast().getPrevIp();
-                /* Remove the last invocation.  */
-                callstack.removeLast();
-                /* Push the result into the now-last, previously second-last
-                   invocation.  */
-                callstack.getLast().getOperandStack().add(retval);
+                final var dst = frame.getResultSlot();
+                nums[dst] = retVoid ? 0 : nums[sp - 1];
+                refs[dst] = retVoid ? null : refs[sp - 1];
+                /* If the caller is outside of the VM, it picks up the result
+                   from there.  */
+                if (fp == entryFp)
+                    return;
+                /* Restore old IP, and resume the previous invocation.  */
+                ip = frame.getPrevIp();
+                frame = frames[--fp];
+                code = frame.getBlob().packedCode();
+                sites = frame.getBlob().callSites();
+                csts = frame.getBlob().packedConstants();
+                upvals = frame.getUpvalues();
+                numUpvals = frame.getNumUpvalues();
+                bp = frame.getBase();
+                sp = dst + 1;
+                if (--fuel == 0 && (fuel = refuel(entryFp)) == 0) {
+                    suspend(ip, sp, fp);
+                    return;
+                }
             }
 
             /* Call a closure.  */
-            case FUNCTION_CALL -> {
+            case FUNCTION_CALL, GET_GLOBAL_CALL -> {
+                final var viaGlobal = op == GET_GLOBAL_CALL;
                 /* Arity.  */
-                final var aty = insn.getArg1();
-                /* Extract the closure and arguments from the stack.  */
-                final var operands = stack.subList(stack.size() - aty - 1,
-                                                   stack.size());
-                /* The closure is the first (deepest) thing extracted.  */
-                final var closure = ((Value.Closure) operands.getFirst());
-
-                /* Allocate a new local table for this invocation.  */
-                final var newLocals = new Value[closure.localCount()];
-                /* Populate it with function arguments.  */
-                for (int i = 1; i < operands.size(); i++)
-                    newLocals[i - 1] = operands.get(i);
-
-                /* Construct a new invocation.  */
-                final var invoc =
-                    new BlobInvocation(closure.code(),
-                                       /* As they will never be modified, we
-                                          can reuse the same upvalue table
-                                          here as we found in the closure.  */
-                                       closure.upvalues(),
-                                       newLocals,
-                                       /* Note that the 'ip' is
-                                          post-incremented before this 'switch'
-                                          is executed, so 'ip' will refer to
-                                          the next instruction.  */
-                                       ip);
-                /* Add the new invocation to the invocation stack, so that the
-                   next iteration executes it.  */
-                callstack.add(invoc);
-                /* Reset ip to the start of the instruction.  The old one was
-                   saved above.  */
+                final var aty = viaGlobal ? code[ip - 1] : arg1;
+                /* Stack slot of the first argument.  Unless taken from a
+                   global, the closure is right under it.  */
+                final var argBase = sp - aty;
+                final var site = resolve(sites[ip - op.length],
+                                         viaGlobal
+                                         ? globals.get(arg1)
+                                         : refs[argBase - 1]);
+                /* The result replaces the closure, or the first argument if
+                   there is no closure on the stack.  */
+                final var dst = viaGlobal ? argBase : argBase - 1;
+
+                /* Run compiled code, if the callee has some.  */
+                final var compiled = countCall(site.function);
+                if (compiled != null) {
+                    stackTop = sp;
+                    frameTop = fp;
+                    compiled.call(site.closure, nums, refs, argBase, dst);
+                    if (refs != this.stack) {
+                        /* See TAIL_CALL.  */
+                        this.numStack[dst] = nums[dst];
+                        this.stack[dst] = refs[dst];
+                        nums = this.numStack;
+                        refs = this.stack;
+                    }
+                    sp = dst + 1;
+                    break;
+                }
+
+                /* The arguments become the first locals of the callee.  See
+                   the boxed implementation.  */
+                final var localCount = site.localCount;
+                ensureStack(argBase + site.frameSize);
+                nums = this.numStack;
+                refs = this.stack;
+                Arrays.fill(refs, argBase + aty, argBase + localCount, null);
+
+                ensureFrame(++fp);
+                frame = frames[fp];
+                frame.enter(site.blob,
+                            site.upvalues, site.numUpvalues,
+                            argBase, ip, dst);
+                code = frame.getBlob().packedCode();
+                sites = frame.getBlob().callSites();
+                csts = frame.getBlob().packedConstants();
+                upvals = frame.getUpvalues();
+                numUpvals = frame.getNumUpvalues();
+                bp = argBase;
+                sp = bp + localCount;
                 ip = 0;
-                /* Pop the arguments and closure.  */
-                for (int i = 0; i < aty + 1; i++)
-                    stack.removeLast();
+                if (--fuel == 0 && (fuel = refuel(entryFp)) == 0) {
+                    suspend(ip, sp, fp);
+                    return;
+                }
             }
 
             /* Collect upvalues and build a closure!  */
-            case BUILD_CLOSURE -> {
-                var fn = c.getFunction(insn.getArg1());
-                var um = fn.getUpvalueMap();
-                /* Allocate the upvalue table.  */
-                var newUpvalues = new Value[um.length];
-                for (int u = 0; u < newUpvalues.length; u++)
-                    /* Set upvalue u based on the specification in
-                       uvalueMap[u].  */
-                    newUpvalues[u] =
-                        (switch (um[u].loc()) {
-                            /* Fetch the correct table - if loc is UPVALUE,
-                               then this is the current upvalue table,
-                               otherwise it is the current locals table.  */
-                        case UPVALUE -> upvals;
-                        case LOCAL -> locals;
-                        })[/* Extract the right slot.  */ um[u].slot()];
-                /* Push the new closure onto the stack.  */
-                stack.add(new Value.Closure(fn.getCode(),
-                                            newUpvalues,
-                                            fn.getLocalCount()));
+            case BUILD_CLOSURE ->
+                refs[sp++] = buildClosure(arg1, upvals, numUpvals, bp);
+
+            /* Report an event.  Only found in instrumented code.  */
+            case PROBE -> probe(frame, arg1, refs, sp);
+
+            /* Superinstructions.  See the peephole optimizer.  */
+            case ADD_LOCAL_LOCAL -> {
+                /* The second argument is right before the next
+                   instruction.  */
+                nums[sp++] = nums[bp + arg1] + nums[bp + code[ip - 1]];
+            }
+            case SUB_LOCAL_LOCAL -> {
+                nums[sp++] = nums[bp + arg1] - nums[bp + code[ip - 1]];
+            }
+            case MUL_LOCAL_LOCAL -> {
+                nums[sp++] = nums[bp + arg1] * nums[bp + code[ip - 1]];
+            }
+            case ADD_CONST -> {
+                nums[sp - 1] += csts[arg1];
+            }
+            case SUB_CONST -> {
+                nums[sp - 1] -= csts[arg1];
+            }
+            case MUL_CONST -> {
+                nums[sp - 1] *= csts[arg1];
+            }
+            case DIV_CONST -> {
+                nums[sp - 1] /= csts[arg1];
+            }
+            case BUILD_CLOSURE_LOCAL -> {
+                refs[bp + code[ip - 1]] = buildClosure(arg1, upvals,
+                                                       numUpvals, bp);
             }
             }
         }
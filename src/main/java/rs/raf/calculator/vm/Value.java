@@ -33,17 +33,36 @@ public sealed interface Value {
         }
     }
 
-    /** A closure value.  Contains the code to execute when executing this
-        callable, as well as the number of locals as well as the upvalues
-        captured at construction time.  */
-    public record Closure(Blob code,
+    /** A closure value.  Contains the function this closure was built from,
+        which holds the code to execute when executing this callable, as well
+        as the number of locals, as well as the upvalues captured at
+        construction time.
+
+        <p> When executing unboxed, upvalues that are numbers are captured
+        into {@code numUpvalues} instead of {@code upvalues}.  */
+    public record Closure(Function function,
                           Value[] upvalues,
-                          int localCount)
+                          double[] numUpvalues)
         implements Value
     {
+        /** Construct a closure for boxed execution.  */
+        public Closure(Function function, Value[] upvalues) {
+            this(function, upvalues, null);
+        }
+
+        /** @return Code to execute when calling this closure.  */
+        public Blob code() {
+            return function.executableCode();
+        }
+
+        /** @return Number of locals calling this closure requires.  */
+        public int localCount() {
+            return function.getLocalCount();
+        }
+
         @Override
         public void print(PrintStream out) {
-            out.printf("<function %s>", System.identityHashCode(code));
+            out.printf("<function %s>", System.identityHashCode(function));
         }
     }
 }
@@ -0,0 +1,316 @@
+package rs.raf.calculator.vm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import rs.raf.calculator.Calculator;
+import rs.raf.calculator.ast.FunctionType;
+import rs.raf.calculator.ast.ListType;
+import rs.raf.calculator.ast.Type;
+
+import static rs.raf.calculator.vm.Instruction.Code.*;
+
+/** Checks that a finished {@link Blob} is well-formed, and computes what the
+    {@link VM} needs to know to execute it without checking as it goes.
+
+    <p> As the language has no control flow, a blob is a straight line of
+    code, and verification is a single pass over it, up to the first
+    instruction that leaves the blob.  Anything after that is dead.  While
+    passing over it, the verifier tracks the static type of each operand and
+    local, derived from the types the type checker computed for function
+    arguments, upvalues, globals and callees, like the {@link JitCompiler}
+    does.  It checks that:
+
+    <ul>
+    <li> each instruction fits in the blob, and has a valid opcode;
+    <li> constant, local, global, upvalue, function and probe indices are
+         in range;
+    <li> no instruction pops more operands than there are, and operands are
+         of the kinds instructions expect, as far as they are known;
+    <li> the blob ends in a way appropriate for it: functions return, and the
+         toplevel finishes with an empty stack.
+    </ul>
+
+    <p> On success, the verifier records, on the blob, the maximum depth of
+    its operand stack, and the depth of the stack before each instruction.
+    The kinds of locals and operands are only tracked while verifying, as
+    keeping those of each instruction would take space growing with both
+    the length of the code and the depth of the stack.  */
+public final class Verifier {
+    /** Thrown if a blob is malformed.  As blobs come from the compiler, this
+        indicates a bug in it.  */
+    @SuppressWarnings("serial")
+    public static final class VerifyException extends RuntimeException {
+        /** @param message What is wrong with the blob.  */
+        VerifyException(String message) {
+            super(message);
+        }
+    }
+
+    /** Wider compilation (and execution) context.  */
+    private final Calculator c;
+    /** Blob being verified.  */
+    private final Blob blob;
+    /** Function whose code {@link #blob} is, or {@code null} for toplevel
+        code.  */
+    private final Function fn;
+    /** Number of global slots the blob may refer to.  */
+    private final int globalCount;
+
+    /** The simulated operand stack.  */
+    private final ArrayList<Type> stack = new ArrayList<>();
+    /** Static type of each local slot, or {@code null} if not known.  */
+    private final Type[] locals;
+    /** Instruction being verified.  */
+    private int ip;
+
+    private Verifier(Calculator c, Blob blob, Function fn) {
+        this.c = c;
+        this.blob = blob;
+        this.fn = fn;
+        this.globalCount = c.getGlobalCount();
+        this.locals = new Type[fn == null ? 0 : fn.getLocalCount()];
+    }
+
+    /** Verify toplevel code.
+
+        @param c Context {@code blob} was compiled in.
+        @param blob Finished toplevel blob.
+        @throws VerifyException If {@code blob} is malformed.  */
+    public static void verify(Calculator c, Blob blob) {
+        new Verifier(c, blob, null).verify();
+    }
+
+    /** Verify the code of a function.  Its local count, upvalue types and
+        declaration must already be set.
+
+        @param c Context {@code fn} was compiled in.
+        @param fn Function to verify.
+        @throws VerifyException If the code of {@code fn} is malformed.  */
+    public static void verify(Calculator c, Function fn) {
+        verify(c, fn, fn.getCode());
+    }
+
+    /** Verify {@code blob} as the code of {@code fn}, such as an instrumented
+        copy of its code.  See {@link #verify(Calculator, Function)}.
+
+        @param c Context {@code fn} was compiled in.
+        @param fn Function {@code blob} is code of.
+        @param blob Finished blob to verify.
+        @throws VerifyException If {@code blob} is malformed.  */
+    static void verify(Calculator c, Function fn, Blob blob) {
+        var verifier = new Verifier(c, blob, fn);
+        /* Arguments are the first few locals.  */
+        var type = (FunctionType) fn.getFuncDecl().getDeclaredType();
+        var argTypes = type.getArgumentTypes();
+        if (argTypes.size() > verifier.locals.length)
+            throw verifier.error("fewer locals than arguments");
+        for (int i = 0; i < argTypes.size(); i++)
+            verifier.locals[i] = argTypes.get(i);
+        verifier.verify();
+    }
+
+    /** Pass over the blob, and record the results on it.  */
+    private void verify() {
+        var code = blob.packedCode();
+        var depths = new int[code.length];
+        Arrays.fill(depths, -1);
+        var maxStack = 0;
+
+        for (ip = 0; ; ) {
+            if (ip >= code.length)
+                throw error("code runs past the end of the blob");
+            var ordinal = code[ip] & ((1 << Instruction.OPCODE_BITS) - 1);
+            if (ordinal >= Instruction.Code.values().length)
+                throw error("invalid opcode " + ordinal);
+            var op = Instruction.opcode(code[ip]);
+            if (ip + op.length > code.length)
+                throw error(op + " runs past the end of the blob");
+
+            depths[ip] = stack.size();
+            if (step(op, Instruction.arg1(code[ip]),
+                     op.argCount >= 2 ? code[ip + 1] : -1))
+                break;
+            maxStack = Math.max(maxStack, stack.size());
+            ip += op.length;
+        }
+
+        blob.setVerification(maxStack, depths);
+    }
+
+    /** Simulate one instruction.
+
+        @return Whether the instruction leaves the blob.  */
+    private boolean step(Instruction.Code op, int arg1, int arg2) {
+        switch (op) {
+        case ADD, SUBTRACT, MULTIPLY, DIVIDE, RAISE -> {
+            pop(SlotKind.NUMBER);
+            pop(SlotKind.NUMBER);
+            stack.add(c.getNumberType());
+        }
+        case VECTOR_CONSTRUCT -> {
+            Type elementType = null;
+            for (int i = 0; i < arg1; i++)
+                elementType = pop(null);
+            stack.add(c.listOfType(elementType));
+        }
+        case VECTOR_ACCESS -> {
+            /* The vector is on the top, and the index under it.  */
+            var vector = pop(SlotKind.VECTOR);
+            pop(SlotKind.NUMBER);
+            stack.add(vector instanceof ListType l
+                      ? l.getElementType()
+                      : null);
+        }
+        case FUNCTION_CALL -> stack.add(call(null, arg1));
+        case GET_GLOBAL_CALL -> stack.add(call(global(arg1), arg2));
+        case TAIL_CALL -> {
+            checkReturns();
+            call(null, arg1);
+            return true;
+        }
+        case RETURN -> {
+            checkReturns();
+            pop(null);
+            return true;
+        }
+        case RETURN_VOID -> {
+            checkReturns();
+            return true;
+        }
+        case BUILD_CLOSURE -> stack.add(function(arg1));
+        case PUSH_CONSTANT -> {
+            constant(arg1);
+            stack.add(c.getNumberType());
+        }
+        case POP -> pop(null);
+        case SET_LOCAL -> locals[local(arg1)] = pop(null);
+        case GET_LOCAL -> stack.add(locals[local(arg1)]);
+        case SET_GLOBAL -> {
+            global(arg1);
+            pop(null);
+        }
+        case GET_GLOBAL -> stack.add(global(arg1));
+        case GET_UPVALUE -> {
+            if (fn == null || arg1 < 0 || arg1 >= fn.getUpvalueMap().length)
+                throw error("upvalue %d out of range".formatted(arg1));
+            stack.add(fn.getUpvalueTypes()[arg1]);
+        }
+        case BOX_NUMBER -> stack.add(pop(SlotKind.NUMBER));
+        case PRINT -> {
+            var type = pop(null);
+            if (SlotKind.of(type) == SlotKind.VOID)
+                throw error("printing the result of a void call");
+        }
+        case FINISH_OUTER -> {
+            if (fn != null)
+                throw error("FINISH_OUTER in a function");
+            if (!stack.isEmpty())
+                throw error("%d operands left on the stack"
+                            .formatted(stack.size()));
+            return true;
+        }
+        case PROBE -> {
+            if (blob.probes() == null || arg1 < 0
+                || arg1 >= blob.probes().length)
+                throw error("probe %d out of range".formatted(arg1));
+        }
+        case ADD_LOCAL_LOCAL, SUB_LOCAL_LOCAL, MUL_LOCAL_LOCAL -> {
+            checkKind(locals[local(arg1)], SlotKind.NUMBER);
+            checkKind(locals[local(arg2)], SlotKind.NUMBER);
+            stack.add(c.getNumberType());
+        }
+        case ADD_CONST, SUB_CONST, MUL_CONST, DIV_CONST -> {
+            constant(arg1);
+            stack.add(pop(SlotKind.NUMBER));
+        }
+        case BUILD_CLOSURE_LOCAL -> locals[local(arg2)] = function(arg1);
+        }
+        return false;
+    }
+
+    /** Simulate popping the arguments of a call of arity {@code arity}, and,
+        if {@code callee} is {@code null}, the callee from under them.
+
+        @return The static type of the result of the call.  */
+    private Type call(Type callee, int arity) {
+        var argTypes = new Type[arity];
+        for (int i = arity - 1; i >= 0; i--)
+            argTypes[i] = pop(null);
+        if (callee == null)
+            callee = pop(SlotKind.CLOSURE);
+        checkKind(callee, SlotKind.CLOSURE);
+        if (!(callee instanceof FunctionType type))
+            return null;
+        if (type.getArgumentTypes().size() != arity)
+            throw error("calling a %d-ary function with %d arguments"
+                        .formatted(type.getArgumentTypes().size(), arity));
+        return type.getReturnType();
+    }
+
+    /** Check that the blob being verified may return.  */
+    private void checkReturns() {
+        if (fn == null)
+            throw error("returning from toplevel code");
+    }
+
+    /** Simulate popping an operand, which must be of kind {@code expected},
+        unless that is {@code null}.
+
+        @return The static type of the operand.  */
+    private Type pop(SlotKind expected) {
+        if (stack.isEmpty())
+            throw error("operand stack underflow");
+        var type = stack.removeLast();
+        if (expected != null)
+            checkKind(type, expected);
+        return type;
+    }
+
+    /** Check that a value of static type {@code type} is of kind {@code
+        expected}, if its type is known.  */
+    private void checkKind(Type type, SlotKind expected) {
+        var kind = SlotKind.of(type);
+        if (kind != SlotKind.UNKNOWN && kind != expected)
+            throw error("expected %s, found %s".formatted(expected, kind));
+    }
+
+    /** @return {@code slot}, after checking it is a valid local slot.  */
+    private int local(int slot) {
+        if (slot < 0 || slot >= locals.length)
+            throw error("local %d out of range".formatted(slot));
+        return slot;
+    }
+
+    /** Check that {@code slot} is a valid constant table slot.  */
+    private void constant(int slot) {
+        if (slot < 0 || slot >= blob.packedConstants().length)
+            throw error("constant %d out of range".formatted(slot));
+    }
+
+    /** @return The static type of global {@code slot}, after checking it is a
+                valid global slot.  */
+    private Type global(int slot) {
+        if (slot < 0 || slot >= globalCount)
+            throw error("global %d out of range".formatted(slot));
+        return c.getGlobalDeclaration(slot).getDeclaredType();
+    }
+
+    /** @return The static type of closures of function {@code fnId}, after
+                checking it is a valid function table slot.  */
+    private Type function(int fnId) {
+        if (fnId < 0 || fnId >= c.getFunctionCount())
+            throw error("function %d out of range".formatted(fnId));
+        return c.getFunction(fnId).getFuncDecl().getDeclaredType();
+    }
+
+    /** @return An exception reporting {@code message} about the current
+                instruction.  */
+    private VerifyException error(String message) {
+        var where = fn == null
+            ? "toplevel blob"
+            : "function '%s'".formatted(fn.getFuncDecl().getName());
+        return new VerifyException("%s, ip %d: %s".formatted(where, ip,
+                                                            message));
+    }
+}